@@ -0,0 +1,102 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the overhead of executing a single statement against an
+ * in-memory H2 database, where the database itself does very little work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionBenchmark
+{
+    @Param({ "false", "true" })
+    boolean parameterize;
+
+    private Connection conn;
+    private PrintStream out;
+    private ExecutionOptions options;
+    private int id;
+
+    @Setup
+    public void setUp()
+        throws SQLException
+    {
+        conn = DriverManager.getConnection("jdbc:h2:mem:benchmark");
+
+        final Statement s = conn.createStatement();
+        try
+        {
+            s.execute("CREATE TABLE t (id INT PRIMARY KEY, name VARCHAR(64))");
+            s.execute("INSERT INTO t SELECT x, 'name ' || x FROM SYSTEM_RANGE(1, 1000)");
+        }
+        finally
+        {
+            s.close();
+        }
+
+        out = new PrintStream(new NullOutputStream());
+        options = new ExecutionOptions();
+        if(parameterize)
+            options.statementCache = new StatementCache(conn, 100);
+    }
+
+    @TearDown
+    public void tearDown()
+        throws SQLException
+    {
+        if(null != options.statementCache)
+            options.statementCache.close();
+        conn.close();
+    }
+
+    private int nextId()
+    {
+        id = id % 1000 + 1;
+
+        return id;
+    }
+
+    @Benchmark
+    public StatementMetrics selectOneRow()
+        throws SQLException
+    {
+        return SQLExecutor.executeSQL("SELECT name FROM t WHERE id = " + nextId() + ";", conn, out, options);
+    }
+
+    @Benchmark
+    public StatementMetrics updateOneRow()
+        throws SQLException
+    {
+        return SQLExecutor.executeSQL("UPDATE t SET name = 'updated' WHERE id = " + nextId() + ";", conn, out, options);
+    }
+
+    @Benchmark
+    public StatementMetrics selectAllRows()
+        throws SQLException
+    {
+        return SQLExecutor.executeSQL("SELECT id, name FROM t;", conn, out, options);
+    }
+}
@@ -0,0 +1,160 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures statements and rows per second through SQLExecutor using the
+ * fake JDBC driver, so that the "database" costs exactly as much as it is
+ * told to and the results don't depend on a real server.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FakeDriverBenchmark
+{
+    private static final int STATEMENTS = 100;
+    private static final int ROWS = 10000;
+
+    /**
+     * Executes INSERTs one at a time or in batches, against a server with
+     * a given round-trip time.
+     */
+    @State(Scope.Benchmark)
+    public static class Statements
+    {
+        /**
+         * Milliseconds per round trip.
+         */
+        @Param({ "0", "1" })
+        long latency;
+
+        /**
+         * Statements per batch, where 1 doesn't use a batch at all.
+         */
+        @Param({ "1", "100" })
+        int batchSize;
+
+        Connection conn;
+        PrintStream out;
+        ExecutionOptions options;
+        StatementBatch batch;
+        final ArrayList<ScriptStatement> statements = new ArrayList<ScriptStatement>();
+
+        @Setup
+        public void setUp()
+            throws SQLException
+        {
+            conn = new FakeDriver().connect(FakeDriver.PREFIX + "latency=" + latency, new Properties());
+            out = new PrintStream(new NullOutputStream());
+            options = new ExecutionOptions();
+            batch = new StatementBatch(batchSize, 0);
+
+            for(int i=0; i<STATEMENTS; ++i)
+                statements.add(new ScriptStatement("INSERT INTO t VALUES (" + i + ", 'name " + i + "');",
+                                                   i + 1, 1, i + 1, 1, -1, -1, i + 1));
+        }
+
+        @TearDown
+        public void tearDown()
+            throws SQLException
+        {
+            conn.close();
+        }
+    }
+
+    /**
+     * Fetches and renders a large result set with columns of a given
+     * shape.
+     */
+    @State(Scope.Benchmark)
+    public static class Rows
+    {
+        @Param({ "integer,varchar,decimal,timestamp", "integer,clob,blob" })
+        String types;
+
+        /**
+         * Rows sampled to size the columns, where 0 streams rows straight
+         * through using the sizes reported by the driver.
+         */
+        @Param({ "0", "100" })
+        int sampleRows;
+
+        Connection conn;
+        PrintStream out;
+        ExecutionOptions options;
+
+        @Setup
+        public void setUp()
+            throws SQLException
+        {
+            conn = new FakeDriver().connect(FakeDriver.PREFIX + "rows=" + ROWS + ";types=" + types, new Properties());
+            out = new PrintStream(new NullOutputStream());
+            options = new ExecutionOptions();
+            options.sampleRows = sampleRows;
+        }
+
+        @TearDown
+        public void tearDown()
+            throws SQLException
+        {
+            conn.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STATEMENTS)
+    public long statements(Statements state)
+        throws SQLException
+    {
+        long rows = 0;
+
+        if(1 == state.batchSize)
+        {
+            for(ScriptStatement statement : state.statements)
+                rows += SQLExecutor.executeSQL(statement.getText(), state.conn, state.out, state.options).getUpdateCount();
+        }
+        else
+        {
+            for(ScriptStatement statement : state.statements)
+            {
+                if(state.batch.add(statement))
+                {
+                    for(int count : state.batch.execute(state.conn, state.out))
+                        rows += count;
+                    state.batch.clear();
+                }
+            }
+        }
+
+        return rows;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public StatementMetrics rows(Rows state)
+        throws SQLException
+    {
+        return SQLExecutor.executeSQL("SELECT * FROM t;", state.conn, state.out, state.options);
+    }
+}
@@ -0,0 +1,101 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how quickly result sets can be formatted as tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderingBenchmark
+{
+    /**
+     * "tall" results have a few narrow columns and many rows; "wide"
+     * results have many wide columns and fewer rows.
+     */
+    @Param({ "tall", "wide" })
+    String shape;
+
+    private int rows;
+    private int[] widths;
+    private String[] labels;
+    private String[][] values;
+
+    private final OutputStream out = new NullOutputStream();
+
+    @Setup
+    public void setUp()
+    {
+        final int columns;
+        final int width;
+        if("wide".equals(shape))
+        {
+            columns = 200;
+            width = 40;
+            rows = 1000;
+        }
+        else
+        {
+            columns = 4;
+            width = 12;
+            rows = 100000;
+        }
+
+        widths = new int[columns];
+        labels = new String[columns];
+        for(int i=0; i<columns; ++i)
+        {
+            widths[i] = width;
+            labels[i] = "column_" + i;
+        }
+
+        // A pool of rows to cycle through, so the values aren't all identical
+        values = new String[100][columns];
+        for(int r=0; r<values.length; ++r)
+            for(int c=0; c<columns; ++c)
+                values[r][c] = 0 == (r + c) % 7 ? "NULL" : Integer.toString(r * 1000 + c);
+    }
+
+    @Benchmark
+    public void render()
+        throws IOException
+    {
+        final TableRenderer table = new TableRenderer(out, widths);
+
+        table.separator();
+        for(String label : labels)
+            table.labelCell(label);
+        table.endRow();
+        table.separator();
+
+        for(int r=0; r<rows; ++r)
+        {
+            final String[] row = values[r % values.length];
+
+            for(String value : row)
+                table.cell(value);
+            table.endRow();
+        }
+
+        table.separator();
+        table.flush();
+    }
+}
@@ -0,0 +1,172 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how quickly a large synthetic script can be split into
+ * statements, both from memory and from a file on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptSplittingBenchmark
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({ "100000" })
+    int statements;
+
+    /**
+     * "simple" scripts contain one short INSERT per line; "mixed" scripts
+     * also contain comments, multi-line statements, quoted delimiters
+     * and several statements per line; "mysql" scripts look like the
+     * output of mysqldump, with backslash escapes and # comments.
+     */
+    @Param({ "simple", "mixed", "mysql" })
+    String shape;
+
+    private String script;
+    private File file;
+    private StringBuilder blank;
+
+    @Setup
+    public void setUp()
+        throws IOException
+    {
+        script = generate(statements, shape);
+
+        file = File.createTempFile("SQLExecutor.benchmark.", ".sql");
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+        try
+        {
+            out.write(script);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        blank = new StringBuilder();
+        for(int i=0; i<1000; ++i)
+            blank.append(0 == i % 80 ? '\n' : ' ');
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if(!file.delete())
+            file.deleteOnExit();
+    }
+
+    static String generate(int statements, String shape)
+    {
+        final StringBuilder sb = new StringBuilder(statements * 64);
+        final boolean mixed = "mixed".equals(shape);
+
+        if("mysql".equals(shape))
+        {
+            sb.append("/*!40101 SET NAMES utf8mb4 */;\n");
+
+            for(int i=1; i<statements; ++i)
+            {
+                if(0 == i % 4)
+                    sb.append("# Row ").append(i).append("; really\n");
+                sb.append("INSERT INTO t (id, name) VALUES (").append(i).append(", 'it\\'s; ").append(i)
+                  .append("'), (").append(-i).append(", 'C:\\\\dir\\\\").append(i).append("');\n");
+            }
+
+            return sb.toString();
+        }
+
+        for(int i=0; i<statements; ++i)
+        {
+            if(!mixed || 0 == i % 4)
+                sb.append("INSERT INTO t (id, name) VALUES (").append(i).append(", 'name ").append(i).append("');\n");
+            else if(1 == i % 4)
+                sb.append("-- Update row ").append(i).append("; really\n")
+                  .append("UPDATE t\n   SET name = 'semi;colon ").append(i).append("'\n WHERE id = ").append(i).append(";\n");
+            else if(2 == i % 4)
+                sb.append("/* block; comment */ DELETE FROM t WHERE id = ").append(i).append("; ");
+            else
+                sb.append("SELECT \"odd;name\" FROM t WHERE id = ").append(i).append(";\n");
+        }
+
+        return sb.toString();
+    }
+
+    @Benchmark
+    public long lexString()
+        throws IOException
+    {
+        final ScriptLexer lexer = new ScriptLexer(new StringReader(script));
+
+        long count = 0;
+        while(null != lexer.next())
+            ++count;
+
+        return count;
+    }
+
+    @Benchmark
+    public long skipString()
+        throws IOException
+    {
+        final ScriptLexer lexer = new ScriptLexer(new StringReader(script));
+
+        long count = 0;
+        while(null != lexer.skip())
+            ++count;
+
+        return count;
+    }
+
+    @Benchmark
+    public long readFile()
+        throws IOException
+    {
+        final StatementReader in = new StatementReader(file, UTF8, null);
+
+        try
+        {
+            long count = 0;
+            while(null != in.next())
+                ++count;
+
+            return count;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean queryIsBlank()
+    {
+        return SQLExecutor.queryIsBlank(blank);
+    }
+}
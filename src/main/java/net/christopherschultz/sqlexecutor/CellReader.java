@@ -0,0 +1,303 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the values in a row of a result set as strings, without making the
+ * driver materialize large objects in memory.
+ *
+ * Binary values are shown as a short hex preview followed by their length,
+ * and CLOBs and other long text values are read through a stream and cut
+ * off after a limited number of characters. Alternatively, every binary and
+ * long text value can be streamed to a file of its own, in which case the
+ * name of the file is shown instead.
+ */
+class CellReader
+{
+    private static final int TEXT = 0;
+    private static final int LONG_TEXT = 1;
+    private static final int CLOB = 2;
+    private static final int BINARY = 3;
+    private static final int BLOB = 4;
+
+    /**
+     * The number of bytes of a binary value to show.
+     */
+    private static final int PREVIEW_BYTES = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Numbers the files written to the LOB directory
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final int[] kinds;
+    private final String[] labels;
+    private final int limit;
+    private final File lobDir;
+
+    /**
+     * Creates a new CellReader.
+     *
+     * @param rsmd The result set's metadata.
+     * @param limit The number of characters of a long text value to read,
+     *              or 0 to read entire values and show binary values the
+     *              way the driver formats them.
+     * @param lobDir The directory to write binary and long text values
+     *               to, or <code>null</code> to read them in-line.
+     */
+    CellReader(ResultSetMetaData rsmd, int limit, File lobDir)
+        throws SQLException
+    {
+        final int columnCount = rsmd.getColumnCount();
+
+        kinds = new int[columnCount];
+        labels = new String[columnCount];
+        this.limit = limit;
+        this.lobDir = lobDir;
+
+        for(int i=0; i<columnCount; ++i)
+        {
+            labels[i] = rsmd.getColumnLabel(i + 1);
+
+            switch(rsmd.getColumnType(i + 1))
+            {
+                case Types.LONGVARCHAR:
+                case Types.LONGNVARCHAR:
+                    kinds[i] = LONG_TEXT;
+                    break;
+                case Types.CLOB:
+                case Types.NCLOB:
+                    kinds[i] = CLOB;
+                    break;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                    kinds[i] = BINARY;
+                    break;
+                case Types.BLOB:
+                    kinds[i] = BLOB;
+                    break;
+                default:
+                    kinds[i] = TEXT;
+            }
+        }
+    }
+
+    /**
+     * Reads the current row of a result set.
+     *
+     * @param values Where to put the values, which are <code>null</code>
+     *               for SQL NULL.
+     */
+    void read(ResultSet rs, String[] values)
+        throws SQLException
+    {
+        for(int i=0; i<values.length; ++i)
+        {
+            final int kind = kinds[i];
+
+            if(TEXT == kind || (0 >= limit && null == lobDir))
+                values[i] = rs.getString(i + 1);
+            else
+            {
+                try
+                {
+                    if(LONG_TEXT == kind)
+                        values[i] = readText(rs.getCharacterStream(i + 1), -1, labels[i]);
+                    else if(BINARY == kind)
+                        values[i] = readBinary(rs.getBinaryStream(i + 1), -1, labels[i]);
+                    else if(CLOB == kind)
+                    {
+                        final Clob clob = rs.getClob(i + 1);
+                        try
+                        {
+                            values[i] = null == clob ? null : readText(clob.getCharacterStream(), clob.length(), labels[i]);
+                        }
+                        finally
+                        {
+                            if(null != clob) clob.free();
+                        }
+                    }
+                    else
+                    {
+                        final Blob blob = rs.getBlob(i + 1);
+                        try
+                        {
+                            values[i] = null == blob ? null : readBinary(blob.getBinaryStream(), blob.length(), labels[i]);
+                        }
+                        finally
+                        {
+                            if(null != blob) blob.free();
+                        }
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    throw new SQLException("Failed to read " + labels[i], ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the beginning of a text value, or copies it to a file.
+     *
+     * @param length The length of the value if known, or -1 to count the
+     *               characters.
+     */
+    private String readText(Reader in, long length, String label)
+        throws IOException
+    {
+        if(null == in)
+            return null;
+
+        try
+        {
+            final char[] buffer = new char[8192];
+            int count;
+
+            if(null != lobDir)
+            {
+                final File file = newFile(label, ".txt");
+                final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+                long total = 0;
+                try
+                {
+                    while(-1 != (count = in.read(buffer)))
+                    {
+                        out.write(buffer, 0, count);
+                        total += count;
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+
+                return file.getPath() + " (" + total + " chars)";
+            }
+
+            final StringBuilder sb = new StringBuilder(Math.min(limit, 1024));
+            while(sb.length() < limit
+                  && -1 != (count = in.read(buffer, 0, Math.min(buffer.length, limit - sb.length()))))
+                sb.append(buffer, 0, count);
+
+            if(sb.length() < limit)
+                return sb.toString();
+
+            if(0 > length)
+            {
+                // Count whatever's left without keeping it
+                length = sb.length();
+                long skipped;
+                while(0 < (skipped = in.skip(Long.MAX_VALUE)))
+                    length += skipped;
+            }
+
+            if(length <= limit)
+                return sb.toString();
+
+            return sb.append("... (").append(length).append(" chars)").toString();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the beginning of a binary value as hex, or copies it to a file.
+     *
+     * @param length The length of the value if known, or -1 to count the
+     *               bytes.
+     */
+    private String readBinary(InputStream in, long length, String label)
+        throws IOException
+    {
+        if(null == in)
+            return null;
+
+        try
+        {
+            final byte[] buffer = new byte[8192];
+            int count;
+
+            if(null != lobDir)
+            {
+                final File file = newFile(label, ".bin");
+                final OutputStream out = new FileOutputStream(file);
+                long total = 0;
+                try
+                {
+                    while(-1 != (count = in.read(buffer)))
+                    {
+                        out.write(buffer, 0, count);
+                        total += count;
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+
+                return file.getPath() + " (" + total + " bytes)";
+            }
+
+            int read = 0;
+            while(read < PREVIEW_BYTES && -1 != (count = in.read(buffer, read, PREVIEW_BYTES - read)))
+                read += count;
+
+            if(0 > length)
+            {
+                length = read;
+                // Count whatever's left without overwriting the preview
+                if(read == PREVIEW_BYTES)
+                    while(-1 != (count = in.read(buffer, PREVIEW_BYTES, buffer.length - PREVIEW_BYTES)))
+                        length += count;
+            }
+
+            final StringBuilder sb = new StringBuilder(2 + 2 * read + 20);
+            sb.append("0x");
+            for(int i=0; i<read; ++i)
+                sb.append(HEX[(buffer[i] >> 4) & 0xf]).append(HEX[buffer[i] & 0xf]);
+            if(length > read)
+                sb.append("...");
+
+            return sb.append(" (").append(length).append(1 == length ? " byte)" : " bytes)").toString();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Chooses a name for a new file in the LOB directory.
+     */
+    private File newFile(String label, String suffix)
+    {
+        final String name = label.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        File file;
+        do
+        {
+            file = new File(lobDir, String.format("%06d-%s%s", sequence.incrementAndGet(), name, suffix));
+        } while(file.exists());
+
+        return file;
+    }
+}
@@ -0,0 +1,370 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A large UPDATE or DELETE which is executed a piece at a time, so that it
+ * never holds locks on (or generates undo for) more than a limited number
+ * of rows at once. A statement is chunked by preceding it with a comment
+ * such as:
+ *
+ * <pre>
+ * -- @chunk size=10000 pause=100
+ * DELETE FROM log WHERE created &lt; '2018-01-01' LIMIT {limit};
+ *
+ * -- @chunk size=50000 range=log.id
+ * DELETE FROM log WHERE id &gt;= {start} AND id &lt; {end} AND created &lt; '2018-01-01';
+ * </pre>
+ *
+ * Without <code>range</code>, <code>{limit}</code> is replaced with the
+ * chunk size and the statement is executed until it affects no rows. With
+ * <code>range=table.column</code>, the statement is executed once for each
+ * range of <code>size</code> values of the (numeric) column between its
+ * minimum and maximum, with <code>{start}</code> and <code>{end}</code>
+ * replaced by the beginning (inclusive) and end (exclusive) of the range.
+ *
+ * Each chunk is committed before the next one starts, and
+ * <code>pause</code> milliseconds are waited between chunks to give other
+ * work a chance to run.
+ */
+class ChunkedStatement
+{
+    /**
+     * The comment which marks a statement as chunked.
+     */
+    static final String DIRECTIVE = "@chunk";
+
+    private static final long DEFAULT_SIZE = 10000;
+
+    private final String sql;
+    private final long size;
+    private final long pause;
+    private final String rangeTable;
+    private final String rangeColumn;
+
+    private ChunkedStatement(String sql, long size, long pause, String rangeTable, String rangeColumn)
+    {
+        this.sql = sql;
+        this.size = size;
+        this.pause = pause;
+        this.rangeTable = rangeTable;
+        this.rangeColumn = rangeColumn;
+    }
+
+    /**
+     * Returns <code>true</code> if a statement has a chunk directive.
+     */
+    static boolean isChunked(CharSequence statement)
+    {
+        return 0 <= indexOfDirective(statement.toString());
+    }
+
+    /**
+     * Parses a statement with a chunk directive.
+     *
+     * @param statement The statement, including the comments preceding it.
+     *
+     * @return The chunked statement, or <code>null</code> if the statement
+     *         has no chunk directive.
+     *
+     * @throws SQLException If the directive is invalid.
+     */
+    static ChunkedStatement parse(String statement)
+        throws SQLException
+    {
+        final int directive = indexOfDirective(statement);
+        if(0 > directive)
+            return null;
+
+        int lineEnd = statement.indexOf('\n', directive);
+        if(-1 == lineEnd)
+            lineEnd = statement.length();
+
+        long size = DEFAULT_SIZE;
+        long pause = 0;
+        String rangeTable = null;
+        String rangeColumn = null;
+
+        final String parameters = statement.substring(directive + DIRECTIVE.length(), lineEnd).trim();
+        if(0 < parameters.length())
+        {
+            for(String parameter : parameters.split("\\s+"))
+            {
+                final int equals = parameter.indexOf('=');
+                final String name = 0 > equals ? parameter : parameter.substring(0, equals);
+                final String value = 0 > equals ? "" : parameter.substring(equals + 1);
+
+                try
+                {
+                    if("size".equals(name))
+                        size = Long.parseLong(value);
+                    else if("pause".equals(name))
+                        pause = Long.parseLong(value);
+                    else if("range".equals(name) && 0 < value.lastIndexOf('.'))
+                    {
+                        rangeTable = value.substring(0, value.lastIndexOf('.'));
+                        rangeColumn = value.substring(value.lastIndexOf('.') + 1);
+                    }
+                    else
+                        throw new SQLException("Invalid " + DIRECTIVE + " parameter: " + parameter);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    throw new SQLException("Invalid " + DIRECTIVE + " parameter: " + parameter, nfe);
+                }
+            }
+        }
+
+        if(0 >= size || 0 > pause)
+            throw new SQLException("Invalid " + DIRECTIVE + " size or pause: " + parameters);
+
+        // Remove the directive, so the chunks aren't chunked themselves
+        final int lineStart = statement.lastIndexOf('\n', directive) + 1;
+        final String sql = statement.substring(0, lineStart) + statement.substring(Math.min(lineEnd + 1, statement.length()));
+
+        if(null == rangeTable && !sql.contains("{limit}"))
+            throw new SQLException(DIRECTIVE + " statement must contain {limit}, or {start} and {end} with range=table.column");
+        if(null != rangeTable && !(sql.contains("{start}") && sql.contains("{end}")))
+            throw new SQLException(DIRECTIVE + " statement with range=" + rangeTable + "." + rangeColumn + " must contain {start} and {end}");
+
+        return new ChunkedStatement(sql, size, pause, rangeTable, rangeColumn);
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the text of a single, typical chunk, e.g. to explain it.
+     */
+    String getSample()
+    {
+        if(null == rangeTable)
+            return sql.replace("{limit}", String.valueOf(size));
+        else
+            return sql.replace("{start}", "0").replace("{end}", String.valueOf(size));
+    }
+
+    /**
+     * Finds a chunk directive in a line comment.
+     */
+    private static int indexOfDirective(String statement)
+    {
+        int directive = statement.indexOf(DIRECTIVE);
+        while(0 <= directive)
+        {
+            // Must be the first thing in a -- comment
+            int i = directive - 1;
+            while(0 <= i && ' ' == statement.charAt(i))
+                --i;
+            if(0 < i && '-' == statement.charAt(i) && '-' == statement.charAt(i - 1))
+                return directive;
+
+            directive = statement.indexOf(DIRECTIVE, directive + 1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Executes the statement one chunk at a time, reporting progress after
+     * each chunk.
+     *
+     * @param conn The connection. If it is not in auto-commit mode, each
+     *             chunk is committed explicitly.
+     * @param out Where to report progress.
+     * @param options How to execute each chunk.
+     *
+     * @return The total time taken and rows affected by all chunks.
+     */
+    StatementMetrics execute(Connection conn, PrintStream out, ExecutionOptions options)
+        throws SQLException
+    {
+        final StatementMetrics total = new StatementMetrics();
+        total.setUpdateCount(0);
+
+        final PrintStream nowhere = new PrintStream(new NullOutputStream());
+        final long started = System.nanoTime();
+        final boolean commit = !conn.getAutoCommit();
+        final StatementMonitor monitor = options.monitor;
+
+        long start = 0;
+        long max = 0;
+        if(null != rangeTable)
+        {
+            final long[] range = getRange(conn, monitor);
+            if(null == range)
+            {
+                out.println("Query OK, 0 rows affected (" + rangeTable + " is empty)");
+                out.println();
+                return total;
+            }
+
+            start = range[0];
+            max = range[1];
+        }
+
+        long chunks = 0;
+        try
+        {
+            while(true)
+            {
+                // Cancelled while committing or pausing
+                if(Thread.currentThread().isInterrupted())
+                    throw new SQLException("Interrupted between chunks");
+
+                final String chunk;
+                if(null == rangeTable)
+                    chunk = sql.replace("{limit}", String.valueOf(size));
+                else
+                {
+                    if(start > max)
+                        break;
+
+                    chunk = sql.replace("{start}", String.valueOf(start)).replace("{end}", String.valueOf(start + size));
+                    start += size;
+                }
+
+                final StatementMetrics metrics = execute(chunk, chunks + 1, conn, out, nowhere, options, commit);
+
+                ++chunks;
+                total.add(metrics);
+
+                final long count = Math.max(0, metrics.getUpdateCount());
+                final double seconds = (System.nanoTime() - started) / 1e9;
+
+                out.println(String.format("-- Chunk %d: %d rows affected (%d total, %.0f rows/s)",
+                                          chunks, count, total.getUpdateCount(),
+                                          total.getUpdateCount() / Math.max(seconds, 0.001)));
+                out.flush();
+
+                // The statement can still be cancelled until the next chunk
+                if(null != monitor)
+                    monitor.pausing();
+
+                // Keep going until there's nothing left to do
+                if(null == rangeTable && 0 == count)
+                    break;
+
+                if(0 < pause)
+                {
+                    try
+                    {
+                        Thread.sleep(pause);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+
+                        throw new SQLException("Interrupted between chunks", ie);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if(null != monitor)
+                monitor.executed();
+        }
+
+        out.print("Query OK, ");
+        out.print(total.getUpdateCount());
+        out.print(" rows affected in ");
+        out.print(chunks);
+        out.print(1 == chunks ? " chunk (" : " chunks (");
+        out.print((System.nanoTime() - started) / 1000000);
+        out.println("ms)");
+        out.println();
+
+        return total;
+    }
+
+    /**
+     * Executes and commits a single chunk, retrying it after a transient
+     * failure if there is a retry policy. Earlier chunks have already been
+     * committed, so only this chunk needs to be repeated.
+     */
+    private static StatementMetrics execute(String chunk, long number, Connection conn,
+                                            PrintStream out, PrintStream results,
+                                            ExecutionOptions options, boolean commit)
+        throws SQLException
+    {
+        for(int attempt = 1; ; ++attempt)
+        {
+            try
+            {
+                final StatementMetrics metrics = SQLExecutor.executeSQL(chunk, conn, results, options);
+                if(commit)
+                    conn.commit();
+
+                return metrics;
+            }
+            catch (SQLException sqle)
+            {
+                if(null == options.retry || !options.retry.shouldRetry(sqle, attempt))
+                    throw sqle;
+
+                if(commit)
+                    conn.rollback();
+
+                if(!options.retry.backOff(sqle, attempt, "chunk " + number, out))
+                    throw sqle;
+            }
+        }
+    }
+
+    /**
+     * Gets the smallest and largest values of the range column.
+     *
+     * @param monitor The monitor for the statement, or <code>null</code>.
+     *
+     * @return The values, or <code>null</code> if the table is empty.
+     */
+    private long[] getRange(Connection conn, StatementMonitor monitor)
+        throws SQLException
+    {
+        Statement s = null;
+        ResultSet rs = null;
+        try
+        {
+            s = conn.createStatement();
+
+            final String query = "SELECT MIN(" + rangeColumn + "), MAX(" + rangeColumn + ") FROM " + rangeTable;
+            if(null == monitor)
+                rs = s.executeQuery(query);
+            else
+            {
+                monitor.executing(s);
+                try
+                {
+                    rs = s.executeQuery(query);
+                }
+                finally
+                {
+                    monitor.executed();
+                }
+            }
+
+            if(!rs.next())
+                return null;
+
+            final long min = rs.getLong(1);
+            if(rs.wasNull())
+                return null;
+
+            return new long[] { min, rs.getLong(2) };
+        }
+        finally
+        {
+            if(null != rs) try { rs.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+            if(null != s) try { s.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+/**
+ * Replaces {@link System#out} with a stream which collects output in a
+ * large buffer instead of writing every line to the terminal as soon as it
+ * is printed, which matters when the terminal is at the other end of a
+ * slow connection.
+ *
+ * Standard output must therefore be flushed explicitly whenever the user
+ * needs to see it: before prompting, and after each statement. It is also
+ * flushed before anything is written to {@link System#err}, so that errors
+ * still appear after the output which led up to them, and when the JVM
+ * exits.
+ */
+class ConsoleStreams
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Installs the buffered standard output, and a standard error which
+     * flushes it.
+     */
+    static void install()
+        throws UnsupportedEncodingException
+    {
+        // Keep whatever encoding the JVM chose for the terminal
+        final String encoding = System.getProperty("stdout.encoding",
+                                                   System.getProperty("sun.stdout.encoding",
+                                                                      Charset.defaultCharset().name()));
+
+        final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_SIZE),
+                                                false, encoding);
+
+        final PrintStream err = System.err;
+
+        System.setOut(out);
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b)
+            {
+                out.flush();
+                err.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                out.flush();
+                err.write(b, off, len);
+            }
+
+            @Override
+            public void flush()
+            {
+                err.flush();
+            }
+        }, true, encoding));
+
+        Runtime.getRuntime().addShutdownHook(new Thread("flush-stdout") {
+            @Override
+            public void run()
+            {
+                out.flush();
+            }
+        });
+    }
+}
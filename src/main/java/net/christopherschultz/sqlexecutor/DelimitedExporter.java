@@ -0,0 +1,122 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes rows as comma-separated (RFC 4180) or tab-separated values.
+ *
+ * CSV values containing commas, quotes or line breaks are quoted, with
+ * quotes doubled; <code>NULL</code> is an empty field and an empty string
+ * is <code>""</code>. TSV values escape backslashes, tabs and line breaks
+ * with backslashes and <code>NULL</code> is <code>\N</code>, as in
+ * PostgreSQL's COPY text format. Each result set begins with a header row
+ * of column labels.
+ */
+class DelimitedExporter
+    extends ResultExporter
+{
+    private final boolean tabs;
+    private final char delimiter;
+    private final String lineEnd;
+
+    DelimitedExporter(Writer out, boolean tabs)
+    {
+        super(out);
+
+        this.tabs = tabs;
+        this.delimiter = tabs ? '\t' : ',';
+        this.lineEnd = tabs ? "\n" : "\r\n";
+    }
+
+    @Override
+    void header(String[] labels, int[] types)
+        throws IOException
+    {
+        row(labels);
+    }
+
+    @Override
+    void row(String[] values)
+        throws IOException
+    {
+        for(int i=0; i<values.length; ++i)
+        {
+            if(0 < i)
+                out.write(delimiter);
+
+            if(tabs)
+                writeTSV(values[i]);
+            else
+                writeCSV(values[i]);
+        }
+        out.write(lineEnd);
+    }
+
+    private void writeCSV(String value)
+        throws IOException
+    {
+        if(null == value)
+            return;
+
+        boolean quote = 0 == value.length();
+        for(int i=0; i<value.length() && !quote; ++i)
+        {
+            final char c = value.charAt(i);
+
+            quote = ',' == c || '"' == c || '\n' == c || '\r' == c;
+        }
+
+        if(!quote)
+        {
+            out.write(value);
+            return;
+        }
+
+        out.write('"');
+        int start = 0;
+        for(int i=0; i<value.length(); ++i)
+        {
+            if('"' == value.charAt(i))
+            {
+                // Write everything up to and including the quote, then
+                // start the next run with the same quote to double it
+                out.write(value, start, i + 1 - start);
+                start = i;
+            }
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
+    }
+
+    private void writeTSV(String value)
+        throws IOException
+    {
+        if(null == value)
+        {
+            out.write("\\N");
+            return;
+        }
+
+        int start = 0;
+        for(int i=0; i<value.length(); ++i)
+        {
+            final char c = value.charAt(i);
+            final String escape;
+
+            switch(c)
+            {
+                case '\\': escape = "\\\\"; break;
+                case '\t': escape = "\\t"; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                default: continue;
+            }
+
+            out.write(value, start, i - start);
+            out.write(escape);
+            start = i + 1;
+        }
+        out.write(value, start, value.length() - start);
+    }
+}
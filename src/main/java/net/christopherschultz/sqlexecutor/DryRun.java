@@ -0,0 +1,482 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Estimates the cost of every statement in a script using the database's
+ * <code>EXPLAIN</code>, without executing any of them, and reports the
+ * statements ranked from most to least expensive.
+ *
+ * MySQL and MariaDB return their plans as a table, in which a full scan
+ * has type <code>ALL</code>. Everything else is assumed to return its
+ * plan as text: PostgreSQL's <code>cost=</code> and <code>rows=</code>
+ * estimates are picked up from the top of the plan, and full scans are
+ * recognized from PostgreSQL (<code>Seq Scan on</code>), H2
+ * (<code>tableScan</code>) and SQLite (<code>SCAN</code>).
+ *
+ * Full scans and DDL are flagged when the table involved is estimated to
+ * have at least a given number of rows.
+ */
+class DryRun
+{
+    // First keywords of statements which can be explained
+    private static final String[] EXPLAINABLE = {
+        "SELECT", "WITH", "INSERT", "UPDATE", "DELETE", "MERGE", "REPLACE", "VALUES", "TABLE"
+    };
+
+    private static final Pattern COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)\\s+rows=([0-9]+)");
+
+    private static final Pattern[] FULL_SCANS = {
+        Pattern.compile("Seq Scan on ([^\\s(]+)"),
+        Pattern.compile("([^\\s/*]+)\\.tableScan"),
+        Pattern.compile("^\\s*SCAN (?:TABLE )?([^\\s(]+)(?!.*USING)"),
+    };
+
+    /**
+     * The estimated cost of a single statement.
+     */
+    static class Estimate
+    {
+        final ScriptStatement statement;
+
+        // -1 when unknown
+        double cost = -1;
+        long rows = -1;
+
+        final ArrayList<String> notes = new ArrayList<String>(1);
+        boolean explained;
+        boolean flagged;
+
+        Estimate(ScriptStatement statement)
+        {
+            this.statement = statement;
+        }
+    }
+
+    // Most expensive first, then in script order
+    private static final Comparator<Estimate> MOST_EXPENSIVE_FIRST = new Comparator<Estimate>() {
+        @Override
+        public int compare(Estimate a, Estimate b)
+        {
+            if(a.cost != b.cost)
+                return a.cost > b.cost ? -1 : 1;
+            if(a.rows != b.rows)
+                return a.rows > b.rows ? -1 : 1;
+            if(a.flagged != b.flagged)
+                return a.flagged ? -1 : 1;
+
+            final long lineA = a.statement.getStartLine();
+            final long lineB = b.statement.getStartLine();
+
+            return lineA < lineB ? -1 : (lineA == lineB ? 0 : 1);
+        }
+    };
+
+    private final Connection conn;
+    private final long largeTable;
+    private final boolean mysql;
+    private final String sizeQuery;
+
+    // Estimated number of rows in each table, or -1 if unknown
+    private final HashMap<String, Long> tableSizes = new HashMap<String, Long>();
+
+    /**
+     * Creates a new DryRun.
+     *
+     * @param conn The connection used to explain statements.
+     * @param largeTable The estimated number of rows at which a table is
+     *                   considered large.
+     */
+    DryRun(Connection conn, long largeTable)
+        throws SQLException
+    {
+        this.conn = conn;
+        this.largeTable = largeTable;
+
+        final String product = conn.getMetaData().getDatabaseProductName();
+
+        mysql = "MySQL".equalsIgnoreCase(product) || "MariaDB".equalsIgnoreCase(product);
+
+        if("PostgreSQL".equalsIgnoreCase(product))
+            sizeQuery = "SELECT reltuples FROM pg_class WHERE relname = ? AND relkind IN ('r', 'p', 'm')";
+        else if(mysql)
+            sizeQuery = "SELECT table_rows FROM information_schema.tables WHERE table_name = ? AND table_schema = DATABASE()";
+        else if("H2".equalsIgnoreCase(product))
+            sizeQuery = "SELECT row_count_estimate FROM information_schema.tables WHERE table_name = ?";
+        else
+            sizeQuery = null;
+    }
+
+    /**
+     * Explains every remaining statement in a script and prints a report.
+     *
+     * @return The number of statements which could not be explained.
+     */
+    int run(StatementReader in, String script, PrintStream out)
+        throws IOException
+    {
+        final ArrayList<Estimate> estimates = new ArrayList<Estimate>();
+        int unexplained = 0;
+        int flagged = 0;
+
+        ScriptStatement statement;
+        while(null != (statement = in.next()))
+        {
+            if(SQLExecutor.queryIsBlank(statement.getText()))
+                continue;
+
+            final Estimate estimate = explain(statement);
+
+            if(!estimate.explained)
+                ++unexplained;
+            if(estimate.flagged)
+                ++flagged;
+
+            estimates.add(estimate);
+        }
+
+        Collections.sort(estimates, MOST_EXPENSIVE_FIRST);
+
+        final String[] labels = { "Rank", "Line", "Cost", "Rows", "Notes", "Statement" };
+        final ArrayList<String[]> rows = new ArrayList<String[]>(estimates.size());
+        final int[] widths = new int[labels.length];
+        for(int i=0; i<labels.length; ++i)
+            widths[i] = labels[i].length();
+
+        int rank = 0;
+        for(Estimate estimate : estimates)
+        {
+            final StringBuilder notes = new StringBuilder();
+            for(String note : estimate.notes)
+            {
+                if(0 < notes.length())
+                    notes.append("; ");
+                notes.append(note);
+            }
+
+            final String[] row = {
+                String.valueOf(++rank),
+                String.valueOf(estimate.statement.getStartLine()),
+                0 > estimate.cost ? "" : String.format("%.2f", estimate.cost),
+                0 > estimate.rows ? "" : String.valueOf(estimate.rows),
+                notes.toString(),
+                RunMetrics.abbreviate(stripComments(estimate.statement.getText()))
+            };
+
+            for(int i=0; i<row.length; ++i)
+                widths[i] = Math.max(widths[i], row[i].length());
+
+            rows.add(row);
+        }
+
+        widths[4] = Math.min(widths[4], 60);
+
+        out.println("Dry run of " + script + ": " + estimates.size() + " statements, "
+                    + flagged + " flagged, " + unexplained + " not explained");
+
+        final TableRenderer table = new TableRenderer(out, widths, TableRenderer.WRAP);
+        table.separator();
+        for(String label : labels)
+            table.labelCell(label);
+        table.endRow();
+        table.separator();
+
+        for(String[] row : rows)
+        {
+            table.cell(row[0]);
+            table.cell(row[1]);
+            table.cell(row[2]);
+            table.cell(row[3]);
+            table.labelCell(row[4]);
+            table.labelCell(row[5]);
+            table.endRow();
+        }
+
+        table.separator();
+        table.flush();
+        out.println();
+
+        return unexplained;
+    }
+
+    /**
+     * Explains a single statement.
+     */
+    Estimate explain(ScriptStatement statement)
+    {
+        final Estimate estimate = new Estimate(statement);
+
+        String sql = stripComments(statement.getText());
+
+        try
+        {
+            final ChunkedStatement chunked = ChunkedStatement.parse(statement.getText());
+            if(null != chunked)
+            {
+                sql = stripComments(chunked.getSample());
+                estimate.notes.add("one chunk of " + chunked.getSize());
+            }
+        }
+        catch (SQLException sqle)
+        {
+            estimate.notes.add(sqle.getMessage());
+            return estimate;
+        }
+
+        if(!isExplainable(sql))
+        {
+            // DDL can't be explained, but can still rewrite or lock a
+            // large table
+            final TableAccess access = TableAccess.analyze(sql);
+            if(null != access)
+                for(String table : access.getWrites())
+                    flagIfLarge(estimate, "DDL on ", table, -1);
+
+            if(!estimate.flagged)
+                estimate.notes.add("not explainable");
+
+            return estimate;
+        }
+
+        Statement s = null;
+        ResultSet rs = null;
+        try
+        {
+            s = conn.createStatement();
+            rs = s.executeQuery("EXPLAIN " + sql);
+
+            if(mysql)
+                readTabularPlan(rs, estimate);
+            else
+                readTextPlan(rs, estimate);
+
+            estimate.explained = true;
+        }
+        catch (SQLException sqle)
+        {
+            estimate.notes.add("not explained: " + firstLine(sqle.getMessage()));
+        }
+        finally
+        {
+            if(null != rs) try { rs.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+            if(null != s) try { s.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Reads a MySQL-style plan: one row per table, with the number of
+     * rows examined in each.
+     */
+    private void readTabularPlan(ResultSet rs, Estimate estimate)
+        throws SQLException
+    {
+        final int table = rs.findColumn("table");
+        final int type = rs.findColumn("type");
+        final int rowCount = rs.findColumn("rows");
+
+        // Joins examine the product of the rows examined in each table
+        long rows = -1;
+        while(rs.next())
+        {
+            final long examined = rs.getLong(rowCount);
+            if(rs.wasNull())
+                continue;
+
+            rows = 0 > rows ? examined : rows * Math.max(examined, 1);
+
+            if("ALL".equalsIgnoreCase(rs.getString(type)))
+                flagIfLarge(estimate, "full scan of ", rs.getString(table), examined);
+        }
+
+        estimate.rows = rows;
+    }
+
+    /**
+     * Reads a plan made up of lines of text.
+     */
+    private void readTextPlan(ResultSet rs, Estimate estimate)
+        throws SQLException
+    {
+        final int columnCount = rs.getMetaData().getColumnCount();
+        final ArrayList<String> lines = new ArrayList<String>();
+
+        while(rs.next())
+            for(int i=1; i<=columnCount; ++i)
+            {
+                final String value = rs.getString(i);
+                if(null != value)
+                    for(String line : value.split("\r?\n"))
+                        lines.add(line);
+            }
+
+        boolean top = true;
+        for(String line : lines)
+        {
+            final Matcher cost = COST.matcher(line);
+            final boolean costed = cost.find();
+            final long lineRows = costed ? Long.parseLong(cost.group(2)) : -1;
+
+            if(costed)
+            {
+                // The top of the plan has the total cost, but a
+                // modification reports 0 rows: the node below it has the
+                // number of rows it'll affect.
+                if(top)
+                {
+                    estimate.cost = Double.parseDouble(cost.group(1));
+                    estimate.rows = lineRows;
+                    top = false;
+                }
+                else if(0 == estimate.rows)
+                    estimate.rows = lineRows;
+            }
+
+            for(Pattern pattern : FULL_SCANS)
+            {
+                final Matcher scan = pattern.matcher(line);
+                if(scan.find())
+                    flagIfLarge(estimate, "full scan of ", scan.group(1), lineRows);
+            }
+        }
+    }
+
+    /**
+     * Adds a note if a table is large.
+     *
+     * @param rows The number of rows in the table according to the plan,
+     *             used if the table's size can't be looked up, or -1.
+     */
+    private void flagIfLarge(Estimate estimate, String what, String table, long rows)
+    {
+        final long size = getTableSize(table);
+        if(0 <= size)
+            rows = size;
+
+        final String note = what + table + " (~" + rows + " rows)";
+        if(rows >= largeTable && !estimate.notes.contains(note))
+        {
+            estimate.notes.add(note);
+            estimate.flagged = true;
+        }
+    }
+
+    /**
+     * Gets the estimated number of rows in a table, from the database's
+     * statistics.
+     *
+     * @return The number of rows, or -1 if unknown.
+     */
+    private long getTableSize(String table)
+    {
+        // Remove any schema and quotes
+        final int dot = table.lastIndexOf('.');
+        if(0 <= dot)
+            table = table.substring(dot + 1);
+        table = table.replaceAll("[\"`\\[\\]]", "");
+
+        Long size = tableSizes.get(table);
+        if(null == size)
+        {
+            size = Long.valueOf(lookUpTableSize(table));
+            tableSizes.put(table, size);
+        }
+
+        return size.longValue();
+    }
+
+    private long lookUpTableSize(String table)
+    {
+        ResultSet rs = null;
+        PreparedStatement ps = null;
+        try
+        {
+            if(null != sizeQuery)
+            {
+                ps = conn.prepareStatement(sizeQuery);
+                ps.setString(1, table);
+                rs = ps.executeQuery();
+            }
+            else
+                rs = conn.getMetaData().getIndexInfo(null, null, table, false, true);
+
+            while(rs.next())
+            {
+                if(null != sizeQuery)
+                {
+                    final long rows = rs.getLong(1);
+                    return rs.wasNull() ? -1 : rows;
+                }
+
+                if(DatabaseMetaData.tableIndexStatistic == rs.getShort("TYPE"))
+                    return rs.getLong("CARDINALITY");
+            }
+        }
+        catch (SQLException sqle)
+        {
+            // Statistics aren't available: fall back to the plan's estimate
+        }
+        finally
+        {
+            if(null != rs) try { rs.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+            if(null != ps) try { ps.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+        }
+
+        return -1;
+    }
+
+    private static boolean isExplainable(String sql)
+    {
+        int end = 0;
+        while(end < sql.length() && Character.isLetter(sql.charAt(end)))
+            ++end;
+
+        final String keyword = sql.substring(0, end);
+        for(String explainable : EXPLAINABLE)
+            if(explainable.equalsIgnoreCase(keyword))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Removes leading comments and any trailing semicolon.
+     */
+    private static String stripComments(String sql)
+    {
+        sql = sql.substring(StatementBatch.skipWhitespaceAndComments(sql, 0)).trim();
+
+        while(sql.endsWith(";"))
+            sql = sql.substring(0, sql.length() - 1).trim();
+
+        return sql;
+    }
+
+    private static String firstLine(String message)
+    {
+        if(null == message)
+            return "";
+
+        final int newline = message.indexOf('\n');
+
+        return 0 > newline ? message.trim() : message.substring(0, newline).trim();
+    }
+}
@@ -0,0 +1,279 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only record of every statement executed, skipped or failed
+ * while running a script, so that a run which is interrupted for any
+ * reason can be resumed exactly where it left off.
+ *
+ * Each statement is recorded as a single tab-separated line:
+ *
+ * <pre>
+ * status ordinal start-offset end-offset start-line start-column end-line end-column hash update-count duration-micros
+ * </pre>
+ *
+ * where <i>status</i> is one of <code>X</code> (executed),
+ * <code>S</code> (skipped) or <code>F</code> (failed) and <i>hash</i> is
+ * a hash of the statement's text used to make sure the script hasn't
+ * changed before resuming. Unknown values are recorded as -1.
+ *
+ * Every record is written to the file immediately, so nothing is lost if
+ * the process is killed, but the file is only forced to disk every
+ * {@link #SYNC_RECORDS} records or {@link #SYNC_INTERVAL} milliseconds
+ * so that journaling costs almost nothing even at tens of thousands of
+ * statements per second.
+ *
+ * This class is not thread-safe.
+ */
+class ExecutionJournal
+{
+    static final char EXECUTED = 'X';
+    static final char SKIPPED = 'S';
+    static final char FAILED = 'F';
+
+    /**
+     * The maximum number of records written between syncs.
+     */
+    static final int SYNC_RECORDS = 1000;
+
+    /**
+     * The maximum time between syncs, in milliseconds.
+     */
+    static final long SYNC_INTERVAL = 1000;
+
+    /**
+     * A single record read from a journal.
+     */
+    static class Record
+    {
+        final char status;
+        final ScriptStatement statement;
+        final int hash;
+        final long updateCount;
+        final long durationMicros;
+
+        Record(char status, ScriptStatement statement, int hash, long updateCount, long durationMicros)
+        {
+            this.status = status;
+            this.statement = statement;
+            this.hash = hash;
+            this.updateCount = updateCount;
+            this.durationMicros = durationMicros;
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+
+    // Re-used for every record
+    private final StringBuilder record = new StringBuilder(128);
+    private final ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+
+    private ExecutionJournal(File file, FileOutputStream out)
+    {
+        this.file = file;
+        this.out = out;
+        this.channel = out.getChannel();
+    }
+
+    /**
+     * Opens a journal, appending to it if it already exists.
+     */
+    static ExecutionJournal open(File file)
+        throws IOException
+    {
+        return new ExecutionJournal(file, new FileOutputStream(file, true));
+    }
+
+    /**
+     * Gets the default journal file for a script.
+     */
+    static File getJournalFile(File script)
+    {
+        return new File(script.getPath() + ".journal");
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Records a statement that was executed successfully.
+     *
+     * @param statement The statement.
+     * @param updateCount The number of rows affected, or -1 if unknown.
+     * @param elapsed The time taken to execute the statement, in
+     *                nanoseconds.
+     */
+    void executed(ScriptStatement statement, long updateCount, long elapsed)
+        throws IOException
+    {
+        write(EXECUTED, statement, updateCount, elapsed / 1000);
+    }
+
+    /**
+     * Records a statement that was skipped.
+     */
+    void skipped(ScriptStatement statement)
+        throws IOException
+    {
+        write(SKIPPED, statement, -1, -1);
+    }
+
+    /**
+     * Records a statement that failed.
+     *
+     * @param statement The statement.
+     * @param elapsed The time taken before the statement failed, in
+     *                nanoseconds.
+     */
+    void failed(ScriptStatement statement, long elapsed)
+        throws IOException
+    {
+        write(FAILED, statement, -1, elapsed / 1000);
+    }
+
+    /**
+     * Forces all records to disk.
+     */
+    void sync()
+        throws IOException
+    {
+        channel.force(false);
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    void close()
+        throws IOException
+    {
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void write(char status, ScriptStatement statement, long updateCount, long durationMicros)
+        throws IOException
+    {
+        record.setLength(0);
+        record.append(status)
+            .append('\t').append(statement.getOrdinal())
+            .append('\t').append(statement.getStartOffset())
+            .append('\t').append(statement.getEndOffset())
+            .append('\t').append(statement.getStartLine())
+            .append('\t').append(statement.getStartColumn())
+            .append('\t').append(statement.getEndLine())
+            .append('\t').append(statement.getEndColumn())
+            .append('\t').append(statement.getText().hashCode())
+            .append('\t').append(updateCount)
+            .append('\t').append(durationMicros)
+            .append('\n');
+
+        // Records are pure ASCII, so there is no need for an encoder
+        buffer.clear();
+        for(int i=0; i<record.length(); ++i)
+            buffer.put((byte)record.charAt(i));
+        buffer.flip();
+
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+
+        if(++unsynced >= SYNC_RECORDS
+           || System.currentTimeMillis() - lastSync >= SYNC_INTERVAL)
+            sync();
+    }
+
+    /**
+     * Reads the last complete record from a journal. Only the end of the
+     * file is read, so this is fast no matter how large the journal is.
+     *
+     * @param file The journal file.
+     *
+     * @return The last record, or <code>null</code> if the journal is
+     *         empty or does not exist.
+     *
+     * @throws IOException If the journal cannot be read or is corrupt.
+     */
+    static Record readLast(File file)
+        throws IOException
+    {
+        if(!file.exists())
+            return null;
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            final long length = raf.length();
+            final int size = (int)Math.min(length, 4096);
+            final byte[] tail = new byte[size];
+
+            raf.seek(length - size);
+            raf.readFully(tail);
+
+            // Ignore any partial record at the very end of the file
+            int end = size - 1;
+            while(0 <= end && '\n' != tail[end])
+                --end;
+            if(0 > end)
+                return null;
+
+            int start = end - 1;
+            while(0 <= start && '\n' != tail[start])
+                --start;
+            ++start;
+
+            return parse(new String(tail, start, end - start, "US-ASCII"));
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static Record parse(String line)
+        throws IOException
+    {
+        final String[] fields = line.split("\t");
+
+        if(11 != fields.length || 1 != fields[0].length())
+            throw new IOException("Invalid journal record: " + line);
+
+        try
+        {
+            final ScriptStatement statement = new ScriptStatement("",
+                                                                  Long.parseLong(fields[4]),
+                                                                  Long.parseLong(fields[5]),
+                                                                  Long.parseLong(fields[6]),
+                                                                  Long.parseLong(fields[7]),
+                                                                  Long.parseLong(fields[2]),
+                                                                  Long.parseLong(fields[3]),
+                                                                  Long.parseLong(fields[1]));
+
+            return new Record(fields[0].charAt(0),
+                              statement,
+                              Integer.parseInt(fields[8]),
+                              Long.parseLong(fields[9]),
+                              Long.parseLong(fields[10]));
+        }
+        catch (NumberFormatException nfe)
+        {
+            throw new IOException("Invalid journal record: " + line, nfe);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Settings that control how individual statements are executed and how
+ * their results are fetched and displayed.
+ */
+class ExecutionOptions
+{
+    /**
+     * The number of rows the driver should fetch from the server at a
+     * time, or 0 to use the driver's default. Some drivers (e.g.
+     * PostgreSQL) will only use a cursor when auto-commit is disabled.
+     */
+    int fetchSize;
+
+    /**
+     * The maximum number of rows to fetch from any result set, or 0 for
+     * no limit.
+     */
+    int maxRows;
+
+    /**
+     * The number of seconds the driver should wait for a statement to
+     * execute before cancelling it, or 0 for no limit.
+     */
+    int queryTimeout;
+
+    /**
+     * The number of rows to display before pausing for the user, or 0
+     * to display all rows without pausing.
+     */
+    int pageSize;
+
+    /**
+     * Where to read "next page" responses from. When <code>null</code>,
+     * result sets are never paged.
+     */
+    BufferedReader pageInput;
+
+    /**
+     * When not <code>null</code>, results are being shown through this
+     * pager, and the rest of a result set isn't fetched once the user has
+     * quit it.
+     */
+    Pager pager;
+
+    /**
+     * The number of rows to read before displaying a table, so that each
+     * column can be sized to fit the values actually in it, or 0 to size
+     * columns using the display sizes reported by the driver. Values in
+     * later rows which don't fit are truncated (or wrapped).
+     */
+    int sampleRows = 100;
+
+    /**
+     * The maximum width of any column in a table.
+     */
+    int maxWidth = 4096;
+
+    /**
+     * Whether to wrap values too wide for their column onto following
+     * lines instead of truncating them.
+     */
+    boolean wrap;
+
+    /**
+     * The number of characters of a CLOB or other long text value to
+     * display, or 0 to display entire values. When not 0, binary values are
+     * displayed as a short hex preview and their length.
+     */
+    int lobLimit = 4096;
+
+    /**
+     * When not <code>null</code>, binary and long text values are written
+     * to files in this directory instead of being displayed or exported.
+     */
+    File lobDir;
+
+    /**
+     * When not <code>null</code>, statements which fail for transient
+     * reasons such as deadlocks are retried according to this policy.
+     */
+    RetryPolicy retry;
+
+    /**
+     * When not <code>null</code>, literals in statements are replaced with
+     * parameters and the resulting PreparedStatements are re-used from
+     * this cache.
+     */
+    StatementCache statementCache;
+
+    /**
+     * When not <code>null</code>, result sets are written here instead of
+     * being displayed as tables.
+     */
+    ResultExporter exporter;
+
+    /**
+     * When not <code>null</code>, keeps track of the statement currently
+     * being executed so it can be cancelled from another thread.
+     */
+    volatile StatementMonitor monitor;
+
+    /**
+     * Whether a transaction has been started with a literal
+     * <code>BEGIN</code> and not yet ended. The driver is still in
+     * auto-commit mode, but each statement is part of the transaction.
+     */
+    boolean inTransaction;
+
+    /**
+     * Creates a copy of these options, e.g. for use on another connection.
+     * The retry policy is shared. The statement cache, exporter, monitor,
+     * pager and transaction belong to a single connection and are not
+     * copied.
+     */
+    ExecutionOptions copy()
+    {
+        final ExecutionOptions copy = new ExecutionOptions();
+
+        copy.fetchSize = fetchSize;
+        copy.maxRows = maxRows;
+        copy.queryTimeout = queryTimeout;
+        copy.pageSize = pageSize;
+        copy.pageInput = pageInput;
+        copy.sampleRows = sampleRows;
+        copy.maxWidth = maxWidth;
+        copy.wrap = wrap;
+        copy.lobLimit = lobLimit;
+        copy.lobDir = lobDir;
+        copy.retry = retry;
+
+        return copy;
+    }
+
+    /**
+     * Returns <code>true</code> if each statement executed on a
+     * connection is committed on its own, i.e. the connection is in
+     * auto-commit mode and no transaction has been started with a literal
+     * <code>BEGIN</code>.
+     */
+    boolean isAutoCommit(Connection conn)
+        throws SQLException
+    {
+        return !inTransaction && conn.getAutoCommit();
+    }
+}
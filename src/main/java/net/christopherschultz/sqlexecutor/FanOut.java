@@ -0,0 +1,728 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a single script against many databases ("targets") at once, e.g.
+ * one per tenant or shard.
+ *
+ * Each target gets its own connection, journal and log, and reads the
+ * script for itself as it goes, so that a script of any size can be run
+ * without holding it in memory. A fixed number of targets run in
+ * parallel, so the whole run takes about as long as the slowest target
+ * rather than the sum of them all. Targets always run unattended, exactly
+ * as with <code>--batch</code>.
+ */
+class FanOut
+{
+    /**
+     * The placeholder in a URL template which is replaced by each shard.
+     */
+    static final String SHARD = "{shard}";
+
+    /**
+     * A database to run the script against.
+     */
+    static class Target
+    {
+        final String name;
+        final String url;
+
+        Target(String name, String url)
+        {
+            this.name = name;
+            this.url = url;
+        }
+    }
+
+    /**
+     * What happened when the script was run against a target.
+     */
+    static class Outcome
+    {
+        final Target target;
+
+        // The exit status --batch would have used for this target alone
+        int exitStatus;
+        long executed;
+        long failed;
+        long elapsed;
+
+        // The first statement that failed and why, or why the target
+        // couldn't be used at all
+        ScriptStatement failure;
+        String error;
+
+        Outcome(Target target)
+        {
+            this.target = target;
+        }
+    }
+
+    private static final int ERROR_WIDTH = 60;
+
+    private final Driver driver;
+    private final Properties props;
+    private final String script;
+    private final Charset charset;
+    private final boolean mysql;
+    private final ScriptStatement start;
+    private final ExecutionOptions options;
+    private final PrintStream progress;
+
+    /**
+     * What to do when a statement fails: stop, skip or continue.
+     */
+    String onError = "stop";
+
+    /**
+     * The number of data-modification statements to send in each batch,
+     * or 0 to send each statement on its own.
+     */
+    int batchSize;
+
+    /**
+     * The size of each target's statement cache, or 0 to execute
+     * statements as written.
+     */
+    int statementCacheSize;
+
+    /**
+     * The journal file name; each target's journal has the target's name
+     * appended to it. When <code>null</code>, no journals are kept.
+     */
+    File journal;
+
+    /**
+     * Whether to resume each target after the last statement recorded in
+     * its journal.
+     */
+    boolean resume;
+
+    /**
+     * Where to write each target's results and errors, or
+     * <code>null</code> to discard them.
+     */
+    File logDir;
+
+    /**
+     * When not <code>null</code>, collects timings from every target.
+     */
+    RunMetrics metrics;
+
+    // Guarded by progress
+    private int finished;
+
+    /**
+     * Creates a new FanOut.
+     *
+     * @param driver The JDBC driver used to connect to every target.
+     * @param props The connection properties, e.g. user and password.
+     * @param script The script file name.
+     * @param charset The character encoding of the script.
+     * @param mysql Whether to split the script using MySQL's syntax from
+     *              the first statement.
+     * @param start The first statement to execute, or <code>null</code>
+     *              if there are none.
+     * @param options How to execute statements. Each target uses its own
+     *                copy.
+     * @param progress Where to report progress and the final summary.
+     */
+    FanOut(Driver driver, Properties props, String script, Charset charset, boolean mysql,
+           ScriptStatement start, ExecutionOptions options, PrintStream progress)
+    {
+        this.driver = driver;
+        this.props = props;
+        this.script = script;
+        this.charset = charset;
+        this.mysql = mysql;
+        this.start = start;
+        this.options = options;
+        this.progress = progress;
+    }
+
+    /**
+     * Reads the targets from a file containing one JDBC URL per line,
+     * optionally preceded by a name for the target and whitespace. Blank
+     * lines and lines starting with <code>#</code> are ignored. Unnamed
+     * targets are named after their position in the file.
+     */
+    static List<Target> readTargets(File file)
+        throws IOException
+    {
+        final ArrayList<Target> targets = new ArrayList<Target>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            while(null != (line = in.readLine()))
+            {
+                line = line.trim();
+
+                if(0 == line.length() || line.startsWith("#"))
+                    continue;
+
+                int space = 0;
+                while(space < line.length() && !Character.isWhitespace(line.charAt(space)))
+                    ++space;
+
+                if(space < line.length())
+                    targets.add(new Target(line.substring(0, space), line.substring(space).trim()));
+                else
+                    targets.add(new Target("target-" + (targets.size() + 1), line));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return checkNames(targets);
+    }
+
+    /**
+     * Creates a target for each shard by replacing {@link #SHARD} in a URL
+     * template. Each target is named after its shard.
+     *
+     * @param template The URL template.
+     * @param shards A comma-separated list of shards.
+     */
+    static List<Target> expand(String template, String shards)
+    {
+        if(!template.contains(SHARD))
+            throw new IllegalArgumentException("URL template does not contain " + SHARD + ": " + template);
+
+        final ArrayList<Target> targets = new ArrayList<Target>();
+        for(String shard : shards.split(","))
+        {
+            shard = shard.trim();
+
+            if(0 < shard.length())
+                targets.add(new Target(shard, template.replace(SHARD, shard)));
+        }
+
+        return checkNames(targets);
+    }
+
+    /**
+     * Makes sure there is at least one target and that every target's
+     * name is unique and can be used in a file name.
+     */
+    private static List<Target> checkNames(List<Target> targets)
+    {
+        if(targets.isEmpty())
+            throw new IllegalArgumentException("No targets");
+
+        final HashSet<String> names = new HashSet<String>();
+        for(Target target : targets)
+        {
+            for(int i=0; i<target.name.length(); ++i)
+            {
+                final char c = target.name.charAt(i);
+
+                if(!(Character.isLetterOrDigit(c) || '-' == c || '_' == c || '.' == c))
+                    throw new IllegalArgumentException("Invalid target name: " + target.name);
+            }
+
+            if(!names.add(target.name))
+                throw new IllegalArgumentException("Duplicate target name: " + target.name);
+        }
+
+        return targets;
+    }
+
+    /**
+     * Runs the script against every target and prints a summary.
+     *
+     * @param targets The targets.
+     * @param parallel The maximum number of targets to run at once.
+     *
+     * @return The exit status: that of the first target which did not
+     *         finish, otherwise 4 if any target skipped failed statements,
+     *         otherwise 0.
+     */
+    int run(List<Target> targets, int parallel)
+    {
+        final long started = System.nanoTime();
+        final int count = targets.size();
+
+        if(null != logDir && !logDir.isDirectory() && !logDir.mkdirs())
+        {
+            System.err.println("Could not create log directory " + logDir);
+            return 1;
+        }
+
+        parallel = Math.min(parallel, count);
+
+        progress.println("Executing script '" + script + "' against " + count + " targets, " + parallel + " at a time");
+        progress.flush();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallel, WorkerThreads.factory("target"));
+        final ArrayList<Outcome> outcomes = new ArrayList<Outcome>(count);
+        try
+        {
+            final ArrayList<Future<Outcome>> futures = new ArrayList<Future<Outcome>>(count);
+            for(final Target target : targets)
+            {
+                futures.add(executor.submit(new Callable<Outcome>() {
+                    @Override
+                    public Outcome call()
+                    {
+                        return run(target, count);
+                    }
+                }));
+            }
+
+            for(int i=0; i<count; ++i)
+            {
+                try
+                {
+                    outcomes.add(futures.get(i).get());
+                }
+                catch (ExecutionException ee)
+                {
+                    // Something unexpected, e.g. a bug in the driver
+                    final Outcome outcome = new Outcome(targets.get(i));
+                    outcome.exitStatus = 1;
+                    outcome.error = String.valueOf(ee.getCause());
+                    outcomes.add(outcome);
+
+                    System.err.println("Failed to run script against " + targets.get(i).name);
+                    ee.getCause().printStackTrace();
+                }
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+
+            System.err.println("Interrupted while waiting for targets");
+            return 1;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        printSummary(outcomes, System.nanoTime() - started);
+
+        int exitStatus = 0;
+        for(Outcome outcome : outcomes)
+        {
+            if(0 != outcome.exitStatus && 4 != outcome.exitStatus)
+                return outcome.exitStatus;
+            if(4 == outcome.exitStatus)
+                exitStatus = 4;
+        }
+
+        return exitStatus;
+    }
+
+    /**
+     * Runs the script against a single target.
+     *
+     * @param target The target.
+     * @param count The total number of targets, for progress reports.
+     */
+    private Outcome run(Target target, int count)
+    {
+        final long started = System.nanoTime();
+        final Outcome outcome = new Outcome(target);
+        final ExecutionOptions options = this.options.copy();
+
+        PrintStream log = null;
+        StatementReader in = null;
+        ExecutionJournal journal = null;
+        Connection conn = null;
+
+        try
+        {
+            if(null == logDir)
+                log = new PrintStream(new NullOutputStream());
+            else
+                log = new PrintStream(new BufferedOutputStream(new FileOutputStream(new File(logDir, target.name + ".log"))),
+                                      false, "UTF-8");
+
+            log.println("Executing script '" + script + "' against " + target.url);
+
+            // Nothing to execute
+            if(null == start)
+                return outcome;
+
+            in = new StatementReader(new File(script), charset, null, mysql);
+
+            ExecutionJournal.Record last = null;
+            if(null != this.journal)
+            {
+                final File journalFile = new File(this.journal.getPath() + "." + target.name);
+
+                if(resume)
+                {
+                    last = ExecutionJournal.readLast(journalFile);
+
+                    if(null != last && !resume(in, last, journalFile, log))
+                    {
+                        outcome.exitStatus = 1;
+                        outcome.error = "Script does not match journal " + journalFile;
+                        log.println(outcome.error);
+                        return outcome;
+                    }
+                }
+
+                journal = ExecutionJournal.open(journalFile);
+            }
+
+            if(null == last)
+                in.seek(start);
+
+            try
+            {
+                conn = driver.connect(target.url, props);
+
+                if(null == conn)
+                    throw new SQLException("Driver does not accept URL " + target.url);
+
+                if(0 < statementCacheSize)
+                    options.statementCache = new StatementCache(conn, statementCacheSize);
+            }
+            catch (SQLException sqle)
+            {
+                outcome.exitStatus = 1;
+                outcome.error = "Could not connect: " + firstLine(sqle.getMessage());
+                log.println("Could not connect to database");
+                sqle.printStackTrace(log);
+                return outcome;
+            }
+
+            execute(in, conn, options, new StatementExecutor(script, onError, journal, metrics, log), log, outcome);
+        }
+        catch (IOException ioe)
+        {
+            outcome.exitStatus = 2;
+            outcome.error = firstLine(ioe.toString());
+            if(null != log)
+            {
+                log.println("Failed to write journal or log");
+                ioe.printStackTrace(log);
+            }
+        }
+        finally
+        {
+            if(null != options.statementCache)
+                options.statementCache.close();
+            if(null != conn) try { conn.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(log); }
+            if(null != in) try { in.close(); }
+            catch (IOException ioe) { log.println("Could not close script file"); }
+            if(null != journal) try { journal.close(); }
+            catch (IOException ioe) { log.println("Could not close journal"); }
+            if(null != log)
+                log.close();
+
+            outcome.elapsed = System.nanoTime() - started;
+
+            finished(outcome, count);
+        }
+
+        return outcome;
+    }
+
+    /**
+     * Positions a target's reader after the last statement recorded in
+     * its journal. The journal's byte offsets are used, so this works no
+     * matter how the script was positioned when the journal was written.
+     *
+     * @param last The last record in the journal.
+     *
+     * @return <code>true</code> if the reader has been positioned,
+     *         <code>false</code> if the script doesn't match the journal.
+     */
+    private boolean resume(StatementReader in, ExecutionJournal.Record last, File journalFile, PrintStream log)
+        throws IOException
+    {
+        final ScriptStatement found = in.seek(last.statement);
+
+        // Make sure the script hasn't changed underneath us
+        if(null == found || last.hash != found.getText().hashCode())
+            return false;
+
+        // Everything but a failed statement is finished
+        if(ExecutionJournal.FAILED == last.status)
+            log.println("Resuming at line " + last.statement.getStartLine() + " from journal " + journalFile);
+        else
+        {
+            in.next();
+
+            log.println("Resuming after line " + last.statement.getEndLine() + " from journal " + journalFile);
+        }
+
+        return true;
+    }
+
+    /**
+     * Executes statements against a target until the script ends or a
+     * statement fails and the error policy says to stop.
+     */
+    private void execute(StatementReader in, Connection conn, ExecutionOptions options,
+                         StatementExecutor executor, PrintStream log, Outcome outcome)
+        throws IOException
+    {
+        final StatementBatch batch = 0 < batchSize ? new StatementBatch(batchSize, options.queryTimeout) : null;
+
+        while(true)
+        {
+            ScriptStatement statement;
+            do
+                statement = in.next();
+            while(null != statement && SQLExecutor.queryIsBlank(statement.getText()));
+
+            // Send any pending batch before moving on to a statement
+            // that can't be part of it.
+            if(null != batch && !batch.isEmpty()
+               && (null == statement || batch.isFull() || !StatementBatch.isBatchable(statement.getText())))
+            {
+                final long batchStarted = System.nanoTime();
+                try
+                {
+                    final int[] counts = batch.execute(conn, log);
+
+                    outcome.executed += counts.length;
+
+                    executor.executed(batch, counts, System.nanoTime() - batchStarted);
+                }
+                catch (SQLException sqle)
+                {
+                    executor.failed(batch, sqle, System.nanoTime() - batchStarted);
+
+                    final List<ScriptStatement> unexecuted = batch.getUnexecuted(sqle);
+
+                    outcome.executed += batch.size() - unexecuted.size();
+
+                    if(!failed(executor, unexecuted.remove(0), sqle, outcome))
+                        return;
+
+                    // Carry on with whatever the batch didn't get to
+                    if(null != statement)
+                        unexecuted.add(statement);
+                    in.unread(unexecuted);
+                    batch.clear();
+
+                    continue;
+                }
+                batch.clear();
+            }
+
+            if(null == statement)
+                return;
+
+            if(null != batch && StatementBatch.isBatchable(statement.getText()))
+            {
+                batch.add(statement);
+                continue;
+            }
+
+            final long statementStarted = System.nanoTime();
+            try
+            {
+                final StatementMetrics result = executor.execute(statement, conn, log, options);
+
+                ++outcome.executed;
+
+                executor.executed(statement, result);
+            }
+            catch (SQLException sqle)
+            {
+                executor.failed(statement, System.nanoTime() - statementStarted);
+
+                if(!failed(executor, statement, sqle, outcome))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Reports a statement which failed and applies the error policy.
+     *
+     * @return <code>true</code> if the statement has been skipped and
+     *         execution should continue, <code>false</code> if it should
+     *         stop.
+     */
+    private boolean failed(StatementExecutor executor, ScriptStatement statement, SQLException sqle, Outcome outcome)
+        throws IOException
+    {
+        ++outcome.failed;
+
+        if(null == outcome.failure)
+        {
+            outcome.failure = statement;
+            outcome.error = firstLine(sqle.getMessage());
+        }
+
+        executor.report(statement, sqle);
+
+        report("[" + outcome.target.name + "] Failed to execute statement at " + script + ":"
+               + statement.getStartLine() + ": " + firstLine(sqle.getMessage()));
+
+        if(!executor.skip(statement))
+        {
+            outcome.exitStatus = 3;
+            return false;
+        }
+
+        if("skip".equals(onError))
+            outcome.exitStatus = 4;
+
+        return true;
+    }
+
+    private void finished(Outcome outcome, int count)
+    {
+        synchronized(progress)
+        {
+            ++finished;
+
+            progress.println(String.format("[%s] %s: %d executed, %d failed in %.3fs (%d of %d targets finished)",
+                                           outcome.target.name, getStatus(outcome),
+                                           outcome.executed, outcome.failed, outcome.elapsed / 1e9,
+                                           finished, count));
+            progress.flush();
+        }
+    }
+
+    private void report(String message)
+    {
+        synchronized(progress)
+        {
+            progress.println(message);
+            progress.flush();
+        }
+    }
+
+    private static String getStatus(Outcome outcome)
+    {
+        switch(outcome.exitStatus)
+        {
+            case 0: return "ok";
+            case 3: return "stopped";
+            case 4: return "skipped";
+            default: return "error";
+        }
+    }
+
+    /**
+     * Prints a table showing what happened to each target.
+     */
+    private void printSummary(List<Outcome> outcomes, long elapsed)
+    {
+        final String[] labels = { "target", "status", "executed", "failed", "seconds", "error" };
+        final String[][] rows = new String[outcomes.size()][];
+        final int[] widths = new int[labels.length];
+
+        for(int i=0; i<labels.length; ++i)
+            widths[i] = labels[i].length();
+
+        int ok = 0;
+        Outcome slowest = null;
+
+        for(int i=0; i<rows.length; ++i)
+        {
+            final Outcome outcome = outcomes.get(i);
+
+            String error = "";
+            if(null != outcome.failure)
+                error = "line " + outcome.failure.getStartLine() + ": " + outcome.error;
+            else if(null != outcome.error)
+                error = outcome.error;
+
+            rows[i] = new String[] {
+                outcome.target.name,
+                getStatus(outcome),
+                String.valueOf(outcome.executed),
+                String.valueOf(outcome.failed),
+                String.format("%.3f", outcome.elapsed / 1e9),
+                error
+            };
+
+            for(int j=0; j<labels.length; ++j)
+                if(rows[i][j].length() > widths[j])
+                    widths[j] = rows[i][j].length();
+
+            if(0 == outcome.exitStatus)
+                ++ok;
+            if(null == slowest || outcome.elapsed > slowest.elapsed)
+                slowest = outcome;
+        }
+
+        if(widths[5] > ERROR_WIDTH)
+            widths[5] = ERROR_WIDTH;
+
+        synchronized(progress)
+        {
+            progress.println();
+
+            final TableRenderer table = new TableRenderer(progress, widths, TableRenderer.TRUNCATE);
+            try
+            {
+                table.separator();
+                for(String label : labels)
+                    table.labelCell(label);
+                table.endRow();
+                table.separator();
+
+                for(String[] row : rows)
+                {
+                    table.labelCell(row[0]);
+                    table.labelCell(row[1]);
+                    table.cell(row[2]);
+                    table.cell(row[3]);
+                    table.cell(row[4]);
+                    table.labelCell(row[5]);
+                    table.endRow();
+                }
+
+                table.separator();
+                table.flush();
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Could not write summary");
+                ioe.printStackTrace();
+            }
+
+            progress.println(String.format("%s: %d of %d targets ok in %.3fs (slowest: %s, %.3fs)",
+                                           script, ok, outcomes.size(), elapsed / 1e9,
+                                           slowest.target.name, slowest.elapsed / 1e9));
+            progress.flush();
+        }
+    }
+
+    private static String firstLine(String message)
+    {
+        if(null == message)
+            return "";
+
+        final int newline = message.indexOf('\n');
+
+        return (0 > newline ? message : message.substring(0, newline)).trim();
+    }
+}
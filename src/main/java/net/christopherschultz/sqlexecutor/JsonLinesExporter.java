@@ -0,0 +1,162 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Types;
+
+/**
+ * Writes each row as a JSON object on a line by itself, keyed by column
+ * label. Numeric and boolean columns are written as JSON numbers and
+ * booleans, <code>NULL</code> as <code>null</code> and everything else as
+ * strings.
+ */
+class JsonLinesExporter
+    extends ResultExporter
+{
+    // The start of each member, e.g. {"id": or ,"name":
+    private String[] keys;
+    private boolean[] numeric;
+    private boolean[] bool;
+
+    JsonLinesExporter(Writer out)
+    {
+        super(out);
+    }
+
+    @Override
+    void header(String[] labels, int[] types)
+        throws IOException
+    {
+        keys = new String[labels.length];
+        numeric = new boolean[labels.length];
+        bool = new boolean[labels.length];
+
+        for(int i=0; i<labels.length; ++i)
+        {
+            keys[i] = (0 == i ? "{" : ",") + RunMetrics.quoteJSON(labels[i]) + ":";
+            numeric[i] = isNumeric(types[i]);
+            bool[i] = Types.BOOLEAN == types[i] || Types.BIT == types[i];
+        }
+    }
+
+    private static boolean isNumeric(int type)
+    {
+        switch(type)
+        {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void row(String[] values)
+        throws IOException
+    {
+        if(0 == values.length)
+            out.write('{');
+
+        for(int i=0; i<values.length; ++i)
+        {
+            out.write(keys[i]);
+
+            final String value = values[i];
+            if(null == value)
+                out.write("null");
+            else if(numeric[i] && isNumber(value))
+                out.write(value);
+            else if(bool[i] && "true".equalsIgnoreCase(value))
+                out.write("true");
+            else if(bool[i] && "false".equalsIgnoreCase(value))
+                out.write("false");
+            else
+                writeString(value);
+        }
+        out.write("}\n");
+    }
+
+    /**
+     * Makes sure values such as NaN, Infinity or .5 which aren't valid JSON
+     * numbers are written as strings instead.
+     */
+    private static boolean isNumber(String value)
+    {
+        int i = 0;
+        final int length = value.length();
+        if(i < length && '-' == value.charAt(i))
+            ++i;
+
+        final int digits = i;
+        while(i < length && isDigit(value.charAt(i)))
+            ++i;
+        if(digits == i || ('0' == value.charAt(digits) && 1 < i - digits))
+            return false;
+
+        if(i < length && '.' == value.charAt(i))
+        {
+            final int fraction = ++i;
+            while(i < length && isDigit(value.charAt(i)))
+                ++i;
+            if(fraction == i)
+                return false;
+        }
+
+        if(i < length && ('e' == value.charAt(i) || 'E' == value.charAt(i)))
+        {
+            ++i;
+            if(i < length && ('+' == value.charAt(i) || '-' == value.charAt(i)))
+                ++i;
+            final int exponent = i;
+            while(i < length && isDigit(value.charAt(i)))
+                ++i;
+            if(exponent == i)
+                return false;
+        }
+
+        return i == length;
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return '0' <= c && c <= '9';
+    }
+
+    private void writeString(String value)
+        throws IOException
+    {
+        out.write('"');
+
+        int start = 0;
+        for(int i=0; i<value.length(); ++i)
+        {
+            final char c = value.charAt(i);
+
+            if('"' != c && '\\' != c && 0x20 <= c)
+                continue;
+
+            out.write(value, start, i - start);
+            switch(c)
+            {
+                case '"':  out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:   out.write(String.format("\\u%04x", (int)c));
+            }
+            start = i + 1;
+        }
+        out.write(value, start, value.length() - start);
+
+        out.write('"');
+    }
+}
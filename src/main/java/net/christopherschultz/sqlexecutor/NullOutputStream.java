@@ -0,0 +1,20 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream which discards everything written to it.
+ */
+class NullOutputStream
+    extends OutputStream
+{
+    @Override
+    public void write(int b)
+    {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+    }
+}
@@ -0,0 +1,204 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Sends a statement's output through a pager such as <code>less</code>,
+ * but only once it has grown too long to fit on the screen: until then,
+ * output is held in memory, and if the statement finishes first it is
+ * simply written to the console.
+ *
+ * Once the pager has started, everything written is piped to it as it
+ * arrives. If the user quits the pager early, anything written after that
+ * is discarded, and {@link #isAbandoned()} tells the writer that it may as
+ * well stop.
+ */
+class Pager
+    extends OutputStream
+{
+    private final String command;
+    private final PrintStream console;
+    private final int maxLines;
+
+    private ByteArrayOutputStream held = new ByteArrayOutputStream();
+    private int lines;
+
+    private Process process;
+    private OutputStream pipe;
+    private boolean abandoned;
+
+    /**
+     * Creates a new Pager.
+     *
+     * @param command The pager command, which is run using the shell.
+     * @param console Where to write output which fits on the screen.
+     * @param maxLines The number of lines which fit on the screen.
+     */
+    Pager(String command, PrintStream console, int maxLines)
+    {
+        this.command = command;
+        this.console = console;
+        this.maxLines = maxLines;
+    }
+
+    /**
+     * Gets the pager command to use: <code>$PAGER</code>, or
+     * <code>less -S</code> (which doesn't wrap wide tables) if it isn't
+     * set.
+     */
+    static String getDefaultCommand()
+    {
+        final String pager = System.getenv("PAGER");
+
+        return null == pager || 0 == pager.trim().length() ? "less -S" : pager;
+    }
+
+    /**
+     * Gets the number of lines which fit on the screen: <code>$LINES</code>,
+     * or 24 if it isn't set.
+     */
+    static int getScreenLines()
+    {
+        try
+        {
+            final String lines = System.getenv("LINES");
+            if(null != lines)
+                return Math.max(Integer.parseInt(lines.trim()), 2);
+        }
+        catch (NumberFormatException nfe)
+        {
+            // Fall through
+        }
+
+        return 24;
+    }
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        if(null != held)
+        {
+            held.write(b, off, len);
+
+            for(int i=off; i<off + len; ++i)
+                if('\n' == b[i])
+                    ++lines;
+
+            // Leave room for the prompt
+            if(lines >= maxLines - 1)
+                start();
+        }
+        else if(null != pipe)
+        {
+            try
+            {
+                pipe.write(b, off, len);
+            }
+            catch (IOException ioe)
+            {
+                // The user quit the pager
+                pipe = null;
+                abandoned = true;
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the user has quit the pager, so nothing
+     * more written will be seen.
+     */
+    boolean isAbandoned()
+    {
+        return abandoned;
+    }
+
+    @Override
+    public void flush()
+    {
+        // Don't push partial lines to the pager or the console
+    }
+
+    /**
+     * Writes any output still being held to the console, or waits for the
+     * user to quit the pager.
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if(null != held)
+        {
+            held.writeTo(console);
+            held = null;
+            console.flush();
+        }
+
+        if(null != process)
+        {
+            if(null != pipe) try { pipe.close(); }
+            catch (IOException ioe) { /* The user quit the pager */ }
+
+            try
+            {
+                process.waitFor();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+
+            process = null;
+        }
+
+        pipe = null;
+        console.flush();
+    }
+
+    private void start()
+        throws IOException
+    {
+        final String[] shell = System.getProperty("os.name", "").startsWith("Windows")
+            ? new String[] { "cmd", "/c", command }
+            : new String[] { "sh", "-c", command };
+
+        // Anything already shown has to come out before the pager takes
+        // over the screen
+        console.flush();
+
+        try
+        {
+            process = new ProcessBuilder(shell)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        }
+        catch (IOException ioe)
+        {
+            System.err.println("Could not start pager " + command + "; writing to the console instead");
+            ioe.printStackTrace();
+
+            held.writeTo(console);
+            held = null;
+            pipe = console;
+
+            return;
+        }
+
+        pipe = process.getOutputStream();
+
+        held.writeTo(pipe);
+        held = null;
+    }
+}
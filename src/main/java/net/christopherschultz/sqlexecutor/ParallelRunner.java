@@ -0,0 +1,498 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executes the statements in a script concurrently over a small pool of
+ * connections, while making sure that statements which touch the same
+ * tables still run in script order.
+ *
+ * As statements are read, each is added to a dependency graph using the
+ * tables reported by {@link TableAccess}: a statement waits for every
+ * earlier statement which writes a table it uses, and for every earlier
+ * statement which uses a table it writes. Statements which can't be
+ * analyzed are barriers, waiting for everything before them and holding
+ * up everything after them. A statement is started as soon as everything
+ * it waits for has finished.
+ *
+ * Results are buffered and written as each statement finishes, so the
+ * output of concurrent statements is never interleaved. Journal records
+ * and timings are recorded in script order, so resuming from the journal
+ * never skips a statement which hasn't been executed.
+ */
+class ParallelRunner
+{
+    /**
+     * The maximum number of statements read ahead of the oldest one
+     * which hasn't been recorded. Statements which have finished are
+     * kept until everything before them has finished too, so this also
+     * limits how many are held in memory behind a slow statement.
+     */
+    private static final int WINDOW = 1000;
+
+    /**
+     * A statement and the statements which are waiting for it.
+     */
+    private static class Node
+    {
+        final ScriptStatement statement;
+        final ArrayList<Node> dependents = new ArrayList<Node>(2);
+
+        int waitingFor;
+        boolean finished;
+        boolean succeeded;
+        StatementMetrics metrics;
+        long elapsed;
+
+        Node(ScriptStatement statement)
+        {
+            this.statement = statement;
+        }
+    }
+
+    /**
+     * A connection and the options used to execute statements on it.
+     */
+    private static class Worker
+    {
+        final Connection conn;
+        final ExecutionOptions options;
+
+        Worker(Connection conn, ExecutionOptions options)
+        {
+            this.conn = conn;
+            this.options = options;
+        }
+    }
+
+    private final String script;
+    private final PrintStream out;
+    private final StatementExecutor executor;
+
+    private final BlockingQueue<Worker> workers;
+    private final ArrayList<Connection> opened = new ArrayList<Connection>();
+    private final ExecutorService pool;
+
+    // Everything below is guarded by "this"
+
+    // The last statement to write each table, and the statements which
+    // have read each table since then
+    private final HashMap<String, Node> writers = new HashMap<String, Node>();
+    private final HashMap<String, ArrayList<Node>> readers = new HashMap<String, ArrayList<Node>>();
+
+    // The most recent barrier
+    private Node barrier;
+
+    // Statements which haven't finished, in script order
+    private final LinkedHashSet<Node> unfinished = new LinkedHashSet<Node>();
+
+    // Statements which haven't been recorded yet, in script order
+    private final LinkedList<Node> unrecorded = new LinkedList<Node>();
+
+    private int running;
+    private boolean stopping;
+
+    // Set once a failure has been recorded which stops execution: nothing
+    // after it can be recorded in the journal
+    private boolean halted;
+    private IOException journalFailure;
+
+    private long executed;
+    private long skipped;
+    private long failed;
+    private long rows;
+
+    /**
+     * When not <code>null</code>, updated as each statement finishes.
+     */
+    Progress progress;
+
+    /**
+     * Creates a new ParallelRunner, opening enough additional connections
+     * to fill the pool.
+     *
+     * @param driver The driver used to open additional connections.
+     * @param url The JDBC URL.
+     * @param props The connection properties.
+     * @param conn An open connection, which will be the first one in the
+     *             pool. It is not closed by {@link #close()}.
+     * @param size The number of connections in the pool.
+     * @param options How to execute statements. Each connection uses a
+     *                copy, with its own statement cache if these options
+     *                have one.
+     * @param statementCacheSize The size of each statement cache.
+     * @param script The name of the script, used in messages.
+     * @param out Where to write the results of each statement.
+     * @param executor Executes each statement, and records what became of
+     *                 it.
+     */
+    ParallelRunner(Driver driver, String url, Properties props, Connection conn, int size,
+                   ExecutionOptions options, int statementCacheSize,
+                   String script, PrintStream out, StatementExecutor executor)
+        throws SQLException
+    {
+        this.script = script;
+        this.out = out;
+        this.executor = executor;
+
+        workers = new ArrayBlockingQueue<Worker>(size);
+        workers.add(new Worker(conn, options));
+
+        try
+        {
+            for(int i=1; i<size; ++i)
+            {
+                final Connection other = driver.connect(url, props);
+                if(null == other)
+                    throw new SQLException("Driver does not accept URL " + url);
+                opened.add(other);
+
+                final ExecutionOptions copy = options.copy();
+                if(null != options.statementCache)
+                    copy.statementCache = new StatementCache(other, statementCacheSize);
+
+                workers.add(new Worker(other, copy));
+            }
+        }
+        catch (SQLException sqle)
+        {
+            close();
+
+            throw sqle;
+        }
+
+        pool = Executors.newFixedThreadPool(size, WorkerThreads.factory("parallel"));
+    }
+
+    /**
+     * Reads and executes every remaining statement in a script, or until
+     * a statement fails and the error policy says to stop.
+     *
+     * @return <code>true</code> if every statement was executed or
+     *         skipped, <code>false</code> if execution stopped early.
+     *
+     * @throws IOException If the script can't be read or the journal
+     *         can't be written.
+     */
+    boolean run(StatementReader in)
+        throws IOException
+    {
+        try
+        {
+            ScriptStatement statement;
+            while(null != (statement = in.next()))
+            {
+                if(SQLExecutor.queryIsBlank(statement.getText()))
+                    continue;
+
+                synchronized(this)
+                {
+                    while(!stopping && WINDOW <= unrecorded.size())
+                        wait();
+
+                    if(stopping)
+                        break;
+
+                    final Node node = add(statement);
+
+                    if(0 == node.waitingFor)
+                        start(node);
+                }
+            }
+
+            synchronized(this)
+            {
+                // Once stopping, statements still waiting will never start
+                while(0 < running || (!stopping && !unfinished.isEmpty()))
+                    wait();
+
+                skipped = unfinished.size();
+
+                if(null != progress && 0 < skipped)
+                    progress.update(executed, skipped, failed, rows, unfinished.iterator().next().statement);
+
+                if(null != journalFailure)
+                    throw journalFailure;
+
+                return !stopping;
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while executing statements", ie);
+        }
+    }
+
+    synchronized long getExecuted()
+    {
+        return executed;
+    }
+
+    /**
+     * Gets the number of statements which were read but never started,
+     * because execution stopped first.
+     */
+    synchronized long getSkipped()
+    {
+        return skipped;
+    }
+
+    synchronized long getFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * Stops the worker threads and closes every connection this runner
+     * opened.
+     */
+    void close()
+    {
+        if(null != pool)
+            pool.shutdownNow();
+
+        for(Worker worker : workers)
+            if(opened.contains(worker.conn) && null != worker.options.statementCache)
+                worker.options.statementCache.close();
+
+        for(Connection conn : opened)
+        {
+            try { conn.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+        }
+    }
+
+    /**
+     * Adds a statement to the dependency graph.
+     */
+    private Node add(ScriptStatement statement)
+    {
+        final Node node = new Node(statement);
+        final HashSet<Node> dependencies = new HashSet<Node>();
+        final TableAccess access = TableAccess.analyze(statement.getText());
+
+        if(null == access)
+        {
+            // Wait for everything, then start again from scratch
+            dependencies.addAll(unfinished);
+            writers.clear();
+            readers.clear();
+            barrier = node;
+        }
+        else
+        {
+            dependencies.add(barrier);
+
+            for(String table : access.getWrites())
+            {
+                dependencies.add(writers.get(table));
+
+                final ArrayList<Node> tableReaders = readers.remove(table);
+                if(null != tableReaders)
+                    dependencies.addAll(tableReaders);
+
+                writers.put(table, node);
+            }
+
+            for(String table : access.getReads())
+            {
+                dependencies.add(writers.get(table));
+
+                ArrayList<Node> tableReaders = readers.get(table);
+                if(null == tableReaders)
+                    readers.put(table, tableReaders = new ArrayList<Node>());
+
+                // Don't let the list grow forever between writes
+                if(64 <= tableReaders.size())
+                    removeFinished(tableReaders);
+                tableReaders.add(node);
+            }
+        }
+
+        for(Node dependency : dependencies)
+        {
+            if(null != dependency && !dependency.finished)
+            {
+                dependency.dependents.add(node);
+                ++node.waitingFor;
+            }
+        }
+
+        unfinished.add(node);
+        unrecorded.add(node);
+
+        return node;
+    }
+
+    private static void removeFinished(ArrayList<Node> nodes)
+    {
+        for(int i=nodes.size() - 1; i>=0; --i)
+            if(nodes.get(i).finished)
+                nodes.remove(i);
+    }
+
+    private void start(final Node node)
+    {
+        ++running;
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                execute(node);
+            }
+        });
+    }
+
+    /**
+     * Executes a statement on the next free connection. Runs on a worker
+     * thread.
+     */
+    private void execute(Node node)
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final PrintStream results = new PrintStream(buffer);
+        final long started = System.nanoTime();
+        SQLException failure = null;
+
+        Worker worker = null;
+        try
+        {
+            worker = workers.take();
+
+            node.metrics = executor.execute(node.statement, worker.conn, results, worker.options);
+            node.succeeded = true;
+        }
+        catch (SQLException sqle)
+        {
+            failure = sqle;
+        }
+        catch (InterruptedException ie)
+        {
+            failure = new SQLException("Interrupted while waiting for a connection", ie);
+        }
+        catch (RuntimeException re)
+        {
+            failure = new SQLException("Failed to execute statement", re);
+        }
+        finally
+        {
+            if(null != worker)
+                workers.add(worker);
+        }
+
+        node.elapsed = System.nanoTime() - started;
+        results.flush();
+
+        finished(node, buffer, failure);
+    }
+
+    /**
+     * Reports the outcome of a statement and starts any statements which
+     * were waiting for it.
+     */
+    private synchronized void finished(Node node, ByteArrayOutputStream results, SQLException failure)
+    {
+        --running;
+        node.finished = true;
+        unfinished.remove(node);
+
+        final ScriptStatement statement = node.statement;
+
+        out.println(script + ": " + statement.getStartLine() + ":");
+        out.write(results.toByteArray(), 0, results.size());
+        out.flush();
+
+        if(node.succeeded)
+        {
+            ++executed;
+            if(0 < node.metrics.getUpdateCount())
+                rows += node.metrics.getUpdateCount();
+
+            if(halted)
+                executor.unrecorded(statement);
+        }
+        else
+        {
+            ++failed;
+
+            executor.report(statement, failure);
+
+            if(executor.stopsOnError())
+                stopping = true;
+        }
+
+        record();
+
+        if(null != progress)
+            progress.update(executed, skipped, failed, rows, statement);
+
+        if(!stopping)
+            for(Node dependent : node.dependents)
+                if(0 == --dependent.waitingFor)
+                    start(dependent);
+
+        notifyAll();
+    }
+
+    /**
+     * Records finished statements in the journal and statistics, in script
+     * order.
+     */
+    private void record()
+    {
+        if(null != journalFailure)
+            return;
+
+        try
+        {
+            while(!unrecorded.isEmpty() && unrecorded.getFirst().finished)
+            {
+                final Node node = unrecorded.removeFirst();
+
+                if(node.succeeded)
+                    executor.executed(node.statement, node.metrics);
+                else
+                {
+                    executor.failed(node.statement, node.elapsed);
+
+                    // Resuming should start with the statement that failed,
+                    // so later statements which have already been executed
+                    // can't be recorded
+                    if(!executor.skip(node.statement))
+                    {
+                        for(Node later : unrecorded)
+                            if(later.finished && later.succeeded)
+                                executor.unrecorded(later.statement);
+
+                        halted = true;
+                        unrecorded.clear();
+                        break;
+                    }
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            journalFailure = ioe;
+            stopping = true;
+        }
+    }
+}
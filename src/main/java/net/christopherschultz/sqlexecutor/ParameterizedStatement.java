@@ -0,0 +1,377 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A statement whose literal values have been replaced with bind
+ * parameters, so that statements which differ only by their literals
+ * share the same SQL text and can re-use a single PreparedStatement:
+ *
+ * <pre>
+ * INSERT INTO t VALUES (1, 'a');  --&gt;  INSERT INTO t VALUES (?, ?)  [1, "a"]
+ * INSERT INTO t VALUES (2, 'b');  --&gt;  INSERT INTO t VALUES (?, ?)  [2, "b"]
+ * </pre>
+ *
+ * Only string and numeric literals in SELECT and data-modification
+ * statements are replaced. Comments (other than optimizer hints) are
+ * removed and runs of whitespace are collapsed so that formatting
+ * differences don't produce different statements.
+ *
+ * Anything that might change the meaning of the statement is left alone:
+ * typed literals such as <code>DATE '2018-01-01'</code>, prefixed
+ * literals such as <code>N'abc'</code>, and column ordinals in
+ * <code>ORDER BY</code> and <code>GROUP BY</code> clauses. Statements
+ * that already contain <code>?</code>, use dollar-quoting, or contain
+ * backslashes in string literals (whose meaning depends on the database)
+ * are not parameterized at all.
+ */
+class ParameterizedStatement
+{
+    private static final String[] PARAMETERIZABLE_KEYWORDS = {
+        "SELECT", "INSERT", "UPDATE", "DELETE", "MERGE", "REPLACE", "UPSERT"
+    };
+
+    // Keywords which turn the following string literal into a typed literal
+    private static final String[] TYPED_LITERAL_KEYWORDS = {
+        "DATE", "TIME", "TIMESTAMP", "INTERVAL"
+    };
+
+    // Keywords which end an ORDER BY or GROUP BY list
+    private static final String[] ORDINAL_LIST_TERMINATORS = {
+        "LIMIT", "OFFSET", "FETCH", "HAVING", "UNION", "INTERSECT", "EXCEPT", "WINDOW", "FOR"
+    };
+
+    private final String sql;
+    private final List<Object> parameters;
+
+    private ParameterizedStatement(String sql, List<Object> parameters)
+    {
+        this.sql = sql;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Gets the normalized SQL, with literals replaced by <code>?</code>.
+     */
+    String getSQL()
+    {
+        return sql;
+    }
+
+    /**
+     * Gets the literal values removed from the original statement, in
+     * order. Values are either Strings, Longs or BigDecimals.
+     */
+    List<Object> getParameters()
+    {
+        return parameters;
+    }
+
+    /**
+     * Sets the parameters of a PreparedStatement created from
+     * {@link #getSQL()}.
+     */
+    void bind(PreparedStatement ps)
+        throws SQLException
+    {
+        ps.clearParameters();
+
+        for(int i=0; i<parameters.size(); ++i)
+        {
+            final Object value = parameters.get(i);
+
+            if(value instanceof Long)
+                ps.setLong(i + 1, ((Long)value).longValue());
+            else if(value instanceof BigDecimal)
+                ps.setBigDecimal(i + 1, (BigDecimal)value);
+            else
+                ps.setString(i + 1, (String)value);
+        }
+    }
+
+    /**
+     * Determines whether a failure to execute a statement could have been
+     * caused by the types of its parameters rather than by the statement
+     * itself. Strings are bound as character data, which some servers
+     * won't convert implicitly: PostgreSQL, for example, refuses to store
+     * a varchar parameter in a date column or compare one to an integer,
+     * although it accepts the same literals written in the statement.
+     *
+     * @return <code>true</code> if the failure is a syntax, access rule,
+     *         data or dynamic SQL error.
+     */
+    static boolean isTypeError(SQLException sqle)
+    {
+        final String state = sqle.getSQLState();
+
+        return null != state
+            && (state.startsWith("42") || state.startsWith("22") || state.startsWith("07"));
+    }
+
+    /**
+     * Replaces the literals in a statement with bind parameters.
+     *
+     * @param statement The statement to parameterize.
+     *
+     * @return The parameterized statement, or <code>null</code> if the
+     *         statement can't safely be parameterized.
+     */
+    static ParameterizedStatement parse(String statement)
+    {
+        final int length = statement.length();
+        int i = StatementBatch.skipWhitespaceAndComments(statement, 0);
+
+        if(!isParameterizable(statement, i))
+            return null;
+
+        final StringBuilder sql = new StringBuilder(length);
+        final ArrayList<Object> parameters = new ArrayList<Object>();
+
+        // The most-recent keyword or identifier, upper-cased
+        String previousWord = null;
+        boolean inOrdinalList = false;
+
+        while(i < length)
+        {
+            final char c = statement.charAt(i);
+
+            if('/' == c && i + 2 < length && '*' == statement.charAt(i + 1) && '+' == statement.charAt(i + 2))
+            {
+                // Optimizer hint: keep it exactly as it is
+                int end = statement.indexOf("*/", i + 3);
+                end = -1 == end ? length : end + 2;
+
+                sql.append(statement, i, end);
+                i = end;
+            }
+            else if(Character.isWhitespace(c)
+               || ('-' == c && i + 1 < length && '-' == statement.charAt(i + 1))
+               || ('/' == c && i + 1 < length && '*' == statement.charAt(i + 1)))
+            {
+                // Collapse whitespace and comments into a single space
+                if('-' == c)
+                {
+                    while(i < length && '\n' != statement.charAt(i))
+                        ++i;
+                }
+                else if('/' == c)
+                {
+                    final int end = statement.indexOf("*/", i + 2);
+                    i = -1 == end ? length : end + 2;
+                }
+                else
+                    ++i;
+
+                if(0 < sql.length() && ' ' != sql.charAt(sql.length() - 1))
+                    sql.append(' ');
+            }
+            else if('\'' == c)
+            {
+                final int end = endOfQuoted(statement, i, '\'');
+                if(-1 == end)
+                    return null; // Unterminated
+
+                final String literal = statement.substring(i + 1, end - 1);
+                if(0 <= literal.indexOf('\\'))
+                    return null; // Escaping rules depend on the database
+
+                if(isPrefixed(sql) || isOneOf(previousWord, TYPED_LITERAL_KEYWORDS))
+                    sql.append(statement, i, end);
+                else
+                {
+                    sql.append('?');
+                    parameters.add(literal.replace("''", "'"));
+                }
+                previousWord = null;
+                i = end;
+            }
+            else if('"' == c || '`' == c)
+            {
+                // Quoted identifier
+                final int end = endOfQuoted(statement, i, c);
+                if(-1 == end)
+                    return null;
+
+                sql.append(statement, i, end);
+                previousWord = null;
+                i = end;
+            }
+            else if('?' == c || '$' == c)
+            {
+                // Existing parameters or dollar-quoting: leave it alone
+                return null;
+            }
+            else if(isWordStart(c))
+            {
+                int end = i + 1;
+                while(end < length && isWordPart(statement.charAt(end)))
+                    ++end;
+
+                final String word = statement.substring(i, end).toUpperCase();
+
+                if("BY".equals(word) && ("ORDER".equals(previousWord) || "GROUP".equals(previousWord)))
+                    inOrdinalList = true;
+                else if(isOneOf(word, ORDINAL_LIST_TERMINATORS))
+                    inOrdinalList = false;
+
+                sql.append(statement, i, end);
+                previousWord = word;
+                i = end;
+            }
+            else if(Character.isDigit(c) || ('.' == c && i + 1 < length && Character.isDigit(statement.charAt(i + 1))))
+            {
+                final int end = endOfNumber(statement, i);
+
+                if(inOrdinalList
+                   || (end < length && isWordPart(statement.charAt(end)))
+                   || isPrefixed(sql))
+                {
+                    // Column ordinal, or part of something else entirely
+                    sql.append(statement, i, end);
+                }
+                else
+                {
+                    sql.append('?');
+                    parameters.add(parseNumber(statement.substring(i, end)));
+                }
+                previousWord = null;
+                i = end;
+            }
+            else if(';' == c)
+            {
+                // Statement terminator: drop it and anything after it
+                // as long as it's only whitespace and comments.
+                if(StatementBatch.skipWhitespaceAndComments(statement, i + 1) < length)
+                    return null;
+                break;
+            }
+            else
+            {
+                if(')' == c)
+                    inOrdinalList = false;
+
+                sql.append(c);
+                previousWord = null;
+                ++i;
+            }
+        }
+
+        // Trim any trailing space left by whitespace-collapsing
+        int end = sql.length();
+        while(0 < end && ' ' == sql.charAt(end - 1))
+            --end;
+        sql.setLength(end);
+
+        return new ParameterizedStatement(sql.toString(), parameters);
+    }
+
+    private static boolean isParameterizable(String statement, int offset)
+    {
+        int end = offset;
+        while(end < statement.length() && Character.isLetter(statement.charAt(end)))
+            ++end;
+
+        return isOneOf(statement.substring(offset, end).toUpperCase(), PARAMETERIZABLE_KEYWORDS);
+    }
+
+    /**
+     * Returns <code>true</code> if the last thing written is part of a
+     * word, e.g. the <code>N</code> in <code>N'abc'</code> or the
+     * <code>X</code> in <code>X'0F'</code>.
+     */
+    private static boolean isPrefixed(StringBuilder sql)
+    {
+        return 0 < sql.length() && isWordPart(sql.charAt(sql.length() - 1));
+    }
+
+    private static int endOfQuoted(String s, int start, char quote)
+    {
+        int i = start + 1;
+        while(i < s.length())
+        {
+            if(quote == s.charAt(i))
+            {
+                // Doubled quotes are an escaped quote
+                if(i + 1 < s.length() && quote == s.charAt(i + 1))
+                    i += 2;
+                else
+                    return i + 1;
+            }
+            else
+                ++i;
+        }
+
+        return -1;
+    }
+
+    private static int endOfNumber(String s, int i)
+    {
+        final int length = s.length();
+
+        while(i < length && Character.isDigit(s.charAt(i)))
+            ++i;
+        if(i < length && '.' == s.charAt(i))
+        {
+            ++i;
+            while(i < length && Character.isDigit(s.charAt(i)))
+                ++i;
+        }
+        if(i < length && ('e' == s.charAt(i) || 'E' == s.charAt(i)))
+        {
+            int j = i + 1;
+            if(j < length && ('+' == s.charAt(j) || '-' == s.charAt(j)))
+                ++j;
+            if(j < length && Character.isDigit(s.charAt(j)))
+            {
+                i = j;
+                while(i < length && Character.isDigit(s.charAt(i)))
+                    ++i;
+            }
+        }
+
+        return i;
+    }
+
+    private static Object parseNumber(String number)
+    {
+        final BigDecimal value = new BigDecimal(number);
+
+        if(0 > number.indexOf('.') && 0 > number.indexOf('e') && 0 > number.indexOf('E'))
+        {
+            try
+            {
+                return Long.valueOf(value.longValueExact());
+            }
+            catch (ArithmeticException ae)
+            {
+                // Too big for a long
+            }
+        }
+
+        return value;
+    }
+
+    private static boolean isWordStart(char c)
+    {
+        return Character.isLetter(c) || '_' == c;
+    }
+
+    private static boolean isWordPart(char c)
+    {
+        return Character.isLetterOrDigit(c) || '_' == c;
+    }
+
+    private static boolean isOneOf(String word, String[] words)
+    {
+        if(null != word)
+            for(String w : words)
+                if(w.equals(word))
+                    return true;
+
+        return false;
+    }
+}
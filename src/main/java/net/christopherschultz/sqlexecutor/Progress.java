@@ -0,0 +1,269 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of how far through a script execution has got, and how
+ * quickly it is getting through it, for a periodic status line on the
+ * console and for monitoring over JMX.
+ *
+ * Rates and the estimated time remaining are based on samples taken at
+ * most once a second over the last {@link #SAMPLES} samples, so that they
+ * follow changes in throughput rather than averaging over the whole run. A
+ * stall shows up as a falling rate and a growing
+ * {@link #getCurrentStatementSeconds()}.
+ */
+class Progress
+    implements ProgressMBean
+{
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final int SAMPLES = 60;
+    private static final long STATUS_INTERVAL = 5000;
+
+    private final String script;
+    private final long size;
+    private final PrintStream console;
+    private final long started = System.currentTimeMillis();
+
+    private long executed;
+    private long skipped;
+    private long failed;
+    private long rows;
+
+    private long offset = -1;
+    private long line;
+    private long column;
+    private long statementStarted = started;
+    private long lastStatus = started;
+
+    // A ring of samples of the time, statements executed and offset
+    private final long[] sampleTimes = new long[SAMPLES];
+    private final long[] sampleStatements = new long[SAMPLES];
+    private final long[] sampleOffsets = new long[SAMPLES];
+    private int samples;
+    private int newest = -1;
+
+    private ObjectName name;
+
+    /**
+     * Creates a new Progress.
+     *
+     * @param script The name of the script.
+     * @param size The size of the script in bytes, or -1 if unknown.
+     * @param console Where to print a status line every few seconds, or
+     *                <code>null</code> for no status line.
+     */
+    Progress(String script, long size, PrintStream console)
+    {
+        this.script = script;
+        this.size = size;
+        this.console = console;
+    }
+
+    /**
+     * Records the current state of execution, and prints a status line if
+     * one is due.
+     *
+     * @param executed The number of statements executed so far.
+     * @param skipped The number of statements skipped so far.
+     * @param failed The number of statements which have failed so far.
+     * @param rows The number of rows affected so far.
+     * @param current The statement about to be executed, or
+     *                <code>null</code> at the end of the script.
+     */
+    synchronized void update(long executed, long skipped, long failed, long rows, ScriptStatement current)
+    {
+        final long now = System.currentTimeMillis();
+
+        this.executed = executed;
+        this.skipped = skipped;
+        this.failed = failed;
+        this.rows = rows;
+
+        if(null == current)
+            offset = size;
+        else if(current.getStartLine() != line || current.getStartColumn() != column)
+        {
+            line = current.getStartLine();
+            column = current.getStartColumn();
+            offset = current.getStartOffset();
+            statementStarted = now;
+        }
+
+        if(0 == samples || now - sampleTimes[newest] >= SAMPLE_INTERVAL)
+        {
+            newest = (newest + 1) % SAMPLES;
+            sampleTimes[newest] = now;
+            sampleStatements[newest] = executed;
+            sampleOffsets[newest] = offset;
+            samples = Math.min(samples + 1, SAMPLES);
+        }
+
+        if(null != console && now - lastStatus >= STATUS_INTERVAL)
+        {
+            lastStatus = now;
+            console.println(getStatus());
+            console.flush();
+        }
+    }
+
+    /**
+     * Publishes this object over JMX.
+     */
+    void register()
+    {
+        try
+        {
+            name = new ObjectName("net.christopherschultz.sqlexecutor:type=Progress,script=" + ObjectName.quote(script));
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+        catch (JMException jme)
+        {
+            System.err.println("Could not publish progress over JMX");
+            jme.printStackTrace();
+
+            name = null;
+        }
+    }
+
+    void unregister()
+    {
+        if(null != name) try { ManagementFactory.getPlatformMBeanServer().unregisterMBean(name); }
+        catch (JMException jme) { jme.printStackTrace(); }
+    }
+
+    private int getOldest()
+    {
+        return samples < SAMPLES ? 0 : (newest + 1) % SAMPLES;
+    }
+
+    @Override
+    public String getScript()
+    {
+        return script;
+    }
+
+    @Override
+    public long getScriptSize()
+    {
+        return size;
+    }
+
+    @Override
+    public synchronized long getOffset()
+    {
+        return offset;
+    }
+
+    @Override
+    public synchronized double getPercentComplete()
+    {
+        if(0 >= size || 0 > offset)
+            return -1;
+
+        return Math.min(100.0, 100.0 * offset / size);
+    }
+
+    @Override
+    public synchronized long getCurrentLine()
+    {
+        return line;
+    }
+
+    @Override
+    public synchronized long getCurrentStatementSeconds()
+    {
+        return (System.currentTimeMillis() - statementStarted) / 1000;
+    }
+
+    @Override
+    public synchronized long getStatementsExecuted()
+    {
+        return executed;
+    }
+
+    @Override
+    public synchronized long getStatementsSkipped()
+    {
+        return skipped;
+    }
+
+    @Override
+    public synchronized long getStatementsFailed()
+    {
+        return failed;
+    }
+
+    @Override
+    public synchronized long getRowsAffected()
+    {
+        return rows;
+    }
+
+    @Override
+    public synchronized double getStatementsPerSecond()
+    {
+        if(0 == samples)
+            return 0;
+
+        final int oldest = getOldest();
+        final long elapsed = System.currentTimeMillis() - sampleTimes[oldest];
+
+        return 0 >= elapsed ? 0 : (executed - sampleStatements[oldest]) * 1000.0 / elapsed;
+    }
+
+    @Override
+    public synchronized long getSecondsRemaining()
+    {
+        if(0 == samples || 0 >= size || 0 > offset)
+            return -1;
+
+        final int oldest = getOldest();
+        final long bytes = offset - sampleOffsets[oldest];
+        final long elapsed = System.currentTimeMillis() - sampleTimes[oldest];
+
+        if(0 > sampleOffsets[oldest] || 0 >= bytes || 0 >= elapsed)
+            return -1;
+
+        return (long)((size - offset) / (bytes * 1000.0 / elapsed));
+    }
+
+    @Override
+    public long getElapsedSeconds()
+    {
+        return (System.currentTimeMillis() - started) / 1000;
+    }
+
+    @Override
+    public synchronized String getStatus()
+    {
+        final StringBuilder sb = new StringBuilder("-- ");
+
+        sb.append(script).append(": ");
+
+        final double percent = getPercentComplete();
+        if(0 <= percent)
+            sb.append(String.format("%.1f%% (line %d)", percent, line));
+        else
+            sb.append("line ").append(line);
+
+        sb.append(String.format(", %d executed, %d skipped, %d failed, %d rows, %.1f statements/s",
+                                executed, skipped, failed, rows, getStatementsPerSecond()));
+
+        final long remaining = getSecondsRemaining();
+        if(0 <= remaining)
+            sb.append(", ").append(formatDuration(remaining)).append(" remaining");
+
+        return sb.toString();
+    }
+
+    private static String formatDuration(long seconds)
+    {
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,69 @@
+package net.christopherschultz.sqlexecutor;
+
+/**
+ * The progress of a running script, as published over JMX. Values which
+ * can't be determined (e.g. the size of a compressed script) are -1.
+ *
+ * This interface must be public for JMX to accept it.
+ */
+public interface ProgressMBean
+{
+    /**
+     * The name of the script.
+     */
+    String getScript();
+
+    /**
+     * The size of the script in bytes.
+     */
+    long getScriptSize();
+
+    /**
+     * The byte offset in the script of the current statement.
+     */
+    long getOffset();
+
+    /**
+     * How much of the script has been reached, from 0 to 100.
+     */
+    double getPercentComplete();
+
+    /**
+     * The line in the script where the current statement begins.
+     */
+    long getCurrentLine();
+
+    /**
+     * How long the current statement has been running, in seconds.
+     */
+    long getCurrentStatementSeconds();
+
+    long getStatementsExecuted();
+
+    long getStatementsSkipped();
+
+    long getStatementsFailed();
+
+    /**
+     * The total number of rows inserted, updated or deleted.
+     */
+    long getRowsAffected();
+
+    /**
+     * Statements executed per second over the last minute or so.
+     */
+    double getStatementsPerSecond();
+
+    /**
+     * The estimated time until the end of the script, in seconds, based on
+     * the progress made over the last minute or so.
+     */
+    long getSecondsRemaining();
+
+    long getElapsedSeconds();
+
+    /**
+     * All of the above, on a single line.
+     */
+    String getStatus();
+}
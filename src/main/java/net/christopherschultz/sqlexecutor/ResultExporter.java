@@ -0,0 +1,138 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes result-set rows in a machine-readable format instead of as a
+ * table. Rows are written as they are fetched, without padding, through
+ * a large buffer, so memory use is constant no matter how many rows
+ * there are.
+ *
+ * Every result set written begins with a call to
+ * {@link #header(String[], int[])}, followed by one call to
+ * {@link #row(String[])} for each row and then {@link #endResult()}.
+ *
+ * This class is not thread-safe.
+ */
+abstract class ResultExporter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final Writer out;
+
+    protected ResultExporter(Writer out)
+    {
+        this.out = out;
+    }
+
+    /**
+     * Creates an exporter.
+     *
+     * @param format The output format: <code>csv</code>, <code>tsv</code>
+     *               or <code>jsonl</code>.
+     * @param file The file to write, or <code>null</code> to write to
+     *             standard output.
+     * @param gzip Whether to compress the output using gzip.
+     *
+     * @return The exporter.
+     *
+     * @throws IllegalArgumentException If the format is not recognized.
+     * @throws IOException If the file can't be created.
+     */
+    static ResultExporter open(String format, File file, boolean gzip)
+        throws IOException
+    {
+        if(!"csv".equals(format) && !"tsv".equals(format) && !"jsonl".equals(format))
+            throw new IllegalArgumentException("Unrecognized output format: " + format);
+
+        OutputStream stream = null == file ? new Uncloseable(System.out) : new FileOutputStream(file);
+        Writer out = null;
+        try
+        {
+            if(gzip)
+                stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+
+            out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), BUFFER_SIZE);
+        }
+        finally
+        {
+            if(null == out && null != file)
+                stream.close();
+        }
+
+        if("jsonl".equals(format))
+            return new JsonLinesExporter(out);
+        else
+            return new DelimitedExporter(out, "tsv".equals(format));
+    }
+
+    /**
+     * Starts a new result set.
+     *
+     * @param labels The label of each column.
+     * @param types The JDBC type of each column, from
+     *              {@link java.sql.Types}.
+     */
+    abstract void header(String[] labels, int[] types)
+        throws IOException;
+
+    /**
+     * Writes a single row.
+     *
+     * @param values The value of each column; SQL <code>NULL</code> is
+     *               represented by <code>null</code>.
+     */
+    abstract void row(String[] values)
+        throws IOException;
+
+    /**
+     * Finishes the current result set, making sure everything written so
+     * far reaches the file.
+     */
+    void endResult()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    void close()
+        throws IOException
+    {
+        out.close();
+    }
+
+    /**
+     * Keeps standard output open when the exporter is closed, so that
+     * e.g. gzip can still finish its stream.
+     */
+    private static class Uncloseable
+        extends FilterOutputStream
+    {
+        Uncloseable(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            flush();
+        }
+    }
+}
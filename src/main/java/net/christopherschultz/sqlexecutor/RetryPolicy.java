@@ -0,0 +1,239 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which failures are worth simply trying again, such as deadlocks
+ * and serialization failures, and how long to wait before doing so.
+ *
+ * A failure is retryable if the SQLState of the exception, or of any
+ * exception chained to it, is in the list of retryable states. A two
+ * character entry (e.g. <code>40</code>) matches a whole class of states.
+ *
+ * The wait before each retry doubles, starting from the initial delay and
+ * up to a maximum of {@link #MAX_DELAY}ms, and is randomized between half
+ * and all of that so that sessions which deadlocked with each other don't
+ * collide again.
+ */
+class RetryPolicy
+{
+    /**
+     * The default retryable states: serialization failure, PostgreSQL's
+     * deadlock and PostgreSQL's lock timeout. Most other drivers report
+     * deadlocks and lock timeouts as 40001.
+     */
+    static final String DEFAULT_STATES = "40001,40P01,55P03";
+
+    /**
+     * The longest time to wait before any retry, in milliseconds.
+     */
+    static final long MAX_DELAY = 30000;
+
+    private final List<String> states;
+    private final int maxRetries;
+    private final long delay;
+
+    private final Random random = new Random();
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Creates a new RetryPolicy.
+     *
+     * @param states A comma-separated list of retryable SQLStates or
+     *               SQLState classes.
+     * @param maxRetries The number of times to retry a statement before
+     *                   treating it as failed.
+     * @param delay The time to wait before the first retry, in
+     *              milliseconds.
+     */
+    RetryPolicy(String states, int maxRetries, long delay)
+    {
+        this.states = new ArrayList<String>();
+        for(String state : states.split(","))
+            if(0 < state.trim().length())
+                this.states.add(state.trim().toUpperCase());
+
+        this.maxRetries = maxRetries;
+        this.delay = delay;
+    }
+
+    /**
+     * Returns <code>true</code> if a failure is retryable and has not
+     * already been retried too many times.
+     *
+     * @param sqle The failure.
+     * @param attempt The number of this retry, starting at 1.
+     */
+    boolean shouldRetry(SQLException sqle, int attempt)
+    {
+        return attempt <= maxRetries && isRetryable(sqle);
+    }
+
+    /**
+     * Returns <code>true</code> if a failure is caused by one of the
+     * retryable states.
+     */
+    boolean isRetryable(SQLException sqle)
+    {
+        for(Throwable t = sqle; null != t; )
+        {
+            if(t instanceof SQLException && isRetryable(((SQLException)t).getSQLState()))
+                return true;
+
+            // Batch failures often hide the real reason here
+            if(t instanceof SQLException && null != ((SQLException)t).getNextException())
+                t = ((SQLException)t).getNextException();
+            else
+                t = t.getCause();
+        }
+
+        return false;
+    }
+
+    private boolean isRetryable(String state)
+    {
+        if(null == state)
+            return false;
+
+        for(String retryable : states)
+            if(2 == retryable.length() ? state.startsWith(retryable) : state.equalsIgnoreCase(retryable))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Reports that a statement will be retried, and waits before returning.
+     *
+     * @param sqle The failure.
+     * @param attempt The number of this retry, starting at 1.
+     * @param where The location of the statement in the script.
+     * @param log Where to report the retry.
+     *
+     * @return <code>false</code> if interrupted while waiting, in which
+     *         case the statement should not be retried.
+     */
+    boolean backOff(SQLException sqle, int attempt, String where, PrintStream log)
+    {
+        final long wait = getDelay(attempt);
+
+        retries.incrementAndGet();
+
+        log.println("!! Retrying statement at " + where + " in " + wait + "ms (retry " + attempt + " of " + maxRetries
+                    + ") after " + sqle.getSQLState() + ": " + sqle.getMessage());
+        log.flush();
+
+        try
+        {
+            Thread.sleep(wait);
+
+            return true;
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+    }
+
+    /**
+     * Gets the time to wait before a retry, in milliseconds.
+     *
+     * @param attempt The number of the retry, starting at 1.
+     */
+    long getDelay(int attempt)
+    {
+        long ceiling = delay;
+        for(int i=1; i<attempt && ceiling < MAX_DELAY; ++i)
+            ceiling *= 2;
+        ceiling = Math.min(ceiling, MAX_DELAY);
+
+        final long half = ceiling / 2;
+
+        return half + (long)(random.nextDouble() * (ceiling - half + 1));
+    }
+
+    /**
+     * Gets the total number of retries so far.
+     */
+    long getRetries()
+    {
+        return retries.get();
+    }
+
+    /**
+     * Executes a statement in auto-commit mode, retrying it after any
+     * retryable failure. There is no transaction to repeat: a failed
+     * statement had no effect. A statement which fails after writing any
+     * results, e.g. part of the way through a result set, isn't retried,
+     * since the results it has already written can't be taken back.
+     *
+     * @param sql The statement to execute.
+     * @param where The location of the statement in the script.
+     *
+     * @see SQLExecutor#executeSQL(String, Connection, PrintStream, ExecutionOptions)
+     */
+    StatementMetrics executeSQL(String sql, String where, Connection conn, PrintStream out, ExecutionOptions options)
+        throws SQLException
+    {
+        final WatchedOutputStream watched = new WatchedOutputStream(out);
+        final PrintStream results = new PrintStream(watched);
+
+        for(int attempt = 1; ; ++attempt)
+        {
+            try
+            {
+                return SQLExecutor.executeSQL(sql, conn, results, options);
+            }
+            catch (SQLException sqle)
+            {
+                results.flush();
+
+                if(watched.written || !shouldRetry(sqle, attempt) || !options.isAutoCommit(conn)
+                   || !backOff(sqle, attempt, where, out))
+                    throw sqle;
+            }
+        }
+    }
+
+    /**
+     * Remembers whether anything has been written through it.
+     */
+    private static class WatchedOutputStream
+        extends FilterOutputStream
+    {
+        boolean written;
+
+        WatchedOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b)
+            throws IOException
+        {
+            written = true;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            if(0 < len)
+                written = true;
+            out.write(b, off, len);
+        }
+    }
+}
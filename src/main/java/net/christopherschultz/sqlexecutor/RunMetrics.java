@@ -0,0 +1,450 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects timings for every statement executed from a script and
+ * summarizes them at the end of the run: throughput, latency percentiles
+ * for each phase of execution and the slowest statements.
+ *
+ * Latencies are kept in log-linear histograms (8 buckets per power of
+ * two), so percentiles are accurate to within 12.5% and memory use does
+ * not depend on the number of statements.
+ */
+class RunMetrics
+{
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    // Index of the histogram for whole statements, after the phases
+    private static final int TOTAL = StatementMetrics.PHASES.length;
+
+    private static final int SQL_LENGTH = 80;
+
+    /**
+     * One of the slowest statements.
+     */
+    static class Slow
+    {
+        final long elapsed;
+        final long line;
+        final String sql;
+
+        Slow(long elapsed, long line, String sql)
+        {
+            this.elapsed = elapsed;
+            this.line = line;
+            this.sql = sql;
+        }
+    }
+
+    private static final Comparator<Slow> FASTEST_FIRST = new Comparator<Slow>() {
+        @Override
+        public int compare(Slow a, Slow b)
+        {
+            return a.elapsed < b.elapsed ? -1 : (a.elapsed == b.elapsed ? 0 : 1);
+        }
+    };
+
+    private final String script;
+    private final long started = System.nanoTime();
+
+    private long statements;
+    private long failures;
+    private long rowsFetched;
+    private long rowsAffected;
+
+    // Statements in batches are only timed as a whole, so each histogram
+    // may have a different number of samples
+    private final long[] samples = new long[TOTAL + 1];
+    private final long[] totals = new long[TOTAL + 1];
+    private final long[] maxima = new long[TOTAL + 1];
+    private final long[][] histograms = new long[TOTAL + 1][BUCKETS];
+
+    private final int slowestCount;
+    private final PriorityQueue<Slow> slowest;
+
+    /**
+     * Creates a new RunMetrics.
+     *
+     * @param script The name of the script, used to identify statements.
+     * @param slowestCount The number of slowest statements to keep.
+     */
+    RunMetrics(String script, int slowestCount)
+    {
+        this.script = script;
+        this.slowestCount = slowestCount;
+        this.slowest = new PriorityQueue<Slow>(slowestCount + 1, FASTEST_FIRST);
+    }
+
+    /**
+     * Records a statement that was executed successfully.
+     */
+    void record(ScriptStatement statement, StatementMetrics metrics)
+    {
+        for(int phase=0; phase<TOTAL; ++phase)
+            add(phase, metrics.getElapsed(phase));
+
+        add(TOTAL, metrics.getTotal());
+
+        ++statements;
+        rowsFetched += metrics.getRows();
+        if(0 < metrics.getUpdateCount())
+            rowsAffected += metrics.getUpdateCount();
+
+        rank(statement, metrics.getTotal());
+    }
+
+    /**
+     * Records a batch that was executed successfully. The driver doesn't
+     * say how long each statement took, so the time is divided evenly.
+     *
+     * @param batch The batch.
+     * @param counts The update counts returned by the batch.
+     * @param elapsed The time taken to execute the batch, in nanoseconds.
+     */
+    void record(StatementBatch batch, int[] counts, long elapsed)
+    {
+        final long each = elapsed / batch.size();
+
+        for(int i=0; i<batch.size(); ++i)
+            recordBatched(batch.get(i), i < counts.length ? counts[i] : -1, each);
+    }
+
+    /**
+     * Records a single statement that was executed successfully as part of
+     * a batch.
+     *
+     * @param statement The statement.
+     * @param updateCount The number of rows affected, or -1 if unknown.
+     * @param elapsed The statement's share of the time taken to execute
+     *                the batch, in nanoseconds.
+     */
+    void recordBatched(ScriptStatement statement, long updateCount, long elapsed)
+    {
+        add(StatementMetrics.EXECUTE, elapsed);
+        add(TOTAL, elapsed);
+
+        ++statements;
+        if(0 < updateCount)
+            rowsAffected += updateCount;
+
+        rank(statement, elapsed);
+    }
+
+    /**
+     * Records a statement that failed.
+     */
+    void recordFailure()
+    {
+        ++failures;
+    }
+
+    private void add(int histogram, long elapsed)
+    {
+        ++samples[histogram];
+        totals[histogram] += elapsed;
+        if(elapsed > maxima[histogram])
+            maxima[histogram] = elapsed;
+
+        ++histograms[histogram][bucket(elapsed)];
+    }
+
+    private void rank(ScriptStatement statement, long elapsed)
+    {
+        // Only build the description for statements that make the list
+        if(slowest.size() < slowestCount || elapsed > slowest.peek().elapsed)
+        {
+            slowest.add(new Slow(elapsed, statement.getStartLine(), abbreviate(statement.getText())));
+
+            if(slowest.size() > slowestCount)
+                slowest.poll();
+        }
+    }
+
+    private static int bucket(long value)
+    {
+        if(value < SUB_BUCKETS)
+            return (int)Math.max(value, 0);
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS
+            + (int)((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueIn(int bucket)
+    {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+
+        final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        final long width = 1L << (exponent - SUB_BITS);
+
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+    }
+
+    /**
+     * Gets the latency at a percentile of a histogram, in nanoseconds.
+     */
+    private long percentile(int histogram, double percentile)
+    {
+        final long[] counts = histograms[histogram];
+
+        if(0 == samples[histogram])
+            return 0;
+
+        final long target = (long)Math.ceil(samples[histogram] * percentile / 100.0);
+
+        long seen = 0;
+        for(int i=0; i<BUCKETS; ++i)
+        {
+            seen += counts[i];
+            if(seen >= target)
+                return Math.min(highestValueIn(i), maxima[histogram]);
+        }
+
+        return maxima[histogram];
+    }
+
+    /**
+     * Shortens a statement to fit on a single line of a report.
+     */
+    static String abbreviate(String sql)
+    {
+        final StringBuilder sb = new StringBuilder(SQL_LENGTH + 3);
+
+        // Collapse all whitespace so each statement fits on one line
+        boolean space = false;
+        for(int i=0; i<sql.length() && sb.length() < SQL_LENGTH; ++i)
+        {
+            final char c = sql.charAt(i);
+
+            if(Character.isWhitespace(c))
+                space = 0 < sb.length();
+            else
+            {
+                if(space)
+                    sb.append(' ');
+                sb.append(c);
+                space = false;
+            }
+        }
+
+        if(sb.length() >= SQL_LENGTH)
+            sb.append("...");
+
+        return sb.toString();
+    }
+
+    private List<Slow> getSlowest()
+    {
+        final ArrayList<Slow> list = new ArrayList<Slow>(slowest);
+
+        Collections.sort(list, Collections.reverseOrder(FASTEST_FIRST));
+
+        return list;
+    }
+
+    private double getElapsedSeconds()
+    {
+        return (System.nanoTime() - started) / 1e9;
+    }
+
+    private long mean(int histogram)
+    {
+        return 0 == samples[histogram] ? 0 : totals[histogram] / samples[histogram];
+    }
+
+    private static double rate(long count, double seconds)
+    {
+        return 0 < seconds ? count / seconds : 0;
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    /**
+     * Writes a human-readable summary of the run.
+     */
+    void printSummary(PrintStream out)
+    {
+        final double seconds = getElapsedSeconds();
+
+        out.println("Summary for " + script + ":");
+        out.println(String.format("  Statements: %d executed, %d failed in %.3fs (%.1f statements/sec)",
+                                  statements, failures, seconds, rate(statements, seconds)));
+        out.println(String.format("  Rows: %d fetched, %d affected (%.1f rows/sec)",
+                                  rowsFetched, rowsAffected, rate(rowsFetched + rowsAffected, seconds)));
+        out.println();
+        out.println(String.format("  %-10s %12s %10s %10s %10s %10s %10s",
+                                  "Phase (ms)", "Total", "Mean", "p50", "p90", "p99", "Max"));
+
+        for(int i=0; i<=TOTAL; ++i)
+        {
+            out.println(String.format("  %-10s %12s %10s %10s %10s %10s %10s",
+                                      i == TOTAL ? "total" : StatementMetrics.PHASES[i],
+                                      millis(totals[i]),
+                                      millis(mean(i)),
+                                      millis(percentile(i, 50)),
+                                      millis(percentile(i, 90)),
+                                      millis(percentile(i, 99)),
+                                      millis(maxima[i])));
+        }
+
+        if(!slowest.isEmpty())
+        {
+            out.println();
+            out.println("  Slowest statements:");
+            for(Slow slow : getSlowest())
+                out.println(String.format("  %12sms  %s:%d  %s",
+                                          millis(slow.elapsed), script, slow.line, slow.sql));
+        }
+        out.println();
+    }
+
+    /**
+     * Writes the metrics to a file, as CSV if the file name ends with
+     * <code>.csv</code> and as JSON otherwise.
+     */
+    void write(File file)
+        throws IOException
+    {
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try
+        {
+            if(file.getName().toLowerCase().endsWith(".csv"))
+                writeCSV(out);
+            else
+                writeJSON(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void writeJSON(Writer out)
+        throws IOException
+    {
+        final double seconds = getElapsedSeconds();
+
+        out.write("{\n");
+        out.write("  \"script\": " + quoteJSON(script) + ",\n");
+        out.write("  \"statements\": " + statements + ",\n");
+        out.write("  \"failures\": " + failures + ",\n");
+        out.write("  \"elapsedSeconds\": " + seconds + ",\n");
+        out.write("  \"statementsPerSecond\": " + rate(statements, seconds) + ",\n");
+        out.write("  \"rowsFetched\": " + rowsFetched + ",\n");
+        out.write("  \"rowsAffected\": " + rowsAffected + ",\n");
+        out.write("  \"rowsPerSecond\": " + rate(rowsFetched + rowsAffected, seconds) + ",\n");
+        out.write("  \"phases\": {\n");
+        for(int i=0; i<=TOTAL; ++i)
+        {
+            out.write("    " + quoteJSON(i == TOTAL ? "total" : StatementMetrics.PHASES[i]) + ": {");
+            out.write(" \"count\": " + samples[i]);
+            out.write(", \"totalNanos\": " + totals[i]);
+            out.write(", \"meanNanos\": " + mean(i));
+            out.write(", \"p50Nanos\": " + percentile(i, 50));
+            out.write(", \"p90Nanos\": " + percentile(i, 90));
+            out.write(", \"p99Nanos\": " + percentile(i, 99));
+            out.write(", \"maxNanos\": " + maxima[i]);
+            out.write(i == TOTAL ? " }\n" : " },\n");
+        }
+        out.write("  },\n");
+        out.write("  \"slowest\": [");
+        boolean first = true;
+        for(Slow slow : getSlowest())
+        {
+            out.write(first ? "\n" : ",\n");
+            out.write("    { \"line\": " + slow.line
+                      + ", \"nanos\": " + slow.elapsed
+                      + ", \"sql\": " + quoteJSON(slow.sql) + " }");
+            first = false;
+        }
+        out.write(first ? "]\n" : "\n  ]\n");
+        out.write("}\n");
+    }
+
+    private void writeCSV(Writer out)
+        throws IOException
+    {
+        final double seconds = getElapsedSeconds();
+
+        out.write("metric,value\n");
+        out.write("script," + quoteCSV(script) + "\n");
+        out.write("statements," + statements + "\n");
+        out.write("failures," + failures + "\n");
+        out.write("elapsed_seconds," + seconds + "\n");
+        out.write("statements_per_second," + rate(statements, seconds) + "\n");
+        out.write("rows_fetched," + rowsFetched + "\n");
+        out.write("rows_affected," + rowsAffected + "\n");
+        out.write("rows_per_second," + rate(rowsFetched + rowsAffected, seconds) + "\n");
+        for(int i=0; i<=TOTAL; ++i)
+        {
+            final String phase = i == TOTAL ? "total" : StatementMetrics.PHASES[i];
+
+            out.write(phase + ".count," + samples[i] + "\n");
+            out.write(phase + ".total_nanos," + totals[i] + "\n");
+            out.write(phase + ".mean_nanos," + mean(i) + "\n");
+            out.write(phase + ".p50_nanos," + percentile(i, 50) + "\n");
+            out.write(phase + ".p90_nanos," + percentile(i, 90) + "\n");
+            out.write(phase + ".p99_nanos," + percentile(i, 99) + "\n");
+            out.write(phase + ".max_nanos," + maxima[i] + "\n");
+        }
+        int rank = 0;
+        for(Slow slow : getSlowest())
+        {
+            ++rank;
+            out.write("slowest." + rank + ".line," + slow.line + "\n");
+            out.write("slowest." + rank + ".nanos," + slow.elapsed + "\n");
+            out.write("slowest." + rank + ".sql," + quoteCSV(slow.sql) + "\n");
+        }
+    }
+
+    static String quoteJSON(String s)
+    {
+        final StringBuilder sb = new StringBuilder(s.length() + 2);
+
+        sb.append('"');
+        for(int i=0; i<s.length(); ++i)
+        {
+            final char c = s.charAt(i);
+
+            switch(c)
+            {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                        sb.append(String.format("\\u%04x", (int)c));
+                    else
+                        sb.append(c);
+            }
+        }
+        sb.append('"');
+
+        return sb.toString();
+    }
+
+    static String quoteCSV(String s)
+    {
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
@@ -9,20 +9,19 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.Charset;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.util.Formatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -43,8 +42,22 @@ public class SQLExecutor
 
     static final String NEWLINE = System.getProperty("line.separator");
 
+    // Rows fetched before any of them are rendered, so that fetching and
+    // rendering can be timed separately without reading the clock for
+    // every row
+    private static final int ROWS_PER_LAP = 64;
+
     public static void main(String[] args)
     {
+        try
+        {
+            ConsoleStreams.install();
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            // Leave standard output alone
+        }
+
         String username = null;
         String password = null;
         boolean readSecurePassword = false;
@@ -53,9 +66,67 @@ public class SQLExecutor
         String driverJarFile = null;
         String script = null;
         String encoding = System.getProperty("file.encoding", "UTF-8");
+        // Whether the script uses MySQL's syntax for strings and comments
+        boolean mysql = false;
         boolean clearScreenBeforeStatement = false;
         // Number of statements to skip at the beginning of the script.
         int skipLines = 0;
+        // Number of statements to read from the script in the background
+        int readAhead = 16;
+        // Statement (1-based) or line to jump to using the statement index
+        long resumeAtStatement = 0;
+        long resumeAtLine = 0;
+        boolean useIndex = false;
+        final ExecutionOptions options = new ExecutionOptions();
+        // Number of statements to send in a single JDBC batch in "go" mode
+        int batchSize = 0;
+        // Whether to replace literals with parameters and re-use statements
+        boolean parameterize = false;
+        int statementCacheSize = 100;
+        // Where to record the progress of the script, and whether to
+        // pick up where the journal says the last run left off
+        String journalFile = null;
+        boolean resume = false;
+        // Whether to print a summary of timings at exit, and where to save them
+        boolean printStats = false;
+        String statsFile = null;
+        // Whether to run without prompts, and what to do when a statement fails
+        boolean headless = false;
+        String onError = "stop";
+        boolean quiet = false;
+        boolean summary = false;
+        // How many times to retry statements which fail for transient
+        // reasons such as deadlocks, and what those reasons are
+        int maxRetries = 0;
+        String retryStates = RetryPolicy.DEFAULT_STATES;
+        long retryDelay = 100;
+        // Where and how to export result sets instead of showing tables
+        String outputFormat = "table";
+        String outputFile = null;
+        boolean gzip = false;
+        // Databases to run the script against instead of --url, and how
+        // many of them to run at once
+        String targetsFile = null;
+        String urlTemplate = null;
+        String shards = null;
+        int parallel = 4;
+        String logDir = null;
+        // Number of connections to use for running independent statements
+        // at the same time
+        int parallelStatements = 0;
+        // Whether to show a periodic status line, and publish progress
+        // over JMX
+        boolean showStatus = false;
+        boolean jmx = false;
+        // How many statements, or how many milliseconds' worth of them, to
+        // group into a single transaction
+        int commitEvery = 0;
+        long commitInterval = 0;
+        // Explain statements instead of executing them
+        boolean dryRun = false;
+        long largeTable = 100000;
+        // Where to send long results when running interactively
+        String pagerCommand = null;
 
         int i;
         for(i=0; i<args.length; )
@@ -78,10 +149,104 @@ public class SQLExecutor
                 script = args[i++];
             else if("--encoding".equals(arg))
                 encoding = args[i++];
+            else if("--mysql".equals(arg))
+                mysql = true;
+            else if("--read-ahead".equals(arg))
+                readAhead = Integer.parseInt(args[i++]);
             else if("--skip".equals(arg))
                 skipLines = Integer.parseInt(args[i++]);
+            else if("--index".equals(arg))
+                useIndex = true;
+            else if("--resume-at-statement".equals(arg))
+            {
+                resumeAtStatement = Long.parseLong(args[i++]);
+                useIndex = true;
+            }
+            else if("--resume-at-line".equals(arg))
+            {
+                resumeAtLine = Long.parseLong(args[i++]);
+                useIndex = true;
+            }
+            else if("--journal".equals(arg))
+                journalFile = args[i++];
+            else if("--resume".equals(arg))
+                resume = true;
+            else if("--stats".equals(arg))
+                printStats = true;
+            else if("--stats-file".equals(arg))
+                statsFile = args[i++];
+            else if("--batch".equals(arg))
+                headless = true;
+            else if("--on-error".equals(arg))
+                onError = args[i++];
+            else if("--retry".equals(arg))
+                maxRetries = Integer.parseInt(args[i++]);
+            else if("--retry-states".equals(arg))
+                retryStates = args[i++];
+            else if("--retry-delay".equals(arg))
+                retryDelay = Long.parseLong(args[i++]);
+            else if("--quiet".equals(arg))
+                quiet = true;
+            else if("--summary".equals(arg))
+                summary = true;
+            else if("--status".equals(arg))
+                showStatus = true;
+            else if("--jmx".equals(arg))
+                jmx = true;
+            else if("--output".equals(arg))
+                outputFormat = args[i++];
+            else if("--output-file".equals(arg))
+                outputFile = args[i++];
+            else if("--gzip".equals(arg))
+                gzip = true;
+            else if("--targets".equals(arg))
+                targetsFile = args[i++];
+            else if("--url-template".equals(arg))
+                urlTemplate = args[i++];
+            else if("--shards".equals(arg))
+                shards = args[i++];
+            else if("--parallel".equals(arg))
+                parallel = Integer.parseInt(args[i++]);
+            else if("--log-dir".equals(arg))
+                logDir = args[i++];
+            else if("--parallel-statements".equals(arg))
+                parallelStatements = Integer.parseInt(args[i++]);
+            else if("--commit-every".equals(arg))
+                commitEvery = Integer.parseInt(args[i++]);
+            else if("--commit-interval".equals(arg))
+                commitInterval = Long.parseLong(args[i++]);
+            else if("--pager".equals(arg))
+                pagerCommand = Pager.getDefaultCommand();
+            else if("--dry-run".equals(arg))
+                dryRun = true;
+            else if("--large-table".equals(arg))
+                largeTable = Long.parseLong(args[i++]);
             else if("--clear".equals(arg))
                 clearScreenBeforeStatement = true;
+            else if("--fetch-size".equals(arg))
+                options.fetchSize = Integer.parseInt(args[i++]);
+            else if("--max-rows".equals(arg))
+                options.maxRows = Integer.parseInt(args[i++]);
+            else if("--statement-timeout".equals(arg))
+                options.queryTimeout = Integer.parseInt(args[i++]);
+            else if("--page-size".equals(arg))
+                options.pageSize = Integer.parseInt(args[i++]);
+            else if("--sample-rows".equals(arg))
+                options.sampleRows = Integer.parseInt(args[i++]);
+            else if("--max-width".equals(arg))
+                options.maxWidth = Integer.parseInt(args[i++]);
+            else if("--wrap".equals(arg))
+                options.wrap = true;
+            else if("--lob-limit".equals(arg))
+                options.lobLimit = Integer.parseInt(args[i++]);
+            else if("--lob-dir".equals(arg))
+                options.lobDir = new File(args[i++]);
+            else if("--batch-size".equals(arg))
+                batchSize = Integer.parseInt(args[i++]);
+            else if("--parameterize".equals(arg))
+                parameterize = true;
+            else if("--statement-cache".equals(arg))
+                statementCacheSize = Integer.parseInt(args[i++]);
             else if("--help".equals(arg) || "-h".equals(arg))
             {
                 usage();
@@ -93,12 +258,112 @@ public class SQLExecutor
 
         if(null == jdbcDriverClassName
            || null == script
-           || null == jdbcUrl)
+           || (null == jdbcUrl && null == targetsFile && null == urlTemplate)
+           || (null != urlTemplate && null == shards)
+           || 1 > parallel)
         {
             usage();
             System.exit(1);
         }
 
+        if(!Charset.isSupported(encoding))
+        {
+            System.err.println("Unsupported encoding: " + encoding);
+            System.exit(1);
+        }
+
+        if(!"stop".equals(onError) && !"skip".equals(onError) && !"continue".equals(onError))
+        {
+            System.err.println("Unrecognized error policy: " + onError);
+            System.exit(1);
+        }
+
+        if(0 < maxRetries)
+            options.retry = new RetryPolicy(retryStates, maxRetries, retryDelay);
+
+        List<FanOut.Target> targets = null;
+        try
+        {
+            if(null != targetsFile)
+                targets = FanOut.readTargets(new File(targetsFile));
+            else if(null != urlTemplate)
+                targets = FanOut.expand(urlTemplate, shards);
+        }
+        catch (IllegalArgumentException iae)
+        {
+            System.err.println(iae.getMessage());
+            System.exit(1);
+        }
+        catch (IOException ioe)
+        {
+            System.err.println("Could not read targets file " + targetsFile);
+            ioe.printStackTrace();
+            System.exit(1);
+        }
+
+        if(null != targets && !"table".equals(outputFormat))
+        {
+            System.err.println("--output can't be used with more than one target");
+            System.exit(1);
+        }
+
+        if((0 < commitEvery || 0 < commitInterval) && (null != targets || 0 < parallelStatements))
+        {
+            System.err.println("--commit-every and --commit-interval can't be used with --targets, --url-template or --parallel-statements");
+            System.exit(1);
+        }
+
+        if(dryRun)
+        {
+            if(null != targets || 0 < parallelStatements)
+            {
+                System.err.println("--dry-run can't be used with --targets, --url-template or --parallel-statements");
+                System.exit(1);
+            }
+
+            headless = true;
+        }
+
+        if(0 < parallelStatements)
+        {
+            if(null != targets || !"table".equals(outputFormat) || 0 < batchSize)
+            {
+                System.err.println("--parallel-statements can't be used with --targets, --url-template, --output or --batch-size");
+                System.exit(1);
+            }
+
+            // There's no sensible way to step through statements that
+            // are running at the same time
+            headless = true;
+        }
+
+        if(null != options.lobDir && !options.lobDir.isDirectory() && !options.lobDir.mkdirs())
+        {
+            System.err.println("Could not create LOB directory " + options.lobDir);
+            System.exit(1);
+        }
+
+        if(!"table".equals(outputFormat))
+        {
+            try
+            {
+                options.exporter = ResultExporter.open(outputFormat,
+                                                       null == outputFile ? null : new File(outputFile),
+                                                       gzip || (null != outputFile && outputFile.endsWith(".gz")));
+            }
+            catch (IllegalArgumentException iae)
+            {
+                System.err.println(iae.getMessage());
+                System.exit(1);
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Could not create output file " + outputFile);
+                ioe.printStackTrace();
+                System.exit(1);
+            }
+        }
+
         if(readSecurePassword)
             password = new String(System.console().readPassword("Enter password: "));
 
@@ -130,20 +395,104 @@ public class SQLExecutor
             System.exit(1);
         }
 
-        // Connect to database
-        Connection conn = null;
-        try
+        Properties props = null;
+
+        if(null != username || null != password) {
+            props = new Properties();
+            if(null != username)
+                props.put("user", username);
+            if(null != password)
+                props.put("password", password);
+        }
+
+        // Run the whole script against every target, then stop
+        if(null != targets)
         {
-            Properties props = null;
+            final File scriptFile = new File(script);
+            StatementIndex index = null;
+            StatementReader in = null;
+            ScriptStatement start = null;
+            boolean startMySQL = mysql;
+
+            try
+            {
+                if(useIndex)
+                {
+                    try
+                    {
+                        index = StatementIndex.open(scriptFile, StatementIndex.getIndexFile(scriptFile));
+                    }
+                    catch (IOException ioe)
+                    {
+                        System.err.println("Could not open statement index; continuing without it");
+                        ioe.printStackTrace();
+                    }
+                }
+
+                in = new StatementReader(scriptFile, Charset.forName(encoding), index, mysql);
+
+                if(0 < resumeAtStatement)
+                    in.resumeAtStatement(resumeAtStatement - 1);
+                else if(0 < resumeAtLine)
+                    in.resumeAtLine(resumeAtLine);
 
-            if(null != username || null != password) {
-                props = new Properties();
-                if(null != username)
-                    props.put("user", username);
-                if(null != password)
-                    props.put("password", password);
+                in.skipLines(skipLines);
+
+                // Each target reads the script for itself, starting here
+                do
+                    start = in.next();
+                while(null != start && queryIsBlank(start.getText()));
+
+                startMySQL = in.isMySQL();
+            }
+            catch (IOException ioe)
+            {
+                System.err.println("Failed to read script file");
+                ioe.printStackTrace();
+                System.exit(2);
+            }
+            finally
+            {
+                if(null != in) try { in.close(); }
+                catch (IOException ioe) { System.err.println("Could not close script file"); }
+                if(null != index) try { index.close(); }
+                catch (IOException ioe) { System.err.println("Could not close statement index"); }
+            }
+
+            final FanOut fanOut = new FanOut(driver, props, script, Charset.forName(encoding), startMySQL,
+                                             start, options, System.out);
+            fanOut.onError = onError;
+            fanOut.batchSize = batchSize;
+            if(parameterize)
+                fanOut.statementCacheSize = statementCacheSize;
+            if(resume || null != journalFile)
+                fanOut.journal = null == journalFile
+                    ? ExecutionJournal.getJournalFile(scriptFile)
+                    : new File(journalFile);
+            fanOut.resume = resume && 0 == resumeAtStatement && 0 == resumeAtLine;
+            if(null != logDir)
+                fanOut.logDir = new File(logDir);
+            if(printStats || null != statsFile)
+                fanOut.metrics = new RunMetrics(script, 10);
+
+            final int exitStatus = fanOut.run(targets, parallel);
+
+            if(null != fanOut.metrics)
+            {
+                if(printStats)
+                    fanOut.metrics.printSummary(System.out);
+
+                if(null != statsFile) try { fanOut.metrics.write(new File(statsFile)); }
+                catch (IOException ioe) { System.err.println("Could not write statistics to " + statsFile); ioe.printStackTrace(); }
             }
 
+            System.exit(exitStatus);
+        }
+
+        // Connect to database
+        Connection conn = null;
+        try
+        {
             conn = driver.connect(jdbcUrl, props);
         }
         catch (SQLException sqle)
@@ -153,28 +502,194 @@ public class SQLExecutor
             System.exit(1);
         }
 
-        BufferedReader in = null;
+        if(parameterize)
+            options.statementCache = new StatementCache(conn, statementCacheSize);
+
+        StatementReader in = null;
+        StatementIndex index = null;
+        ExecutionJournal journal = null;
+        RunMetrics metrics = null;
+        Progress progress = null;
         BufferedReader cmd = null;
+        StatementRunner runner = null;
+        ParallelRunner parallelRunner = null;
+        TransactionGroup group = null;
 
-        // The current line number
-        int lineNumber = 1;
+        // Prompts and statements are only shown when running interactively,
+        // and results aren't shown at all when running quietly.
+        final PrintStream nowhere = new PrintStream(new NullOutputStream());
+        final PrintStream console = headless ? nowhere : System.out;
+        final PrintStream results = quiet ? nowhere : System.out;
+
+        // Counts for --summary
+        final long started = System.nanoTime();
+        long executed = 0;
+        long failed = 0;
+        long skipped = 0;
+        long rows = 0;
+
+        int exitStatus = 0;
 
         try
         {
-            in = new BufferedReader(new InputStreamReader(new FileInputStream(script), encoding));
+            final File scriptFile = new File(script);
+
+            if(useIndex)
+            {
+                try
+                {
+                    index = StatementIndex.open(scriptFile, StatementIndex.getIndexFile(scriptFile));
+                }
+                catch (IOException ioe)
+                {
+                    System.err.println("Could not open statement index; continuing without it");
+                    ioe.printStackTrace();
+                }
+            }
+
+            in = new StatementReader(scriptFile, Charset.forName(encoding), index, mysql);
             cmd = new BufferedReader(new InputStreamReader(System.in, System.getProperty("file.encoding")));
 
-            System.out.print("Executing script '");
-            System.out.print(script);
-            System.out.println('\'');
+            // Run statements in the background so they can be cancelled,
+            // unless there's nobody there to cancel them.
+            if(!headless)
+                runner = new StatementRunner(cmd, console);
+
+            if(!quiet && !dryRun)
+            {
+                System.out.print("Executing script '");
+                System.out.print(script);
+                System.out.println('\'');
+            }
 
             StringBuilder query = null;
-            String line = "";
 
-            while(skipLines-- > 0)
+            if(0 < resumeAtStatement)
+                in.resumeAtStatement(resumeAtStatement - 1);
+            else if(0 < resumeAtLine)
+                in.resumeAtLine(resumeAtLine);
+
+            if(resume || null != journalFile)
+            {
+                final File file = null == journalFile
+                    ? ExecutionJournal.getJournalFile(scriptFile)
+                    : new File(journalFile);
+
+                if(resume && 0 == resumeAtStatement && 0 == resumeAtLine)
+                {
+                    final ExecutionJournal.Record last = ExecutionJournal.readLast(file);
+
+                    if(null == last)
+                        results.println("Nothing to resume in journal " + file);
+                    else
+                    {
+                        final ScriptStatement found = in.seek(last.statement);
+
+                        // Make sure the script hasn't changed underneath us
+                        if(null == found || last.hash != found.getText().hashCode())
+                        {
+                            System.err.println("Script " + script + " does not match journal " + file
+                                               + " at line " + last.statement.getStartLine()
+                                               + "; use --resume-at-line to resume anyway");
+                            exitStatus = 1;
+                            return;
+                        }
+
+                        // Everything but a failed statement is finished
+                        if(ExecutionJournal.FAILED == last.status)
+                            results.println("Resuming at line " + last.statement.getStartLine() + " from journal " + file);
+                        else
+                        {
+                            in.next();
+
+                            results.println("Resuming after line " + last.statement.getEndLine() + " from journal " + file);
+                        }
+                    }
+                }
+
+                journal = ExecutionJournal.open(file);
+            }
+
+            if(printStats || null != statsFile)
+                metrics = new RunMetrics(script, 10);
+
+            final StatementExecutor executor = new StatementExecutor(script, onError, journal, metrics, System.err);
+
+            if(0 < commitEvery || 0 < commitInterval)
+            {
+                try
+                {
+                    conn.setAutoCommit(false);
+                }
+                catch (SQLException sqle)
+                {
+                    System.err.println("Could not disable auto-commit");
+                    sqle.printStackTrace();
+                    exitStatus = 1;
+                    return;
+                }
+
+                group = new TransactionGroup(conn, commitEvery, commitInterval, journal, metrics);
+            }
+
+            in.skipLines(skipLines);
+
+            // Read and split the script while statements are executing
+            in.readAhead(readAhead);
+
+            if(dryRun)
+            {
+                try
+                {
+                    new DryRun(conn, largeTable).run(in, script, System.out);
+                }
+                catch (SQLException sqle)
+                {
+                    System.err.println("Could not explain statements");
+                    sqle.printStackTrace();
+                    exitStatus = 1;
+                }
+
+                return;
+            }
+
+            if(showStatus || jmx)
+            {
+                progress = new Progress(script, ScriptInput.getSize(new File(script)), showStatus ? System.err : null);
+                if(jmx)
+                    progress.register();
+            }
+
+            if(0 < parallelStatements)
             {
-                in.readLine();
-                ++lineNumber;
+                try
+                {
+                    parallelRunner = new ParallelRunner(driver, jdbcUrl, props, conn, parallelStatements,
+                                                        options, statementCacheSize,
+                                                        script, results, executor);
+                }
+                catch (SQLException sqle)
+                {
+                    System.err.println("Could not connect to database");
+                    sqle.printStackTrace();
+                    exitStatus = 1;
+                    return;
+                }
+
+                parallelRunner.progress = progress;
+                final boolean finished = parallelRunner.run(in);
+
+                executed = parallelRunner.getExecuted();
+                skipped = parallelRunner.getSkipped();
+                failed = parallelRunner.getFailed();
+
+                if(!finished)
+                {
+                    console.println("Quitting at " + script);
+                    exitStatus = 3;
+                }
+
+                return;
             }
 
             // Set to true when it's time to totally stop: 'q' command or EOF
@@ -186,19 +701,32 @@ public class SQLExecutor
             // and re-run the same statement.
             boolean readNext = true;
 
-            // The script's line number where the statement begins
-            long statementStartLine = 0;
+            // The current statement's location in the script. Its text
+            // is in "query", which may have been edited.
+            ScriptStatement current = null;
+
+            // Data-modification statements waiting to be sent as a batch
+            final StatementBatch batch = 0 < batchSize ? new StatementBatch(batchSize, options.queryTimeout) : null;
 
             boolean complete = false;
-            boolean goUntilError = false;
+            // Running headless is just like pressing 'g' and never stopping
+            boolean goUntilError = headless;
             boolean firstQuery = true;
+            // Set to true by 'b' when grouping statements into transactions,
+            // so nothing is committed until 'c'
+            boolean manualTransaction = false;
+            // Set to true when a transaction group couldn't be committed
+            boolean commitFailed = false;
+            // Number of times the current statement, and anything rolled
+            // back along with it, has been retried since the last commit
+            int retries = 0;
 
             while(!stop)
             {
                 if(readNext)
                 {
                     query = new StringBuilder();
-                    statementStartLine = lineNumber;
+                    current = null;
                 }
 
                 // Might have to read more script than we know about.
@@ -210,36 +738,187 @@ public class SQLExecutor
                 {
                     // System.out.println("At top of 'more' loop, readNext=" + readNext + ", more=" + more + ", complete=" + complete);
 
-                    if(!complete && null == line)
-                        System.out.println("!! Reached end-of-script");
+                    if(!complete && in.isAtEnd())
+                        console.println("!! Reached end-of-script");
 
                     // Usually don't have to read more script
                     more = false;
 
                     if(readNext)
                     {
-                        while(null != (line = in.readLine()))
+                        final ScriptStatement next = in.next();
+
+                        if(null == next)
+                            ; // Nothing more to read
+                        else if(null == current)
                         {
-                            ++lineNumber;
+                            current = next;
+                            query.append(next.getText());
+                        }
+                        else
+                        {
+                            current = current.extend(next);
+                            query.append(NEWLINE).append(next.getText());
+                        }
+                    }
 
-                            query.append(line).append(NEWLINE);
+                    complete |= (in.isAtEnd() && queryIsBlank(query));
 
-                            // Stop when you get to the end of a statement
-                            if(line.trim().endsWith(";"))
-                                break;
+                    // Statements since the last commit don't count until
+                    // they've been committed: they may yet be rolled back
+                    if(null != progress)
+                    {
+                        if(null == group)
+                            progress.update(executed, skipped, failed, rows, complete ? null : current);
+                        else
+                            progress.update(executed - group.size(), skipped, failed, rows - group.getUpdateCount(),
+                                            complete ? null : current);
+                    }
+
+                    // Send any pending batch before moving on to a statement
+                    // that can't be part of it.
+                    if(null != batch && !batch.isEmpty()
+                       && (complete || batch.isFull() || !goUntilError || !StatementBatch.isBatchable(query)))
+                    {
+                        console.println(">>>> Executing batch (" + batch.size() + " statements) <<<<");
+                        console.flush();
+                        final long batchStarted = System.nanoTime();
+                        try
+                        {
+                            final int[] counts = batch.execute(conn, results);
+                            final long elapsed = System.nanoTime() - batchStarted;
+
+                            executed += counts.length;
+                            for(int count : counts)
+                                if(0 < count)
+                                    rows += count;
+
+                            if(null != group)
+                            {
+                                // The driver doesn't say how long each statement took
+                                for(int j=0; j<batch.size(); ++j)
+                                    group.executed(batch.get(j),
+                                                   j < counts.length && 0 <= counts[j] ? counts[j] : -1,
+                                                   elapsed / batch.size());
+                            }
+                            else
+                            {
+                                retries = 0;
+                                executor.executed(batch, counts, elapsed);
+                            }
                         }
+                        catch (SQLException sqle)
+                        {
+                            // Back up to the statement that failed so it
+                            // can be re-tried, followed by everything else
+                            // that didn't get executed.
+                            final List<ScriptStatement> unexecuted = batch.getUnexecuted(sqle);
+                            // Nothing is rolled back in a manual transaction,
+                            // and trying again in a failed one is pointless
+                            final boolean retrying = goUntilError && null != options.retry
+                                                     && !manualTransaction
+                                                     && options.retry.shouldRetry(sqle, ++retries);
+
+                            if(null != group)
+                            {
+                                for(int j=0; j<batch.size(); ++j)
+                                    if(!unexecuted.contains(batch.get(j)))
+                                        group.executed(batch.get(j), -1, 0);
+
+                                executor.failed(manualTransaction || group.isEmpty() ? unexecuted.get(0) : group.getFirst(),
+                                                System.nanoTime() - batchStarted);
+                            }
+                            else
+                                executor.failed(batch, sqle, System.nanoTime() - batchStarted);
+
+                            executed += batch.size() - unexecuted.size();
+
+                            final ScriptStatement failedStatement = unexecuted.remove(0);
+
+                            if(!retrying)
+                            {
+                                retries = 0;
+                                ++failed;
+                                executor.report(failedStatement, sqle);
+                            }
+
+                            if(!queryIsBlank(query))
+                                unexecuted.add(current.withText(query.toString()));
+                            in.unread(unexecuted);
+
+                            query = new StringBuilder(failedStatement.getText());
+                            current = failedStatement;
+                            complete = false;
+                            goUntilError = false;
+                            readNext = false;
+
+                            // Everything since the last commit is gone. Roll
+                            // back even if that's nothing, since some servers
+                            // (e.g. PostgreSQL) refuse to do anything else
+                            // in a transaction once a statement has failed.
+                            if(null != group && !manualTransaction)
+                            {
+                                executed -= group.size();
+                                rows -= group.getUpdateCount();
+                                current = rollBack(group, in, current, !retrying && headless && !executor.stopsOnError(), script);
+                                query = new StringBuilder(current.getText());
+                            }
+
+                            if(retrying)
+                                goUntilError = options.retry.backOff(sqle, retries, script + ":" + failedStatement.getStartLine(), System.err);
+                        }
+                        batch.clear();
                     }
 
-                    complete |= (null == line && queryIsBlank(query));
+                    // Commit the transaction group once it's big or old
+                    // enough, or before stopping for any reason. A chunked
+                    // statement commits as it goes, so commit beforehand
+                    // anything that could otherwise be rolled back later.
+                    if(null != group && !manualTransaction && !group.isEmpty()
+                       && (complete || !goUntilError || group.isDue() || ChunkedStatement.isChunked(query)))
+                    {
+                        try
+                        {
+                            group.commit();
+                            retries = 0;
+                        }
+                        catch (SQLException sqle)
+                        {
+                            // Serialization failures often only show up here
+                            final boolean retrying = goUntilError && null != options.retry
+                                                     && options.retry.shouldRetry(sqle, ++retries);
+
+                            if(!retrying)
+                            {
+                                retries = 0;
+                                System.err.println("Failed to commit transaction");
+                                sqle.printStackTrace();
+                                ++failed;
+                            }
+                            executed -= group.size();
+                            rows -= group.getUpdateCount();
+
+                            // Go back and do the whole group again
+                            current = rollBack(group, in,
+                                               queryIsBlank(query) ? null : current.withText(query.toString()),
+                                               false, script);
+                            query = new StringBuilder(current.getText());
+                            complete = false;
+                            goUntilError = retrying
+                                && options.retry.backOff(sqle, retries, script + ":" + current.getStartLine(), System.err);
+                            readNext = false;
+                            commitFailed = !goUntilError;
+                        }
+                    }
 
                     if(complete)
                     {
                         goUntilError = false; // Stop the madness
-                        System.out.println("Script " + script + " is complete.");
-                        System.out.println();
-                        System.out.print("> Command (D/b/r/c/>/h/q)? ");
+                        console.println("Script " + script + " is complete.");
+                        console.println();
+                        console.print("> Command (D/b/r/c/>/h/q)? ");
                     }
-                    else
+                    else if(!headless)
                     {
                         if(clearScreenBeforeStatement && readNext) {
                             // Don't require ENTER before showing the first query.
@@ -248,6 +927,7 @@ public class SQLExecutor
                             else
                             {
                                 System.out.println("Press ENTER to continue to the next query...");
+                                System.out.flush();
 
                                 cmd.readLine();
                             }
@@ -255,12 +935,17 @@ public class SQLExecutor
                             System.out.write(CLS);
                         }
 
-                        if(statementStartLine == (lineNumber - 1))
-                            System.out.println(script + ": " + statementStartLine + ":");
+                        // Only bother with columns when a line contains
+                        // more than one statement.
+                        if(1 < current.getStartColumn())
+                            System.out.println(script + ": " + current.getStartLine() + ":" + current.getStartColumn()
+                                               + " - " + current.getEndLine() + ":" + current.getEndColumn() + ":");
+                        else if(current.getStartLine() == current.getEndLine())
+                            System.out.println(script + ": " + current.getStartLine() + ":");
                         else
-                            System.out.println(script + ": " + statementStartLine + " - " + (lineNumber - 1) + ":");
+                            System.out.println(script + ": " + current.getStartLine() + " - " + current.getEndLine() + ":");
 
-                        System.out.print(query); // Should already end with a \n
+                        System.out.println(query);
                         System.out.println();
                         System.out.print("> Execute (D/x/g/s/b/r/c/m/!/>/h/q)? ");
                     }
@@ -268,17 +953,50 @@ public class SQLExecutor
                     final String command;
                     if(goUntilError) {
                         command = "x";
-                        System.out.println(); // Newline replaces the one the user would enter
+                        console.println(); // Newline replaces the one the user would enter
+                    } else if(headless) {
+                        // A statement failed, or we're done
+                        if(complete || executor.stopsOnError() || commitFailed)
+                            command = "q";
+                        else
+                        {
+                            command = "s";
+                            goUntilError = true;
+                        }
                     } else {
+                        System.out.flush();
                         command = cmd.readLine();
                     }
 
                     if(null == command || "q".equals(command))
                     {
                         if(complete)
-                            System.out.println("Finished " + script);
+                            console.println("Finished " + script);
                         else
-                            System.out.println("Quitting at " + script + ":" + statementStartLine);
+                        {
+                            console.println("Quitting at " + script + ":" + current.getStartLine());
+
+                            if(headless)
+                                exitStatus = 3;
+                        }
+
+                        // Don't leave it up to the driver to decide what
+                        // happens to a transaction that was never finished
+                        if(null != group && !group.isEmpty())
+                        {
+                            try
+                            {
+                                System.out.println("Rolling back " + group.size() + " uncommitted statement(s)...");
+                                final long affected = group.getUpdateCount();
+                                executed -= group.rollback().size();
+                                rows -= affected;
+                            }
+                            catch (SQLException sqle)
+                            {
+                                System.err.println("Failed to ROLLBACK transaction.");
+                                sqle.printStackTrace();
+                            }
+                        }
 
                         stop = true;
                     }
@@ -286,7 +1004,11 @@ public class SQLExecutor
                     {
                         if(!complete)
                         {
-                            System.out.println(">>>> Skipping Statement <<<<");
+                            console.println(">>>> Skipping Statement <<<<");
+                            // Failures skipped by --on-error are already counted
+                            if(!headless)
+                                ++skipped;
+                            executor.skipped(current);
                             readNext = true;
                         }
                     }
@@ -298,12 +1020,56 @@ public class SQLExecutor
                             readNext = true;
                         }
                     }
+                    else if("b".equals(command) && null != group)
+                    {
+                        // Auto-commit is already off: just stop committing
+                        System.out.println("Beginning transaction (nothing will be committed until 'c')...");
+                        manualTransaction = true;
+                        readNext = false;
+                    }
+                    else if("r".equals(command) && null != group)
+                    {
+                        try
+                        {
+                            final int count = group.size();
+                            final long affected = group.getUpdateCount();
+                            System.out.println("Rolling back " + count + " statement(s)...");
+                            group.rollback();
+                            executed -= count;
+                            rows -= affected;
+                        }
+                        catch (SQLException sqle)
+                        {
+                            System.err.println("Failed to ROLLBACK transaction.");
+                            sqle.printStackTrace();
+                        }
+                        manualTransaction = false;
+                        readNext = false;
+                    }
+                    else if("c".equals(command) && null != group)
+                    {
+                        try
+                        {
+                            System.out.println("Committing " + group.size() + " statement(s)...");
+                            group.commit();
+                        }
+                        catch (SQLException sqle)
+                        {
+                            System.err.println("Failed to COMMIT transaction.");
+                            sqle.printStackTrace();
+                        }
+                        manualTransaction = false;
+                        readNext = false;
+                    }
                     else if("b".equals(command))
                     {
                         try
                         {
                             System.out.println("Executing BEGIN...");
                             executeSQL("BEGIN;", conn, System.out);
+
+                            // Leave auto-commit alone until COMMIT or ROLLBACK
+                            options.inTransaction = true;
                         }
                         catch (SQLException sqle)
                         {
@@ -324,6 +1090,7 @@ public class SQLExecutor
                             System.err.println("Failed to ROLLBACK transaction.");
                             sqle.printStackTrace();
                         }
+                        options.inTransaction = false;
                         readNext = false;
                     }
                     else if("c".equals(command))
@@ -338,25 +1105,92 @@ public class SQLExecutor
                             System.err.println("Failed to COMMIT transaction.");
                             sqle.printStackTrace();
                         }
+                        options.inTransaction = false;
                         readNext = false;
                     }
                     else if("x".equals(command) || "y".equals(command))
                     {
-                        if(!complete)
+                        if(!complete && goUntilError && null != batch && StatementBatch.isBatchable(query))
                         {
-                            System.out.println(">>>> Executing statement <<<<");
-                            System.out.flush();
+                            console.println(">>>> Batching statement <<<<");
+                            batch.add(current.withText(query.toString()));
+                            readNext = true;
+                        }
+                        else if(!complete)
+                        {
+                            console.println(">>>> Executing statement <<<<");
+                            console.flush();
+                            final long statementStarted = System.nanoTime();
                             try
                             {
-                                executeSQL(query.toString(), conn, System.out);
+                                // Don't stop for paging when running unattended
+                                options.pageInput = goUntilError ? null : cmd;
+
+                                final StatementMetrics result = execute(query.toString(), conn, results, options, runner,
+                                                                        goUntilError || quiet ? null : pagerCommand);
+
+                                ++executed;
+                                if(0 < result.getUpdateCount())
+                                    rows += result.getUpdateCount();
+
+                                if(null != group)
+                                {
+                                    group.executed(current, result);
+
+                                    // Its chunks have already been committed
+                                    if(!manualTransaction && ChunkedStatement.isChunked(query))
+                                        group.commit();
+                                }
+                                else
+                                {
+                                    retries = 0;
+                                    executor.executed(current, result);
+                                }
                                 readNext = true;
                             }
                             catch (SQLException sqle)
                             {
-                                System.err.println("Failed to execute statement");
-                                sqle.printStackTrace();
+                                // Roll back even if nothing else was executed
+                                // since the last commit: see above
+                                final boolean rollingBack = null != group && !manualTransaction;
+
+                                // Transient failures are tried again, once rolled
+                                // back, along with anything rolled back with
+                                // them. Nothing is rolled back in a manual
+                                // transaction, so nothing is tried again either.
+                                // Chunked statements retry their own chunks.
+                                final boolean retrying = goUntilError && null != options.retry
+                                                         && !manualTransaction
+                                                         && !ChunkedStatement.isChunked(query)
+                                                         && options.retry.shouldRetry(sqle, ++retries);
+                                final ScriptStatement failedStatement = current;
+
+                                // Resume at the beginning of anything rolled back
+                                executor.failed(rollingBack && !group.isEmpty() ? group.getFirst() : current,
+                                                System.nanoTime() - statementStarted);
+                                if(!retrying)
+                                {
+                                    retries = 0;
+                                    ++failed;
+
+                                    executor.report(current, sqle);
+                                }
                                 goUntilError = false;
                                 readNext = false;
+
+                                if(rollingBack)
+                                {
+                                    executed -= group.size();
+                                    rows -= group.getUpdateCount();
+                                    current = rollBack(group, in, current.withText(query.toString()),
+                                                       !retrying && headless && !executor.stopsOnError(), script);
+                                    query = new StringBuilder(current.getText());
+                                }
+
+                                if(retrying)
+                                    goUntilError = options.retry.backOff(sqle, retries,
+                                                                         script + ":" + failedStatement.getStartLine(),
+                                                                         System.err);
                             }
                         }
                     }
@@ -370,6 +1204,7 @@ public class SQLExecutor
                         System.out.println("Enter the SQL statement you'd like to execute:");
                         System.out.println("(All on a single line: statement will be executed after a newline is entered)");
                         System.out.print("> ");
+                        System.out.flush();
                         final String statement = cmd.readLine();
 
                         if(queryIsBlank(statement))
@@ -382,7 +1217,9 @@ public class SQLExecutor
                             System.out.flush();
                             try
                             {
-                                executeSQL(statement, conn, System.out);
+                                options.pageInput = cmd;
+
+                                execute(statement, conn, System.out, options, runner, pagerCommand);
                             }
                             catch (SQLException sqle)
                             {
@@ -404,7 +1241,7 @@ public class SQLExecutor
                         System.out.println("  b            BEGIN a new transaction (executes BEGIN statement)");
                         System.out.println("  r            ROLLBACK the current transaction (executes a ROLLBACK statement)");
                         System.out.println("  c            COMMIT the current transaction (executes COMMIT statement)");
-                        System.out.println("  m            Read more lines of the script into the current statement");
+                        System.out.println("  m            Append the next statement in the script to the current statement");
                         System.out.println("  e            Edit the query using a text editor");
                         System.out.println("  >            Execute an arbitrary ad-hoc statement");
                         System.out.println("  q            Quit");
@@ -435,16 +1272,116 @@ public class SQLExecutor
         }
         catch (IOException ioe)
         {
-            System.err.println("Failed to read script file");
+            System.err.println("Failed to read script file or write journal");
             ioe.printStackTrace();
+            exitStatus = 2;
         }
         finally
         {
+            if(summary)
+            {
+                System.out.println(String.format("%s: %d executed, %d failed, %d skipped%s in %.3fs",
+                                                 script, executed, failed, skipped,
+                                                 null == options.retry ? "" : ", " + options.retry.getRetries() + " retried",
+                                                 (System.nanoTime() - started) / 1e9));
+            }
+
+            if(null != metrics)
+            {
+                if(printStats)
+                    metrics.printSummary(System.out);
+
+                if(null != statsFile) try { metrics.write(new File(statsFile)); }
+                catch (IOException ioe) { System.err.println("Could not write statistics to " + statsFile); ioe.printStackTrace(); }
+            }
+
+            if(null != progress)
+                progress.unregister();
+
+            if(null != group && !group.isEmpty()) try { group.rollback(); }
+            catch (SQLException sqle) { System.err.println("Could not roll back transaction"); sqle.printStackTrace(); }
+            if(null != runner)
+                runner.close();
+            if(null != parallelRunner)
+                parallelRunner.close();
+            if(null != options.statementCache)
+                options.statementCache.close();
+            if(null != options.exporter) try { options.exporter.close(); }
+            catch (IOException ioe) { System.err.println("Could not close output file"); ioe.printStackTrace(); exitStatus = 2; }
+
             if(null != in) try { in.close(); }
             catch (IOException ioe) { System.err.println("Could not close script file"); }
+            if(null != index) try { index.close(); }
+            catch (IOException ioe) { System.err.println("Could not close statement index"); }
+            if(null != journal) try { journal.close(); }
+            catch (IOException ioe) { System.err.println("Could not close journal"); }
+
+            // Scripts that ran to the end but skipped failures still
+            // need to be reported, unless we were told not to care.
+            if(0 == exitStatus && headless && 0 < failed && "skip".equals(onError))
+                exitStatus = 4;
+
+            // Let whoever ran us (e.g. a deploy pipeline) know how it went
+            if(0 != exitStatus)
+                System.exit(exitStatus);
         }
     }
 
+    /**
+     * Rolls back a transaction group after a failure, and backs up so that
+     * the statements which were rolled back will be executed again.
+     *
+     * @param group The transaction group.
+     * @param in The script.
+     * @param failed The statement which failed, which will be executed
+     *               again after the group, or <code>null</code> if the
+     *               group itself couldn't be committed.
+     * @param skipFailed Whether the failed statement is about to be
+     *                   skipped, in which case the group will follow it.
+     * @param script The name of the script.
+     *
+     * @return The statement to continue with: either the failed statement
+     *         or the first statement in the group.
+     */
+    private static ScriptStatement rollBack(TransactionGroup group, StatementReader in,
+                                            ScriptStatement failed, boolean skipFailed, String script)
+    {
+        final List<ScriptStatement> rolledBack;
+        try
+        {
+            rolledBack = group.rollback();
+        }
+        catch (SQLException sqle)
+        {
+            System.err.println("Failed to ROLLBACK transaction.");
+            sqle.printStackTrace();
+
+            return null == failed ? group.getFirst() : failed;
+        }
+
+        // Only the failed statement's own work was undone
+        if(rolledBack.isEmpty())
+            return failed;
+
+        final ScriptStatement first = rolledBack.get(0);
+        System.err.println("Rolled back " + rolledBack.size() + " statement(s) since the last commit; resuming at "
+                           + script + ":" + first.getStartLine());
+
+        if(skipFailed && null != failed)
+        {
+            in.unread(rolledBack);
+
+            return failed;
+        }
+
+        final ArrayList<ScriptStatement> again = new ArrayList<ScriptStatement>(rolledBack.subList(1, rolledBack.size()));
+        if(null != failed)
+            again.add(failed);
+        in.unread(again);
+
+        return first;
+    }
+
     private static StringBuilder editQuery(final StringBuilder query)
     {
         // Attempt to drop to editor
@@ -510,133 +1447,342 @@ public class SQLExecutor
         }
     }
 
-    static void executeSQL(final String statement, final Connection conn, final PrintStream out)
+    /**
+     * Executes a statement for the user, on the runner if there is one,
+     * and makes sure its results are shown before going on.
+     *
+     * @param runner The runner, or <code>null</code> to execute the
+     *               statement on this thread.
+     * @param pagerCommand The command used to page results too long for
+     *                     the screen, or <code>null</code> to write them
+     *                     straight to <code>out</code>.
+     */
+    private static StatementMetrics execute(String statement, Connection conn, PrintStream out, ExecutionOptions options,
+                                            StatementRunner runner, String pagerCommand)
+        throws SQLException
+    {
+        Pager pager = null;
+        PrintStream results = out;
+        if(null != pagerCommand)
+        {
+            pager = new Pager(pagerCommand, out, Pager.getScreenLines());
+            results = new PrintStream(pager);
+
+            // The pager does its own paging
+            options.pageInput = null;
+            options.pager = pager;
+        }
+
+        try
+        {
+            return null == runner
+                ? executeSQL(statement, conn, results, options)
+                : runner.execute(statement, conn, results, options);
+        }
+        finally
+        {
+            options.pager = null;
+
+            if(null != pager)
+                results.close();
+
+            out.flush();
+        }
+    }
+
+    static StatementMetrics executeSQL(final String statement, final Connection conn, final PrintStream out)
+        throws SQLException
+    {
+        return executeSQL(statement, conn, out, new ExecutionOptions());
+    }
+
+    /**
+     * Executes a statement and writes its result to a stream.
+     *
+     * @return The time spent in each phase of execution, the number of
+     *         rows fetched and the number of rows affected.
+     */
+    static StatementMetrics executeSQL(final String statement, final Connection conn, final PrintStream out, final ExecutionOptions options)
+        throws SQLException
+    {
+        // A chunked statement is executed as many smaller ones
+        final ChunkedStatement chunked = ChunkedStatement.parse(statement);
+        if(null != chunked)
+            return chunked.execute(conn, out, options);
+
+        // Statements that differ only by their literal values can share
+        // a single cached PreparedStatement.
+        if(null != options.statementCache)
+        {
+            final ParameterizedStatement parameterized = ParameterizedStatement.parse(statement);
+
+            if(null != parameterized)
+            {
+                final StatementMetrics metrics = executeSQL(statement, parameterized, conn, out, options);
+
+                if(null != metrics)
+                    return metrics;
+
+                // The server wouldn't execute it with parameters
+            }
+        }
+
+        return executeSQL(statement, null, conn, out, options);
+    }
+
+    /**
+     * Executes a statement and writes its result to a stream, using a
+     * cached PreparedStatement if the statement has been parameterized
+     * and the driver will prepare it.
+     *
+     * @param parameterized The statement with its literals replaced with
+     *                      parameters, or <code>null</code> to execute it
+     *                      as written.
+     *
+     * @return The time spent in each phase of execution, the number of
+     *         rows fetched and the number of rows affected, or
+     *         <code>null</code> if the server refused to execute the
+     *         parameterized statement, nothing has happened, and the
+     *         statement should be executed as written instead.
+     */
+    private static StatementMetrics executeSQL(final String statement, final ParameterizedStatement parameterized,
+                                               final Connection conn, final PrintStream out, final ExecutionOptions options)
         throws SQLException
     {
         PreparedStatement ps = null;
         ResultSet rs = null;
+        final StatementMonitor monitor = options.monitor;
+
+        boolean cached = false;
+        boolean executed = false;
+        boolean rejected = false;
+        boolean succeeded = false;
+        boolean streaming = false;
+        final StatementMetrics metrics = new StatementMetrics();
+
         try
         {
-            ps = conn.prepareStatement(statement);
+            // Some drivers (e.g. PostgreSQL) ignore the fetch size and
+            // buffer the whole result set in auto-commit mode, so run the
+            // query in a transaction of its own instead.
+            if(0 < options.fetchSize && StatementBatch.isQuery(statement) && options.isAutoCommit(conn))
+            {
+                conn.setAutoCommit(false);
+                streaming = true;
+            }
+
+            if(null != parameterized)
+            {
+                try
+                {
+                    ps = options.statementCache.get(parameterized.getSQL());
+                }
+                catch (SQLException sqle)
+                {
+                    // The driver didn't like our parameters: just use
+                    // the statement as written.
+                    ps = null;
+                }
+
+                if(null != ps)
+                {
+                    parameterized.bind(ps);
+                    cached = true;
+                }
+            }
 
-            long queryTime = System.currentTimeMillis();
+            // Ask for a forward-only, read-only cursor so that drivers can
+            // stream rows to us instead of buffering the whole result set.
+            if(null == ps)
+                ps = conn.prepareStatement(statement,
+                                           ResultSet.TYPE_FORWARD_ONLY,
+                                           ResultSet.CONCUR_READ_ONLY);
+
+            if(0 < options.fetchSize)
+                ps.setFetchSize(options.fetchSize);
+            if(0 < options.maxRows)
+                ps.setMaxRows(options.maxRows);
+            if(0 < options.queryTimeout)
+                ps.setQueryTimeout(options.queryTimeout);
+
+            metrics.lap(StatementMetrics.PREPARE);
+
+            boolean result;
+            if(null == monitor)
+                result = ps.execute();
+            else
+            {
+                monitor.executing(ps);
+                try
+                {
+                    result = ps.execute();
+                }
+                finally
+                {
+                    monitor.executed();
+                }
+            }
 
-            boolean result = ps.execute();
+            executed = true;
 
-            queryTime = System.currentTimeMillis() - queryTime;
+            metrics.lap(StatementMetrics.EXECUTE);
 
-            int maxColumnWidth = 4096;
+            final long queryTime = metrics.getElapsed(StatementMetrics.EXECUTE) / 1000000;
 
             if(result)
             {
                 rs = ps.getResultSet();
                 long rows = 0;
+                boolean truncated = false;
+                final boolean paging = 0 < options.pageSize && null != options.pageInput;
 
-                if(rs.next())
+                final boolean any = rs.next();
+
+                metrics.lap(StatementMetrics.FIRST_ROW);
+
+                if(any && null != options.exporter)
+                    rows = export(rs, options.exporter, new CellReader(rs.getMetaData(), 0, options.lobDir), metrics);
+                else if(any)
                 {
                     final ResultSetMetaData rsmd = rs.getMetaData();
                     final int columnCount = rsmd.getColumnCount();
                     final int[] columnWidths = new int[columnCount];
-                    final String[] columnFormats = new String[columnCount];
-                    // We'll use the header a few times, so only build it once
-                    final StringBuilder header = new StringBuilder();
+                    final CellReader reader = new CellReader(rsmd, options.lobLimit, options.lobDir);
 
-                    // Build the output footer
-                    header.append('+');
                     for(int i=0; i<columnCount; ++i)
-                    {
-                        header.append('-');
-
-                        int displaySize = rsmd.getColumnDisplaySize(i + 1);
-                        final int labelSize = rsmd.getColumnLabel(i + 1).length();
-                        if(displaySize < labelSize)
-                            displaySize = labelSize;
+                        columnWidths[i] = rsmd.getColumnLabel(i + 1).length();
 
-                        if(displaySize > maxColumnWidth)
-                            displaySize = maxColumnWidth;
+                    // Rows read ahead to measure their values. Unread rows
+                    // remain in the result set only if "more" is true.
+                    final ArrayList<String[]> sample = new ArrayList<String[]>(Math.min(options.sampleRows, 1024));
+                    boolean more = true;
 
-                        for(int j=0; j<displaySize; ++j)
-                            header.append('-');
+                    if(0 < options.sampleRows)
+                    {
+                        while(more && sample.size() < options.sampleRows)
+                        {
+                            final String[] values = new String[columnCount];
+                            fetchRow(reader, rs, values);
 
-                        header.append("-+");
+                            for(int i=0; i<columnCount; ++i)
+                                if(values[i].length() > columnWidths[i])
+                                    columnWidths[i] = values[i].length();
 
-                        columnWidths[i] = displaySize;
-                        columnFormats[i] = " %" + displaySize + "s |";
+                            sample.add(values);
+                            more = rs.next();
+                        }
                     }
-
-                    header.trimToSize();
-
-                    // Print the header.
-                    out.println(header);
-
-                    out.print('|');
-
-                    //
-                    // Rather than using StringBuilders for everything,
-                    // use streams for all formatted-output. Unfortunately,
-                    // java.util.Formatter will close the underlying stream
-                    // when you call close() on it, so we wrap a Proxy around
-                    // the real object that will only advertise that it is an
-                    // Appendable, so it can't be closed.
-                    //
-                    // I'm not sure this is actually worth it, but it doesn't
-                    // add *that* much complexity and should reduce memory usage
-                    // a bit.
-                    //
-                    Appendable appendable = (Appendable)Proxy.newProxyInstance(SQLExecutor.class.getClassLoader(),
-                                                                               new Class<?>[] { Appendable.class },
-                                                                               new InvocationHandler() {
-                                    public Object invoke(Object o, Method m, Object[] args)
-                                    {
-                                        try
-                                        {
-                                            return m.invoke(out, args);
-                                        }
-                                        catch (IllegalAccessException iae)
-                                        {
-                                            iae.printStackTrace();
-                                        }
-                                        catch (InvocationTargetException ite)
-                                        {
-                                            ite.printStackTrace();
-                                        }
-                                        return null;
-                                    }
-
-                                });
-
-                    for(int i=0; i<columnCount; ++i)
+                    else
                     {
-                        Formatter fmt = new Formatter(appendable);
-                        fmt.format(" %-" + columnWidths[i] + "s |", rsmd.getColumnLabel(i + 1));
-                        fmt.close();
+                        // Trust the driver to tell us how wide values can be
+                        for(int i=0; i<columnCount; ++i)
+                            if(rsmd.getColumnDisplaySize(i + 1) > columnWidths[i])
+                                columnWidths[i] = rsmd.getColumnDisplaySize(i + 1);
                     }
 
-                    out.println();
+                    for(int i=0; i<columnCount; ++i)
+                        if(columnWidths[i] > options.maxWidth)
+                            columnWidths[i] = options.maxWidth;
+
+                    metrics.lap(StatementMetrics.FETCH);
 
-                    // This time, it's the separator between header and data
-                    out.println(header);
+                    final int overflow;
+                    if(options.wrap)
+                        overflow = TableRenderer.WRAP;
+                    else if(0 < options.sampleRows)
+                        overflow = TableRenderer.TRUNCATE;
+                    else
+                        overflow = TableRenderer.EXPAND;
+
+                    final TableRenderer table = new TableRenderer(out, columnWidths, overflow);
 
-                    do
+                    try
                     {
-                        out.print('|');
+                        // Print the header.
+                        table.separator();
+
                         for(int i=0; i<columnCount; ++i)
+                            table.labelCell(rsmd.getColumnLabel(i + 1));
+                        table.endRow();
+
+                        // This time, it's the separator between header and data
+                        table.separator();
+
+                        metrics.lap(StatementMetrics.RENDER);
+
+                        // Show the sampled rows, then stream the rest a
+                        // page at a time. Each page is fetched before it
+                        // is rendered so the two can be timed separately.
+                        String[][] page = sample.toArray(new String[sample.size()][]);
+                        int pageRows = page.length;
+                        String[][] fetched = null;
+
+                        for(;;)
                         {
-                            String value = rs.getString(i + 1);
-                            if(rs.wasNull())
-                                value = "NULL";
+                            for(int row=0; row<pageRows && !truncated; ++row)
+                            {
+                                for(int i=0; i<columnCount; ++i)
+                                    table.cell(page[row][i]);
+                                ++rows;
+                                table.endRow();
+
+                                if(paging && 0 == rows % options.pageSize
+                                   && (row + 1 < pageRows || more))
+                                {
+                                    metrics.lap(StatementMetrics.RENDER);
+
+                                    table.flush();
+                                    truncated = !nextPage(options.pageInput, out);
+
+                                    // Don't count the time spent waiting
+                                    metrics.reset();
+                                }
+                            }
+
+                            metrics.lap(StatementMetrics.RENDER);
+
+                            // Don't fetch rows nobody will see
+                            if(null != options.pager && options.pager.isAbandoned())
+                                truncated = true;
+
+                            if(truncated || !more)
+                                break;
+
+                            if(null == fetched)
+                                fetched = new String[ROWS_PER_LAP][columnCount];
 
-                            Formatter fmt = new Formatter(appendable);
-                            fmt.format(columnFormats[i], value);
-                            fmt.close();
+                            // Don't fetch past the end of the user's page
+                            int limit = ROWS_PER_LAP;
+                            if(paging)
+                                limit = (int)Math.min(limit, options.pageSize - rows % options.pageSize);
+
+                            pageRows = 0;
+                            while(more && pageRows < limit)
+                            {
+                                fetchRow(reader, rs, fetched[pageRows++]);
+                                more = rs.next();
+                            }
+                            page = fetched;
+
+                            metrics.lap(StatementMetrics.FETCH);
                         }
-                        ++rows;
-                        out.println();
-                    } while(rs.next());
 
-                    // This time, it's the footer
-                    out.println(header);
+                        // This time, it's the footer
+                        table.separator();
+                        table.flush();
+
+                        metrics.lap(StatementMetrics.RENDER);
+                    }
+                    catch (IOException ioe)
+                    {
+                        throw new SQLException("Failed to write result set", ioe);
+                    }
                 }
+                if(truncated)
+                    out.println("(Remaining rows were not fetched)");
+                else if(0 < options.maxRows && rows >= options.maxRows)
+                    out.println("(Result limited to " + options.maxRows + " rows)");
+
                 out.print(rows);
                 if(1 == rows)
                     out.print(" row in set (");
@@ -645,12 +1791,18 @@ public class SQLExecutor
                 out.print(queryTime);
                 out.println("ms)");
                 out.println();
+
+                metrics.setRows(rows);
             }
             else
             {
+                final int updateCount = ps.getUpdateCount();
+
+                metrics.setUpdateCount(updateCount);
+
                 out.print("Query OK, ");
-                out.print(ps.getUpdateCount());
-                if(1 == ps.getUpdateCount())
+                out.print(updateCount);
+                if(1 == updateCount)
                     out.print(" row affected (");
                 else
                     out.print(" rows affected (");
@@ -658,16 +1810,157 @@ public class SQLExecutor
                 out.println("ms)");
                 out.println();
             }
+
+            succeeded = true;
+
+            return metrics;
+        }
+        catch (SQLException sqle)
+        {
+            // Some drivers (e.g. PostgreSQL) only find out that the server
+            // won't accept the parameters' types once the statement is
+            // executed. Stop parameterizing statements like this one, and
+            // execute this one as written if a failed statement can't have
+            // affected anything else, i.e. outside of a transaction.
+            if(cached && !executed && ParameterizedStatement.isTypeError(sqle))
+            {
+                rejected = true;
+
+                if(streaming || options.isAutoCommit(conn))
+                    return null;
+            }
+
+            throw sqle;
         }
         finally
         {
-            if(null != ps) try { ps.close(); }
-            catch (SQLException sqle) { sqle.printStackTrace(); }
             if(null != rs) try { rs.close(); }
             catch (SQLException sqle) { sqle.printStackTrace(); }
+            if(cached)
+            {
+                // Don't re-use a statement that might be in a bad state
+                if(rejected)
+                    options.statementCache.reject(parameterized.getSQL());
+                else if(!succeeded)
+                    options.statementCache.remove(parameterized.getSQL());
+            }
+            else if(null != ps) try { ps.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+
+            // Turning auto-commit back on commits the query's transaction
+            if(streaming)
+            {
+                try
+                {
+                    if(!succeeded)
+                        conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                catch (SQLException sqle)
+                {
+                    System.err.println("Could not restore auto-commit");
+                    sqle.printStackTrace();
+                }
+            }
         }
     }
 
+    /**
+     * Reads the current row of a result set, replacing SQL NULL with
+     * <code>"NULL"</code>.
+     */
+    private static void fetchRow(CellReader reader, ResultSet rs, String[] values)
+        throws SQLException
+    {
+        reader.read(rs, values);
+
+        for(int i=0; i<values.length; ++i)
+            if(null == values[i])
+                values[i] = "NULL";
+    }
+
+    /**
+     * Writes every row of a result set to an exporter.
+     *
+     * @param rs The result set, which must already be positioned on its
+     *           first row.
+     *
+     * @return The number of rows written.
+     */
+    private static long export(ResultSet rs, ResultExporter exporter, CellReader reader, StatementMetrics metrics)
+        throws SQLException
+    {
+        final ResultSetMetaData rsmd = rs.getMetaData();
+        final int columnCount = rsmd.getColumnCount();
+        final String[] labels = new String[columnCount];
+        final int[] types = new int[columnCount];
+
+        for(int i=0; i<columnCount; ++i)
+        {
+            labels[i] = rsmd.getColumnLabel(i + 1);
+            types[i] = rsmd.getColumnType(i + 1);
+        }
+
+        final String[][] page = new String[ROWS_PER_LAP][columnCount];
+        long rows = 0;
+
+        try
+        {
+            exporter.header(labels, types);
+
+            metrics.lap(StatementMetrics.RENDER);
+
+            // Fetch a page of rows, then export them, so the two can be
+            // timed separately
+            boolean more = true;
+            while(more)
+            {
+                int pageRows = 0;
+                while(more && pageRows < ROWS_PER_LAP)
+                {
+                    // null means SQL NULL
+                    reader.read(rs, page[pageRows++]);
+                    more = rs.next();
+                }
+
+                metrics.lap(StatementMetrics.FETCH);
+
+                for(int row=0; row<pageRows; ++row)
+                    exporter.row(page[row]);
+                rows += pageRows;
+
+                metrics.lap(StatementMetrics.RENDER);
+            }
+
+            exporter.endResult();
+
+            metrics.lap(StatementMetrics.RENDER);
+        }
+        catch (IOException ioe)
+        {
+            throw new SQLException("Failed to export result set", ioe);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Asks the user whether or not to display the next page of results.
+     *
+     * @return <code>true</code> if the next page should be displayed,
+     *         <code>false</code> if the user would like to stop.
+     */
+    private static boolean nextPage(BufferedReader in, PrintStream out)
+        throws IOException
+    {
+        out.print("-- More (ENTER for next page, q to stop) -- ");
+        out.flush();
+
+        final String response = in.readLine();
+
+        return null != response && !"q".equals(response.trim());
+    }
+
     // Sadly, CharSequence doesn't give access to individual code points,
     // so we have to implement both StringBuilder and String blank-checkers.
     static boolean queryIsBlank(StringBuilder s)
@@ -712,18 +2005,66 @@ public class SQLExecutor
         System.out.println();
         System.out.println("Options (required):");
         System.out.println("  --driver className  The name of the JDBC driver class.");
-        System.out.println("  --url URL           The JDBC URL for the database connection.");
+        System.out.println("  --url URL           The JDBC URL for the database connection (or --targets/--url-template).");
         System.out.println("  <file> -or-");
-        System.out.println("  --script   file     The name of the script file to execute.");
+        System.out.println("  --script   file     The name of the script file to execute (may be gzip or zip compressed).");
         System.out.println();
         System.out.println("Options:");
         System.out.println("  --askpass           Securely-requests the password from the console.");
+        System.out.println("  --batch             Runs the whole script without prompting or showing statements.");
+        System.out.println("  --batch-size n      Sends up to n consecutive INSERT/UPDATE/DELETE statements as one batch in 'g' mode.");
         System.out.println("  --clear             Clears the screen before displaying each statement.");
+        System.out.println("  --commit-every n    Groups statements into transactions of n statements in 'g' mode.");
+        System.out.println("  --commit-interval ms");
+        System.out.println("                      Commits the current transaction in 'g' mode once it is ms milliseconds old.");
+        System.out.println("  --dry-run           Explains every statement without executing it and ranks them by estimated cost.");
         System.out.println("  --driverjar jarfile Specifies the JAR file containing the JDBC driver.");
         System.out.println("  --encoding charset  The character encoding of the script file (default: " + System.getProperty("file.encoding", "UTF-8") + ").");
+        System.out.println("  --fetch-size n      Fetches n rows at a time from the server (default: driver default).");
+        System.out.println("  --gzip              Compresses --output-file (also used when the file name ends with .gz).");
+        System.out.println("  --index             Maintains a statement index (script.idx) for fast resuming.");
+        System.out.println("  --jmx               Publishes progress and throughput as a JMX MBean.");
+        System.out.println("  --journal file      Records every statement executed, skipped or failed (default with --resume: script.journal).");
+        System.out.println("  --large-table n     Rows at which --dry-run flags full scans and DDL (default: 100000).");
+        System.out.println("  --lob-dir dir       Writes binary and CLOB values to files in dir instead of showing them.");
+        System.out.println("  --lob-limit n       Shows at most n characters of CLOB values and a hex preview of binary values (default: 4096, 0 shows them as-is).");
+        System.out.println("  --log-dir dir       Writes the results and errors of each target to dir/target.log.");
+        System.out.println("  --max-width n       Limits table columns to n characters (default: 4096).");
+        System.out.println("  --max-rows n        Fetches at most n rows from any result set.");
+        System.out.println("  --mysql             Splits the script using MySQL's syntax: backslash escapes in strings and # comments.");
+        System.out.println("  --on-error policy   What --batch does when a statement fails: stop (default), skip or continue.");
+        System.out.println("  --output format     Writes result sets as table (default), csv, tsv or jsonl.");
+        System.out.println("  --output-file file  Writes --output csv, tsv or jsonl to file instead of standard output.");
+        System.out.println("  --page-size n       Pauses after every n rows of a result set.");
+        System.out.println("  --pager             Shows results too long for the screen using $PAGER (default: less -S).");
+        System.out.println("  --parallel n        Runs the script against up to n targets at once (default: 4).");
+        System.out.println("  --parallel-statements n");
+        System.out.println("                      Runs independent statements at the same time over n connections (implies --batch).");
+        System.out.println("  --parameterize      Replaces literals with parameters and re-uses prepared statements.");
         System.out.println("  --password password The database password.");
+        System.out.println("  --quiet             Doesn't show the results of statements.");
+        System.out.println("  --read-ahead n      Reads up to n statements ahead of the one executing (default: 16, 0 disables).");
+        System.out.println("  --resume            Resumes after the last statement recorded in the journal.");
+        System.out.println("  --resume-at-statement n");
+        System.out.println("                      Starts at the nth statement in the script (implies --index).");
+        System.out.println("  --resume-at-line n  Starts at the statement containing line n (implies --index).");
+        System.out.println("  --retry n           Retries a statement up to n times after a deadlock or other transient failure.");
+        System.out.println("  --retry-delay ms    Waits about ms before the first retry, doubling for each retry after it (default: 100).");
+        System.out.println("  --retry-states list Comma-separated SQLStates or classes to retry (default: 40001,40P01,55P03).");
+        System.out.println("  --sample-rows n     Sizes table columns to fit the first n rows (default: 100, 0 uses the driver's sizes).");
+        System.out.println("  --shards list       Runs the script against each of a comma-separated list of shards (see --url-template).");
         System.out.println("  --skip n            Skips n lines at the beginning of the script.");
+        System.out.println("  --status            Prints a progress line (percent, rates, time remaining) to stderr every 5 seconds.");
+        System.out.println("  --stats             Prints a summary of statement timings at exit.");
+        System.out.println("  --stats-file file   Writes statement timings to file as JSON, or CSV if file ends with .csv.");
+        System.out.println("  --summary           Prints the number of statements executed, failed and skipped at exit.");
+        System.out.println("  --statement-cache n Keeps up to n prepared statements open with --parameterize (default: 100).");
+        System.out.println("  --statement-timeout n");
+        System.out.println("                      Cancels any statement which takes longer than n seconds.");
+        System.out.println("  --targets file      Runs the script against each JDBC URL in file (one per line, optionally after a name).");
+        System.out.println("  --url-template URL  A JDBC URL in which {shard} is replaced by each of the --shards.");
         System.out.println("  --username username The name of the database user.");
+        System.out.println("  --wrap              Wraps values too wide for their column instead of truncating them.");
         System.out.println("  --help, -h          Shows this help text.");
     }
 }
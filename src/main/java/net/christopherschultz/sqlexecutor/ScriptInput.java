@@ -0,0 +1,286 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Opens a script for reading, decompressing it on the fly if necessary.
+ *
+ * The format is detected from the first few bytes of the file rather than
+ * its name: gzip (<code>.gz</code>) and zip (the first entry is read) are
+ * supported. Other common formats are recognized so that they can be
+ * reported, rather than being read as garbage.
+ *
+ * Bytes are read through a large direct buffer and decoded with a
+ * {@link CharsetDecoder}, which replaces malformed input just as
+ * {@link java.io.InputStreamReader} does.
+ */
+class ScriptInput
+{
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private ScriptInput()
+    {
+    }
+
+    /**
+     * Opens a script.
+     *
+     * @param script The script file, which may also be a pipe.
+     * @param charset The character encoding of the (uncompressed) script.
+     * @param offset The number of (uncompressed) bytes to skip.
+     *
+     * @return A reader positioned at <code>offset</code>.
+     *
+     * @throws IOException If the script can't be read, is compressed using
+     *         an unsupported format, or ends before <code>offset</code>.
+     */
+    static Reader open(File script, Charset charset, long offset)
+        throws IOException
+    {
+        final FileChannel channel = new RandomAccessFile(script, "r").getChannel();
+
+        try
+        {
+            // Read the magic number without seeking, in case this is a pipe
+            final ByteBuffer magic = ByteBuffer.allocate(6);
+            while(magic.hasRemaining() && -1 != channel.read(magic))
+                ; // Keep reading
+            magic.flip();
+
+            final String unsupported = getUnsupportedFormat(magic);
+            if(null != unsupported)
+                throw new IOException("Script " + script + " is compressed using " + unsupported
+                                      + ", which is not supported; decompress it first, e.g. through a pipe");
+
+            InputStream compressed = null;
+
+            if(matches(magic, 0x1f, 0x8b))
+                compressed = new GZIPInputStream(resume(magic, channel), BUFFER_SIZE);
+            else if(matches(magic, 'P', 'K', 3, 4))
+            {
+                final ZipInputStream zip = new ZipInputStream(resume(magic, channel));
+                if(null == zip.getNextEntry())
+                    throw new IOException("Script " + script + " is an empty zip file");
+
+                compressed = zip;
+            }
+
+            if(null == compressed)
+            {
+                // Plain text: start from the bytes already read, or jump
+                // straight to the offset
+                if(0 < offset)
+                {
+                    magic.position(magic.limit());
+                    channel.position(offset);
+                }
+
+                return new DecodingReader(channel, charset, magic);
+            }
+
+            for(long remaining = offset; 0 < remaining; )
+            {
+                final long skipped = compressed.skip(remaining);
+                if(0 >= skipped)
+                {
+                    if(-1 == compressed.read())
+                        throw new EOFException("Script " + script + " ends before offset " + offset);
+                    --remaining;
+                }
+                else
+                    remaining -= skipped;
+            }
+
+            return new DecodingReader(Channels.newChannel(compressed), charset, ByteBuffer.allocate(0));
+        }
+        catch (IOException ioe)
+        {
+            channel.close();
+
+            throw ioe;
+        }
+    }
+
+    /**
+     * Gets the size of a script, as far as statement offsets are concerned.
+     *
+     * @return The size in bytes, or -1 if the script is compressed or isn't
+     *         a regular file.
+     */
+    static long getSize(File script)
+    {
+        if(!script.isFile())
+            return -1;
+
+        final ByteBuffer magic = ByteBuffer.allocate(4);
+        RandomAccessFile in = null;
+        try
+        {
+            in = new RandomAccessFile(script, "r");
+            in.getChannel().read(magic, 0);
+            magic.flip();
+
+            if(matches(magic, 0x1f, 0x8b) || matches(magic, 'P', 'K', 3, 4))
+                return -1;
+
+            return in.length();
+        }
+        catch (IOException ioe)
+        {
+            return -1;
+        }
+        finally
+        {
+            if(null != in) try { in.close(); }
+            catch (IOException ioe) { ioe.printStackTrace(); }
+        }
+    }
+
+    /**
+     * Gets a stream which continues with the rest of the file after the
+     * bytes already read.
+     */
+    private static InputStream resume(ByteBuffer magic, FileChannel channel)
+    {
+        return new SequenceInputStream(new ByteArrayInputStream(magic.array(), 0, magic.limit()),
+                                       Channels.newInputStream(channel));
+    }
+
+    private static String getUnsupportedFormat(ByteBuffer magic)
+    {
+        if(matches(magic, 'B', 'Z', 'h'))
+            return "bzip2";
+        if(matches(magic, 0xfd, '7', 'z', 'X', 'Z', 0))
+            return "xz";
+        if(matches(magic, 0x28, 0xb5, 0x2f, 0xfd))
+            return "zstd";
+        if(matches(magic, 0x04, 0x22, 0x4d, 0x18))
+            return "lz4";
+
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int... bytes)
+    {
+        if(buffer.limit() < bytes.length)
+            return false;
+
+        for(int i=0; i<bytes.length; ++i)
+            if((byte)bytes[i] != buffer.get(i))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Decodes characters from a channel through a direct buffer.
+     */
+    private static class DecodingReader
+        extends Reader
+    {
+        private final ReadableByteChannel channel;
+        private final CharsetDecoder decoder;
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+        private boolean endOfInput;
+        private boolean done;
+
+        /**
+         * Creates a new DecodingReader.
+         *
+         * @param initial Bytes already read from the channel, which are
+         *                decoded first.
+         */
+        DecodingReader(ReadableByteChannel channel, Charset charset, ByteBuffer initial)
+        {
+            this.channel = channel;
+            this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            bytes.put(initial);
+            bytes.flip();
+            chars.flip();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len)
+            throws IOException
+        {
+            if(0 == len)
+                return 0;
+
+            if(!chars.hasRemaining() && 0 == fill())
+                return -1;
+
+            final int count = Math.min(len, chars.remaining());
+            chars.get(cbuf, off, count);
+
+            return count;
+        }
+
+        /**
+         * Decodes as many characters as will fit in the character buffer,
+         * reading more bytes as necessary.
+         *
+         * @return The number of characters decoded, which is only 0 at the
+         *         end of the input.
+         */
+        private int fill()
+            throws IOException
+        {
+            chars.clear();
+
+            while(0 == chars.position() && !done)
+            {
+                final CoderResult result = decoder.decode(bytes, chars, endOfInput);
+
+                if(result.isUnderflow())
+                {
+                    if(endOfInput)
+                    {
+                        decoder.flush(chars);
+                        done = true;
+                    }
+                    else
+                    {
+                        bytes.compact();
+                        if(-1 == channel.read(bytes))
+                            endOfInput = true;
+                        bytes.flip();
+                    }
+                }
+            }
+
+            chars.flip();
+
+            return chars.remaining();
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,653 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Splits a SQL script into statements in a single pass.
+ *
+ * Statements end with a delimiter (<code>;</code> by default) that is not
+ * inside a string literal, quoted identifier, comment or dollar-quoted
+ * (<code>$$ ... $$</code> or <code>$tag$ ... $tag$</code>) body. The
+ * delimiter can be changed with a <code>DELIMITER</code> directive on a
+ * line by itself, as supported by the MySQL command-line client:
+ *
+ * <pre>
+ * DELIMITER //
+ * CREATE PROCEDURE p() BEGIN SELECT 1; SELECT 2; END//
+ * DELIMITER ;
+ * </pre>
+ *
+ * The default <code>;</code> delimiter is kept as part of the statement
+ * text; other delimiters are removed.
+ *
+ * Block comments may be nested, and backslash escapes are recognized in
+ * <code>E'...'</code> strings, as in PostgreSQL. Scripts written for MySQL
+ * (e.g. by mysqldump) use backslash escapes in every string and
+ * <code>#</code> comments, but don't nest comments; MySQL syntax is used
+ * when asked for, or from the first <code>DELIMITER</code> directive or
+ * <code>/*! ... *&#47;</code> conditional comment on, since nothing else
+ * uses those. Conditional comments are executed by MySQL, so they are
+ * treated as statement content rather than as comments. Whitespace between statements is
+ * discarded, and a trailing fragment that contains nothing but comments
+ * is ignored.
+ *
+ * The script is read into a fixed-size character buffer and statement
+ * text is copied directly from that buffer, so no per-line Strings are
+ * created.
+ *
+ * When the script's character encoding is UTF-8 or uses a single byte
+ * per character, the byte offset of each statement in the script is also
+ * tracked so that the script can later be re-opened directly at that
+ * statement. For other encodings, offsets are reported as -1.
+ *
+ * This class is not thread-safe.
+ */
+class ScriptLexer
+{
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final String DELIMITER_DIRECTIVE = "DELIMITER";
+
+    private static final int NORMAL = 0;
+    private static final int SINGLE_QUOTE = 1;
+    private static final int DOUBLE_QUOTE = 2;
+    private static final int BACKTICK = 3;
+    private static final int LINE_COMMENT = 4;
+    private static final int BLOCK_COMMENT = 5;
+    private static final int DOLLAR_QUOTE = 6;
+
+    // How to count the bytes used by each character
+    private static final int UNTRACKED = 0;
+    private static final int SINGLE_BYTE = 1;
+    private static final int UTF_8 = 2;
+
+    private final Reader in;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    // Location of the next character to be consumed
+    private long line;
+    private long column;
+    private boolean afterCR;
+    private char previous;
+    // Whether everything since the start of the line is whitespace
+    private boolean lineBlank = true;
+
+    // Byte offset of the next character to be consumed
+    private final int byteCounting;
+    private long offset;
+
+    // Position of the next statement in the script
+    private long ordinal;
+
+    private String delimiter = ";";
+
+    // Whether to use MySQL's syntax for strings and comments
+    private boolean mysql;
+
+    // The statement being assembled. Characters from segmentStart up to
+    // position have been consumed but not yet copied into text.
+    private final StringBuilder text = new StringBuilder();
+    private int segmentStart = -1;
+    private boolean collecting = true;
+
+    private boolean atEnd;
+
+    /**
+     * Creates a new ScriptLexer.
+     *
+     * @param in The script to read.
+     */
+    ScriptLexer(Reader in)
+    {
+        this(in, null, 0, 1, 1, 0);
+    }
+
+    /**
+     * Creates a new ScriptLexer for a script that may start part-way
+     * through a file.
+     *
+     * @param in The script to read.
+     * @param charset The script's character encoding, used to track byte
+     *                offsets. May be <code>null</code>.
+     * @param offset The byte offset of the first character in the script.
+     * @param line The line number of the first character in the script.
+     * @param column The column of the first character in the script.
+     * @param ordinal The position of the first statement in the script,
+     *                or -1 if it is not known.
+     */
+    ScriptLexer(Reader in, Charset charset, long offset, long line, long column, long ordinal)
+    {
+        this.in = in;
+        this.line = line;
+        this.column = column;
+        this.lineBlank = 1 == column;
+        this.ordinal = ordinal;
+
+        if(null == charset)
+            byteCounting = UNTRACKED;
+        else if("UTF-8".equals(charset.name()))
+            byteCounting = UTF_8;
+        else if(1.0f == charset.newEncoder().maxBytesPerChar())
+            byteCounting = SINGLE_BYTE;
+        else
+            byteCounting = UNTRACKED;
+
+        this.offset = UNTRACKED == byteCounting ? -1 : offset;
+    }
+
+    /**
+     * Skips lines at the current position in the script.
+     *
+     * @param count The number of lines to skip.
+     */
+    void skipLines(long count)
+        throws IOException
+    {
+        final long target = line + count;
+
+        // We no longer know how many statements came before this one
+        if(0 < count)
+            ordinal = -1;
+
+        while(line < target && ensure(1))
+            consume();
+
+        // Don't split a CRLF
+        if(afterCR && ensure(1) && '\n' == buffer[position])
+            consume();
+    }
+
+    /**
+     * Reads the next statement from the script.
+     *
+     * @return The next statement, or <code>null</code> if there are no
+     *         more statements in the script.
+     */
+    ScriptStatement next()
+        throws IOException
+    {
+        if(atEnd)
+            return null;
+
+        for(;;)
+        {
+            // Skip whitespace between statements
+            while(ensure(1) && Character.isWhitespace(buffer[position]))
+                consume();
+
+            if(!ensure(1))
+            {
+                atEnd = true;
+                return null;
+            }
+
+            text.setLength(0);
+            segmentStart = collecting ? position : -1;
+
+            final long startLine = line;
+            final long startColumn = column;
+            final long startOffset = offset;
+            long endLine = line;
+            long endColumn = column;
+            long endOffset = offset;
+
+            boolean hasContent = false;
+            boolean directive = false;
+            boolean delimited = false;
+            int state = NORMAL;
+            String dollarTag = null;
+            // Whether backslash escapes apply to the current quoted string
+            boolean escapes = false;
+            // How deeply nested the current block comment is
+            int depth = 0;
+
+            while(!delimited && ensure(1))
+            {
+                final char c = buffer[position];
+
+                switch(state)
+                {
+                    case NORMAL:
+                        if(c == delimiter.charAt(0) && matches(delimiter))
+                        {
+                            for(int i=delimiter.length(); i>1; --i)
+                                consume();
+                            endLine = line;
+                            endColumn = column;
+                            consume();
+                            endOffset = offset;
+                            delimited = true;
+                            break;
+                        }
+
+                        if(!hasContent && lineBlank && isDelimiterDirective())
+                        {
+                            directive = true;
+                            readDelimiterDirective();
+                            delimited = true;
+                            break;
+                        }
+
+                        if('-' == c && matches("--"))
+                        {
+                            consume();
+                            state = LINE_COMMENT;
+                        }
+                        else if('#' == c && mysql)
+                            state = LINE_COMMENT;
+                        else if('/' == c && matches("/*"))
+                        {
+                            if(matches("/*!"))
+                            {
+                                mysql = true;
+                                hasContent = true;
+                            }
+                            consume();
+                            state = BLOCK_COMMENT;
+                            depth = 1;
+                        }
+                        else if('\'' == c)
+                        {
+                            state = SINGLE_QUOTE;
+                            escapes = mysql;
+                        }
+                        else if(('E' == c || 'e' == c) && !isWordPart(previous)
+                                && ensure(2) && '\'' == buffer[position + 1])
+                        {
+                            consume();
+                            state = SINGLE_QUOTE;
+                            escapes = true;
+                        }
+                        else if('"' == c)
+                        {
+                            state = DOUBLE_QUOTE;
+                            escapes = mysql;
+                        }
+                        else if('`' == c)
+                            state = BACKTICK;
+                        else if('$' == c && !isWordPart(previous))
+                        {
+                            dollarTag = readDollarTag();
+                            if(null != dollarTag)
+                            {
+                                for(int i=dollarTag.length(); i>1; --i)
+                                    consume();
+                                state = DOLLAR_QUOTE;
+                            }
+                        }
+
+                        if(LINE_COMMENT != state && BLOCK_COMMENT != state && !Character.isWhitespace(c))
+                            hasContent = true;
+                        break;
+
+                    case SINGLE_QUOTE:
+                        // The escaped character is consumed below
+                        if('\\' == c && escapes && ensure(2))
+                            consume();
+                        else if('\'' == c)
+                            state = NORMAL;
+                        break;
+
+                    case DOUBLE_QUOTE:
+                        if('\\' == c && escapes && ensure(2))
+                            consume();
+                        else if('"' == c)
+                            state = NORMAL;
+                        break;
+
+                    case BACKTICK:
+                        if('`' == c)
+                            state = NORMAL;
+                        break;
+
+                    case LINE_COMMENT:
+                        if('\n' == c || '\r' == c)
+                            state = NORMAL;
+                        break;
+
+                    case BLOCK_COMMENT:
+                        if('/' == c && !mysql && matches("/*"))
+                        {
+                            consume();
+                            ++depth;
+                        }
+                        else if('*' == c && matches("*/"))
+                        {
+                            consume();
+                            if(0 == --depth)
+                                state = NORMAL;
+                        }
+                        break;
+
+                    case DOLLAR_QUOTE:
+                        if('$' == c && matches(dollarTag))
+                        {
+                            for(int i=dollarTag.length(); i>1; --i)
+                                consume();
+                            state = NORMAL;
+                        }
+                        break;
+                }
+
+                if(!delimited)
+                {
+                    final boolean visible = !Character.isWhitespace(c);
+                    if(visible)
+                    {
+                        endLine = line;
+                        endColumn = column;
+                    }
+                    consume();
+                    if(visible)
+                        endOffset = offset;
+                }
+            }
+
+            flushSegment();
+            segmentStart = -1;
+
+            // Directives and empty statements aren't worth returning
+            if(directive || (delimited && !hasContent))
+                continue;
+
+            if(!delimited)
+            {
+                // End of script
+                atEnd = true;
+
+                if(!hasContent)
+                    return null;
+
+                int length = text.length();
+                while(0 < length && Character.isWhitespace(text.charAt(length - 1)))
+                    --length;
+                text.setLength(length);
+            }
+            else if(!";".equals(delimiter))
+                text.setLength(text.length() - delimiter.length());
+
+            final ScriptStatement statement = new ScriptStatement(text.toString(),
+                                                                  startLine, startColumn,
+                                                                  endLine, endColumn,
+                                                                  startOffset, endOffset,
+                                                                  ordinal);
+            if(-1 != ordinal)
+                ++ordinal;
+
+            return statement;
+        }
+    }
+
+    /**
+     * Skips the next statement in the script. This is the same as
+     * {@link #next()} except that the text of the statement is not
+     * collected, which is faster.
+     *
+     * @return The skipped statement, whose text will be empty, or
+     *         <code>null</code> if there are no more statements in the
+     *         script.
+     */
+    ScriptStatement skip()
+        throws IOException
+    {
+        collecting = false;
+        try
+        {
+            return next();
+        }
+        finally
+        {
+            collecting = true;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the end of the script was reached while
+     * reading the most recent statement, i.e. the statement was not
+     * terminated by a delimiter.
+     */
+    boolean isAtEnd()
+    {
+        return atEnd;
+    }
+
+    /**
+     * Gets the line number of the next character to be read.
+     */
+    long getLineNumber()
+    {
+        return line;
+    }
+
+    /**
+     * Gets the current statement delimiter.
+     */
+    String getDelimiter()
+    {
+        return delimiter;
+    }
+
+    /**
+     * Returns <code>true</code> if MySQL's syntax for strings and comments
+     * is being used.
+     */
+    boolean isMySQL()
+    {
+        return mysql;
+    }
+
+    /**
+     * Sets whether to use MySQL's syntax for strings and comments:
+     * backslash escapes in every string, <code>#</code> comments and no
+     * nested block comments.
+     */
+    void setMySQL(boolean mysql)
+    {
+        this.mysql = mysql;
+    }
+
+    void close()
+        throws IOException
+    {
+        in.close();
+    }
+
+    private boolean isDelimiterDirective()
+        throws IOException
+    {
+        final int length = DELIMITER_DIRECTIVE.length();
+
+        if(!ensure(length + 1))
+            return false;
+
+        for(int i=0; i<length; ++i)
+            if(Character.toUpperCase(buffer[position + i]) != DELIMITER_DIRECTIVE.charAt(i))
+                return false;
+
+        final char c = buffer[position + length];
+
+        return ' ' == c || '\t' == c;
+    }
+
+    /**
+     * Reads a DELIMITER directive, which must be on a line by itself, and
+     * changes the delimiter. The directive is not included in any
+     * statement.
+     */
+    private void readDelimiterDirective()
+        throws IOException
+    {
+        // Throw away the directive and anything before it
+        segmentStart = -1;
+
+        for(int i=DELIMITER_DIRECTIVE.length(); i>0; --i)
+            consume();
+
+        final StringBuilder newDelimiter = new StringBuilder();
+        while(ensure(1) && '\n' != buffer[position] && '\r' != buffer[position])
+        {
+            if(!Character.isWhitespace(buffer[position]))
+                newDelimiter.append(buffer[position]);
+            consume();
+        }
+
+        if(0 < newDelimiter.length())
+            delimiter = newDelimiter.toString();
+
+        // Only MySQL has DELIMITER
+        mysql = true;
+    }
+
+    /**
+     * Reads a dollar-quote tag (e.g. <code>$$</code> or
+     * <code>$body$</code>) at the current position without consuming it.
+     *
+     * @return The tag, or <code>null</code> if the current position is not
+     *         the start of a dollar-quote tag.
+     */
+    private String readDollarTag()
+        throws IOException
+    {
+        for(int i=1; ensure(i + 1); ++i)
+        {
+            final char c = buffer[position + i];
+
+            if('$' == c)
+                return new String(buffer, position, i + 1);
+
+            // Tags look like identifiers, so $1 is a parameter, not a tag
+            if(!(Character.isLetter(c) || '_' == c || (1 < i && Character.isDigit(c))))
+                return null;
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether the upcoming characters match a String, without
+     * consuming them.
+     */
+    private boolean matches(String s)
+        throws IOException
+    {
+        final int length = s.length();
+
+        if(!ensure(length))
+            return false;
+
+        for(int i=0; i<length; ++i)
+            if(buffer[position + i] != s.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    private void consume()
+    {
+        final char c = buffer[position++];
+
+        if('\n' == c)
+        {
+            if(!afterCR)
+                ++line;
+            column = 1;
+            afterCR = false;
+        }
+        else if('\r' == c)
+        {
+            ++line;
+            column = 1;
+            afterCR = true;
+        }
+        else
+        {
+            ++column;
+            afterCR = false;
+        }
+
+        if(UTF_8 == byteCounting)
+        {
+            if(0x80 > c)
+                ++offset;
+            else if(0x800 > c)
+                offset += 2;
+            else if(Character.isHighSurrogate(c))
+                offset += 4; // For the whole surrogate pair
+            else if(!Character.isLowSurrogate(c))
+                offset += 3;
+        }
+        else if(SINGLE_BYTE == byteCounting)
+            ++offset;
+
+        if('\n' == c || '\r' == c)
+            lineBlank = true;
+        else if(!Character.isWhitespace(c))
+            lineBlank = false;
+
+        previous = c;
+    }
+
+    /**
+     * Makes sure that at least <code>count</code> characters are available
+     * in the buffer, reading more of the script if necessary.
+     *
+     * @return <code>true</code> if the characters are available,
+     *         <code>false</code> if the end of the script is reached first.
+     */
+    private boolean ensure(int count)
+        throws IOException
+    {
+        if(limit - position >= count)
+            return true;
+
+        if(eof)
+            return false;
+
+        // Save anything we are about to move, then shift the unread
+        // characters to the front of the buffer.
+        final boolean collecting = -1 != segmentStart;
+        flushSegment();
+
+        final int remaining = limit - position;
+        System.arraycopy(buffer, position, buffer, 0, remaining);
+        position = 0;
+        limit = remaining;
+        if(collecting)
+            segmentStart = 0;
+
+        while(limit - position < count)
+        {
+            final int read = in.read(buffer, limit, buffer.length - limit);
+
+            if(-1 == read)
+            {
+                eof = true;
+                return false;
+            }
+
+            limit += read;
+        }
+
+        return true;
+    }
+
+    private void flushSegment()
+    {
+        if(-1 != segmentStart)
+        {
+            text.append(buffer, segmentStart, position - segmentStart);
+            segmentStart = position;
+        }
+    }
+
+    private static boolean isWordPart(char c)
+    {
+        return Character.isLetterOrDigit(c) || '_' == c || '$' == c;
+    }
+}
@@ -0,0 +1,133 @@
+package net.christopherschultz.sqlexecutor;
+
+/**
+ * A single statement read from a script, along with its location in
+ * the script.
+ */
+class ScriptStatement
+{
+    private final String text;
+    private final long startLine;
+    private final long startColumn;
+    private final long endLine;
+    private final long endColumn;
+    private final long startOffset;
+    private final long endOffset;
+    private final long ordinal;
+
+    ScriptStatement(String text,
+                    long startLine, long startColumn,
+                    long endLine, long endColumn,
+                    long startOffset, long endOffset,
+                    long ordinal)
+    {
+        this.text = text;
+        this.startLine = startLine;
+        this.startColumn = startColumn;
+        this.endLine = endLine;
+        this.endColumn = endColumn;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * Gets the text of the statement, including any leading comments and
+     * the terminating semicolon, if any.
+     */
+    String getText()
+    {
+        return text;
+    }
+
+    /**
+     * Gets the line number where this statement begins.
+     */
+    long getStartLine()
+    {
+        return startLine;
+    }
+
+    /**
+     * Gets the column where this statement begins.
+     */
+    long getStartColumn()
+    {
+        return startColumn;
+    }
+
+    /**
+     * Gets the line number where this statement ends.
+     */
+    long getEndLine()
+    {
+        return endLine;
+    }
+
+    /**
+     * Gets the column of the last character of this statement.
+     */
+    long getEndColumn()
+    {
+        return endColumn;
+    }
+
+    /**
+     * Gets the byte offset in the script where this statement begins, or
+     * -1 if it is not known.
+     */
+    long getStartOffset()
+    {
+        return startOffset;
+    }
+
+    /**
+     * Gets the byte offset in the script immediately following this
+     * statement, or -1 if it is not known.
+     */
+    long getEndOffset()
+    {
+        return endOffset;
+    }
+
+    /**
+     * Gets the zero-based position of this statement in the script, or
+     * -1 if it is not known (e.g. when lines have been skipped).
+     */
+    long getOrdinal()
+    {
+        return ordinal;
+    }
+
+    /**
+     * Returns a copy of this statement with different text, e.g. after it
+     * has been edited.
+     */
+    ScriptStatement withText(String text)
+    {
+        return new ScriptStatement(text,
+                                   startLine, startColumn,
+                                   endLine, endColumn,
+                                   startOffset, endOffset,
+                                   ordinal);
+    }
+
+    /**
+     * Returns a statement that spans both this statement and the one
+     * following it, e.g. when a statement was split in the wrong place.
+     */
+    ScriptStatement extend(ScriptStatement next)
+    {
+        return new ScriptStatement(text + SQLExecutor.NEWLINE + next.text,
+                                   startLine, startColumn,
+                                   next.endLine, next.endColumn,
+                                   startOffset, next.endOffset,
+                                   ordinal);
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+}
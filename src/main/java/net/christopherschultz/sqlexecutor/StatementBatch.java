@@ -0,0 +1,354 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects consecutive data-modification statements so they can be sent
+ * to the server using a single JDBC batch instead of one round-trip per
+ * statement.
+ */
+class StatementBatch
+{
+    // Statements that only modify data and never return a result set
+    private static final String[] BATCHABLE_KEYWORDS = {
+        "INSERT", "UPDATE", "DELETE", "MERGE", "REPLACE", "UPSERT"
+    };
+
+    private static final String[] QUERY_KEYWORDS = {
+        "SELECT", "WITH", "VALUES", "TABLE"
+    };
+
+    private final int maxSize;
+    private final int queryTimeout;
+    private final ArrayList<ScriptStatement> statements;
+
+    /**
+     * Creates a new StatementBatch.
+     *
+     * @param maxSize The maximum number of statements in a single batch.
+     * @param queryTimeout The number of seconds to wait for the batch to
+     *                     execute, or 0 for no limit.
+     */
+    StatementBatch(int maxSize, int queryTimeout)
+    {
+        this.maxSize = maxSize;
+        this.queryTimeout = queryTimeout;
+        this.statements = new ArrayList<ScriptStatement>(maxSize);
+    }
+
+    /**
+     * Adds a statement to this batch.
+     *
+     * @param statement The statement to add.
+     *
+     * @return <code>true</code> if the batch is now full and should be
+     *         executed, <code>false</code> otherwise.
+     */
+    boolean add(ScriptStatement statement)
+    {
+        statements.add(statement);
+
+        return isFull();
+    }
+
+    boolean isFull()
+    {
+        return statements.size() >= maxSize;
+    }
+
+    boolean isEmpty()
+    {
+        return statements.isEmpty();
+    }
+
+    int size()
+    {
+        return statements.size();
+    }
+
+    ScriptStatement get(int index)
+    {
+        return statements.get(index);
+    }
+
+    void clear()
+    {
+        statements.clear();
+    }
+
+    /**
+     * Executes all statements in this batch.
+     *
+     * @param conn The connection to use.
+     * @param out The stream to which a summary will be written.
+     *
+     * @return The update count of each statement, as returned by the
+     *         driver.
+     *
+     * @throws SQLException If any statement in the batch fails. Use
+     *         {@link #getUnexecuted(SQLException)} to determine which
+     *         ones.
+     */
+    int[] execute(Connection conn, PrintStream out)
+        throws SQLException
+    {
+        Statement s = null;
+        try
+        {
+            s = conn.createStatement();
+            if(0 < queryTimeout)
+                s.setQueryTimeout(queryTimeout);
+
+            for(ScriptStatement statement : statements)
+                s.addBatch(statement.getText());
+
+            long elapsed = System.currentTimeMillis();
+
+            final int[] counts = s.executeBatch();
+
+            elapsed = System.currentTimeMillis() - elapsed;
+
+            long rows = 0;
+            for(int count : counts)
+                if(0 < count)
+                    rows += count;
+
+            out.print("Batch OK, ");
+            out.print(counts.length);
+            if(1 == counts.length)
+                out.print(" statement, ");
+            else
+                out.print(" statements, ");
+            out.print(rows);
+            if(1 == rows)
+                out.print(" row affected (");
+            else
+                out.print(" rows affected (");
+            out.print(elapsed);
+            out.println("ms)");
+            out.println();
+
+            return counts;
+        }
+        finally
+        {
+            if(null != s) try { s.close(); }
+            catch (SQLException sqle) { sqle.printStackTrace(); }
+        }
+    }
+
+    /**
+     * Determines which statements in this batch were not executed
+     * successfully. All statements before the first one returned are
+     * known to have been executed successfully.
+     *
+     * Some drivers stop at the first failure, others keep going and mark
+     * each statement that failed; either way, the statements returned
+     * are the ones that still need to be run.
+     *
+     * @param sqle The exception thrown by {@link #execute}.
+     *
+     * @return The statements which failed or were never executed, in
+     *         script order. The first one is the statement that failed.
+     */
+    List<ScriptStatement> getUnexecuted(SQLException sqle)
+    {
+        int[] counts = null;
+
+        if(sqle instanceof BatchUpdateException)
+            counts = ((BatchUpdateException)sqle).getUpdateCounts();
+
+        // We don't know anything, so assume nothing worked
+        if(null == counts)
+            return new ArrayList<ScriptStatement>(statements);
+
+        // Drivers that stop at the first failure only report counts for
+        // the statements that succeeded.
+        if(counts.length < statements.size())
+            return new ArrayList<ScriptStatement>(statements.subList(counts.length, statements.size()));
+
+        // Drivers that keep going mark the failures.
+        ArrayList<ScriptStatement> unexecuted = new ArrayList<ScriptStatement>();
+        for(int i=0; i<counts.length; ++i)
+            if(Statement.EXECUTE_FAILED == counts[i])
+                unexecuted.add(statements.get(i));
+
+        if(unexecuted.isEmpty())
+            unexecuted.addAll(statements);
+
+        return unexecuted;
+    }
+
+    /**
+     * Records the outcome of executing this batch in a journal. If the
+     * batch failed, the statements which were executed are recorded
+     * first, followed by the one which failed, so that resuming from the
+     * journal starts with the failed statement.
+     *
+     * @param journal The journal.
+     * @param counts The update counts returned by {@link #execute}, or
+     *               <code>null</code> if the batch failed.
+     * @param failure The exception thrown by {@link #execute}, or
+     *                <code>null</code> if the batch succeeded.
+     * @param elapsed The time taken to execute the batch, in nanoseconds.
+     */
+    void record(ExecutionJournal journal, int[] counts, SQLException failure, long elapsed)
+        throws IOException
+    {
+        List<ScriptStatement> unexecuted = null;
+        if(null != failure)
+        {
+            unexecuted = getUnexecuted(failure);
+
+            if(failure instanceof BatchUpdateException)
+                counts = ((BatchUpdateException)failure).getUpdateCounts();
+        }
+
+        // The driver doesn't say how long each statement took
+        final long each = elapsed / statements.size();
+
+        for(int i=0; i<statements.size(); ++i)
+        {
+            final ScriptStatement statement = statements.get(i);
+
+            if(null != unexecuted && unexecuted.contains(statement))
+                continue;
+
+            final long count = (null != counts && i < counts.length && 0 <= counts[i]) ? counts[i] : -1;
+
+            journal.executed(statement, count, each);
+        }
+
+        if(null != unexecuted && !unexecuted.isEmpty())
+            journal.failed(unexecuted.get(0), each);
+    }
+
+    /**
+     * Determines whether a statement can be executed as part of a batch,
+     * based upon its first keyword.
+     *
+     * @param sql The statement to check.
+     *
+     * @return <code>true</code> if the statement only modifies data and
+     *         can safely be batched, <code>false</code> otherwise.
+     */
+    static boolean isBatchable(CharSequence sql)
+    {
+        // A chunked statement must be executed on its own
+        if(ChunkedStatement.isChunked(sql))
+            return false;
+
+        // Batches can't return result sets, so INSERT ... RETURNING would
+        // lose its results
+        return startsWith(sql, BATCHABLE_KEYWORDS) && !containsKeyword(sql, "RETURNING");
+    }
+
+    /**
+     * Determines whether a statement is a query, based upon its first
+     * keyword.
+     */
+    static boolean isQuery(CharSequence sql)
+    {
+        return startsWith(sql, QUERY_KEYWORDS);
+    }
+
+    private static boolean startsWith(CharSequence sql, String[] keywords)
+    {
+        final int length = sql.length();
+        int i = skipWhitespaceAndComments(sql, 0);
+
+        int end = i;
+        while(end < length && Character.isLetter(sql.charAt(end)))
+            ++end;
+
+        for(String keyword : keywords)
+            if(keyword.length() == end - i && regionMatches(sql, i, keyword))
+                return true;
+
+        return false;
+    }
+
+    static int skipWhitespaceAndComments(CharSequence sql, int i)
+    {
+        final int length = sql.length();
+
+        while(i < length)
+        {
+            final char c = sql.charAt(i);
+
+            if(Character.isWhitespace(c))
+                ++i;
+            else if('-' == c && i + 1 < length && '-' == sql.charAt(i + 1))
+            {
+                while(i < length && '\n' != sql.charAt(i))
+                    ++i;
+            }
+            else if('/' == c && i + 1 < length && '*' == sql.charAt(i + 1))
+            {
+                i += 2;
+                while(i + 1 < length && !('*' == sql.charAt(i) && '/' == sql.charAt(i + 1)))
+                    ++i;
+                i = Math.min(i + 2, length);
+            }
+            else
+                break;
+        }
+
+        return i;
+    }
+
+    /**
+     * Determines whether a keyword appears anywhere in a statement outside
+     * of a string literal.
+     */
+    private static boolean containsKeyword(CharSequence sql, String keyword)
+    {
+        final int length = sql.length();
+        int i = 0;
+
+        while(i < length)
+        {
+            final char c = sql.charAt(i);
+
+            if('\'' == c)
+            {
+                // A doubled quote just ends the literal and starts another
+                ++i;
+                while(i < length && '\'' != sql.charAt(i))
+                    ++i;
+                ++i;
+            }
+            else if(Character.isLetter(c) || '_' == c)
+            {
+                int end = i;
+                while(end < length && (Character.isLetterOrDigit(sql.charAt(end)) || '_' == sql.charAt(end)))
+                    ++end;
+
+                if(keyword.length() == end - i && regionMatches(sql, i, keyword))
+                    return true;
+
+                i = end;
+            }
+            else
+                ++i;
+        }
+
+        return false;
+    }
+
+    private static boolean regionMatches(CharSequence sql, int offset, String keyword)
+    {
+        for(int i=0; i<keyword.length(); ++i)
+            if(Character.toUpperCase(sql.charAt(offset + i)) != keyword.charAt(i))
+                return false;
+
+        return true;
+    }
+}
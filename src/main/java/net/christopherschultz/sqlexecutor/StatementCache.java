@@ -0,0 +1,167 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded, least-recently-used cache of PreparedStatements keyed by
+ * their SQL. Statements evicted from the cache are closed.
+ *
+ * The cache belongs to a single Connection and is not thread-safe.
+ */
+class StatementCache
+{
+    /**
+     * The maximum number of rejected statements to remember.
+     */
+    private static final int MAX_REJECTED = 1000;
+
+    private final Connection conn;
+    private final LinkedHashMap<String,PreparedStatement> statements;
+
+    // SQL the driver refused to prepare or execute, so we don't keep
+    // trying. Only the most recent are remembered.
+    private final Set<String> rejected = Collections.newSetFromMap(new LinkedHashMap<String,Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest)
+        {
+            return size() > MAX_REJECTED;
+        }
+    });
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a new StatementCache.
+     *
+     * @param conn The connection used to prepare statements.
+     * @param maxSize The maximum number of statements to keep open.
+     */
+    StatementCache(Connection conn, final int maxSize)
+    {
+        this.conn = conn;
+        this.statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest)
+            {
+                if(size() <= maxSize)
+                    return false;
+
+                close(eldest.getValue());
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets a PreparedStatement for the specified SQL, preparing a new one
+     * if necessary.
+     *
+     * @param sql The SQL to prepare.
+     *
+     * @return A PreparedStatement, or <code>null</code> if the driver
+     *         has previously refused to prepare this SQL.
+     *
+     * @throws SQLException If the statement cannot be prepared.
+     */
+    PreparedStatement get(String sql)
+        throws SQLException
+    {
+        PreparedStatement ps = statements.get(sql);
+
+        if(null != ps)
+        {
+            ++hits;
+
+            return ps;
+        }
+
+        if(rejected.contains(sql))
+            return null;
+
+        ++misses;
+
+        try
+        {
+            ps = conn.prepareStatement(sql,
+                                       ResultSet.TYPE_FORWARD_ONLY,
+                                       ResultSet.CONCUR_READ_ONLY);
+        }
+        catch (SQLException sqle)
+        {
+            rejected.add(sql);
+
+            throw sqle;
+        }
+
+        statements.put(sql, ps);
+
+        return ps;
+    }
+
+    /**
+     * Removes a statement from the cache and closes it, and returns
+     * <code>null</code> from {@link #get(String)} for it from now on, e.g.
+     * after the driver has refused to execute it with the parameters
+     * bound to it.
+     */
+    void reject(String sql)
+    {
+        remove(sql);
+
+        rejected.add(sql);
+    }
+
+    /**
+     * Removes a statement from the cache and closes it, e.g. after it
+     * has failed and may no longer be usable.
+     */
+    void remove(String sql)
+    {
+        final PreparedStatement ps = statements.remove(sql);
+
+        if(null != ps)
+            close(ps);
+    }
+
+    long getHits()
+    {
+        return hits;
+    }
+
+    long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Closes all cached statements.
+     */
+    void close()
+    {
+        for(Iterator<PreparedStatement> i=statements.values().iterator(); i.hasNext(); )
+        {
+            close(i.next());
+            i.remove();
+        }
+    }
+
+    private static void close(PreparedStatement ps)
+    {
+        try { ps.close(); }
+        catch (SQLException sqle) { sqle.printStackTrace(); }
+    }
+}
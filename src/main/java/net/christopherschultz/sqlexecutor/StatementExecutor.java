@@ -0,0 +1,174 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Executes statements unattended and keeps track of what became of each
+ * one: records it in the journal and the statistics, reports failures and
+ * applies the error policy. Used by <code>--batch</code>,
+ * {@link FanOut} and {@link ParallelRunner}, so that they all behave the
+ * same way.
+ *
+ * Statements may be executed on any thread, but everything else must be
+ * done by one thread at a time, except that timings are recorded while
+ * holding the lock on the {@link RunMetrics}, which may be shared.
+ */
+class StatementExecutor
+{
+    private final String script;
+    private final String onError;
+    private final ExecutionJournal journal;
+    private final RunMetrics metrics;
+    private final PrintStream log;
+
+    /**
+     * Creates a new StatementExecutor.
+     *
+     * @param script The name of the script, used in messages.
+     * @param onError What to do when a statement fails: stop, skip or
+     *                continue.
+     * @param journal The journal, or <code>null</code>.
+     * @param metrics Where to record timings, or <code>null</code>.
+     * @param log Where to report failures.
+     */
+    StatementExecutor(String script, String onError, ExecutionJournal journal, RunMetrics metrics, PrintStream log)
+    {
+        this.script = script;
+        this.onError = onError;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.log = log;
+    }
+
+    /**
+     * Returns <code>true</code> if execution should stop as soon as a
+     * statement fails.
+     */
+    boolean stopsOnError()
+    {
+        return "stop".equals(onError);
+    }
+
+    /**
+     * Executes a statement in auto-commit mode, retrying it after a
+     * transient failure if there is a retry policy. Nothing is recorded.
+     *
+     * @see SQLExecutor#executeSQL(String, Connection, PrintStream, ExecutionOptions)
+     */
+    StatementMetrics execute(ScriptStatement statement, Connection conn, PrintStream out, ExecutionOptions options)
+        throws SQLException
+    {
+        if(null == options.retry)
+            return SQLExecutor.executeSQL(statement.getText(), conn, out, options);
+        else
+            return options.retry.executeSQL(statement.getText(), script + ":" + statement.getStartLine(),
+                                            conn, out, options);
+    }
+
+    /**
+     * Records a statement which was executed successfully.
+     */
+    void executed(ScriptStatement statement, StatementMetrics result)
+        throws IOException
+    {
+        if(null != journal)
+            journal.executed(statement, result.getUpdateCount(), result.getTotal());
+        if(null != metrics)
+            synchronized(metrics) { metrics.record(statement, result); }
+    }
+
+    /**
+     * Records a batch which was executed successfully.
+     *
+     * @param counts The update counts reported by the driver.
+     * @param elapsed The time taken to execute the batch, in nanoseconds.
+     */
+    void executed(StatementBatch batch, int[] counts, long elapsed)
+        throws IOException
+    {
+        if(null != journal)
+            batch.record(journal, counts, null, elapsed);
+        if(null != metrics)
+            synchronized(metrics) { metrics.record(batch, counts, elapsed); }
+    }
+
+    /**
+     * Records in the journal a batch which failed: whatever the driver
+     * says was executed, then the statement which failed.
+     *
+     * @param elapsed The time taken to execute the batch, in nanoseconds.
+     */
+    void failed(StatementBatch batch, SQLException sqle, long elapsed)
+        throws IOException
+    {
+        if(null != journal)
+            batch.record(journal, null, sqle, elapsed);
+    }
+
+    /**
+     * Records in the journal a statement which failed.
+     *
+     * @param elapsed The time taken before it failed, in nanoseconds.
+     */
+    void failed(ScriptStatement statement, long elapsed)
+        throws IOException
+    {
+        if(null != journal)
+            journal.failed(statement, elapsed);
+    }
+
+    /**
+     * Reports a statement which failed, once it won't be retried.
+     */
+    void report(ScriptStatement statement, SQLException sqle)
+    {
+        if(null != metrics)
+            synchronized(metrics) { metrics.recordFailure(); }
+
+        log.println("Failed to execute statement at " + script + ":" + statement.getStartLine());
+        sqle.printStackTrace(log);
+    }
+
+    /**
+     * Reports a statement which was executed but can't be recorded in the
+     * journal, because an earlier statement failed and stopped execution.
+     */
+    void unrecorded(ScriptStatement statement)
+    {
+        if(null != journal)
+            log.println("Statement at " + script + ":" + statement.getStartLine()
+                        + " was executed but follows a statement which failed, so --resume will execute it again");
+    }
+
+    /**
+     * Records in the journal a statement which was skipped.
+     */
+    void skipped(ScriptStatement statement)
+        throws IOException
+    {
+        if(null != journal)
+            journal.skipped(statement);
+    }
+
+    /**
+     * Applies the error policy to a statement which failed and has already
+     * been recorded and reported.
+     *
+     * @return <code>true</code> if the statement has been skipped and
+     *         execution should continue, <code>false</code> if it should
+     *         stop.
+     */
+    boolean skip(ScriptStatement statement)
+        throws IOException
+    {
+        if(stopsOnError())
+            return false;
+
+        skipped(statement);
+
+        return true;
+    }
+}
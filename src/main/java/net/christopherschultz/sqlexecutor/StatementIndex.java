@@ -0,0 +1,322 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sidecar file recording where each statement in a script begins, so
+ * that a script can be re-opened at any statement without reading
+ * everything before it.
+ *
+ * The index is a header followed by one fixed-size entry per statement:
+ *
+ * <pre>
+ * header: magic (8 bytes), script length (8), script last-modified (8)
+ * entry:  byte offset (8), line (8), column (4), flags (4)
+ * </pre>
+ *
+ * Entry <i>n</i> describes the <i>n</i>th (zero-based) statement in the
+ * script, so it can be found without searching. Entries are appended as
+ * the script is read, so the index grows as far as the script has ever
+ * been read. If the script changes, the index is discarded and rebuilt.
+ *
+ * This class is not thread-safe.
+ */
+class StatementIndex
+{
+    private static final long MAGIC = 0x53514c5849445831L; // "SQLXIDX1"
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 24;
+
+    /**
+     * Flag indicating that the statement uses a non-default delimiter,
+     * so reading can't start there without first reading the
+     * DELIMITER directive that preceded it.
+     */
+    static final int CUSTOM_DELIMITER = 0x01;
+
+    /**
+     * Flag indicating that the script was being read using MySQL's syntax
+     * for strings and comments when the statement was read.
+     */
+    static final int MYSQL = 0x02;
+
+    /**
+     * The location of a single statement in a script.
+     */
+    static class Entry
+    {
+        final long ordinal;
+        final long offset;
+        final long line;
+        final int column;
+        final int flags;
+
+        Entry(long ordinal, long offset, long line, int column, int flags)
+        {
+            this.ordinal = ordinal;
+            this.offset = offset;
+            this.line = line;
+            this.column = column;
+            this.flags = flags;
+        }
+
+        /**
+         * Returns <code>true</code> if reading can begin at this entry.
+         */
+        boolean isResumable()
+        {
+            return 0 == (flags & CUSTOM_DELIMITER);
+        }
+
+        /**
+         * Returns <code>true</code> if reading from this entry must use
+         * MySQL's syntax.
+         */
+        boolean isMySQL()
+        {
+            return 0 != (flags & MYSQL);
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    // Entries that have been appended but not yet written
+    private final ByteBuffer pending = ByteBuffer.allocate(ENTRY_SIZE * 2048);
+    private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+
+    // Number of entries, including those still pending
+    private long size;
+
+    private StatementIndex(File file, RandomAccessFile raf, long size)
+    {
+        this.file = file;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.size = size;
+    }
+
+    /**
+     * Opens (or creates) the index for a script. An existing index which
+     * does not match the script is discarded.
+     *
+     * @param script The script file.
+     * @param indexFile The index file.
+     *
+     * @return The index.
+     *
+     * @throws IOException If the index can't be read or created.
+     */
+    static StatementIndex open(File script, File indexFile)
+        throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+
+        try
+        {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            long size = 0;
+
+            if(HEADER_SIZE <= channel.size())
+            {
+                channel.read(header, 0);
+                header.flip();
+
+                if(MAGIC == header.getLong()
+                   && script.length() == header.getLong()
+                   && script.lastModified() == header.getLong())
+                {
+                    // Ignore any partially-written entry
+                    size = (channel.size() - HEADER_SIZE) / ENTRY_SIZE;
+                }
+                header.clear();
+            }
+
+            if(0 == size)
+            {
+                header.putLong(MAGIC);
+                header.putLong(script.length());
+                header.putLong(script.lastModified());
+                header.flip();
+
+                channel.truncate(0);
+                channel.write(header, 0);
+            }
+
+            channel.truncate(HEADER_SIZE + size * ENTRY_SIZE);
+
+            return new StatementIndex(indexFile, raf, size);
+        }
+        catch (IOException ioe)
+        {
+            raf.close();
+
+            throw ioe;
+        }
+    }
+
+    /**
+     * Gets the default index file for a script.
+     */
+    static File getIndexFile(File script)
+    {
+        return new File(script.getPath() + ".idx");
+    }
+
+    /**
+     * Gets the number of statements in the index.
+     */
+    long size()
+    {
+        return size;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Adds a statement to the end of the index.
+     *
+     * @param statement The statement, whose ordinal must be equal to the
+     *                  current size of the index and whose offset must be
+     *                  known.
+     * @param flags Any flags for the statement, e.g.
+     *              {@link #CUSTOM_DELIMITER}.
+     */
+    void append(ScriptStatement statement, int flags)
+        throws IOException
+    {
+        if(statement.getOrdinal() != size || 0 > statement.getStartOffset())
+            throw new IllegalArgumentException("Statement " + statement.getOrdinal() + " can't be appended to an index of size " + size);
+
+        if(!pending.hasRemaining())
+            flush();
+
+        pending.putLong(statement.getStartOffset());
+        pending.putLong(statement.getStartLine());
+        pending.putInt((int)statement.getStartColumn());
+        pending.putInt(flags);
+
+        ++size;
+    }
+
+    /**
+     * Gets an entry from the index.
+     *
+     * @param ordinal The position of the statement in the script.
+     */
+    Entry get(long ordinal)
+        throws IOException
+    {
+        if(0 > ordinal || ordinal >= size)
+            throw new IndexOutOfBoundsException("No entry " + ordinal + " in index of size " + size);
+
+        flush();
+
+        entryBuffer.clear();
+        final long position = HEADER_SIZE + ordinal * ENTRY_SIZE;
+        while(entryBuffer.hasRemaining())
+            if(-1 == channel.read(entryBuffer, position + entryBuffer.position()))
+                throw new IOException("Unexpected end of index " + file);
+        entryBuffer.flip();
+
+        return new Entry(ordinal,
+                         entryBuffer.getLong(),
+                         entryBuffer.getLong(),
+                         entryBuffer.getInt(),
+                         entryBuffer.getInt());
+    }
+
+    /**
+     * Finds the last resumable statement at or before the one specified.
+     *
+     * @param ordinal The position of the statement in the script.
+     *
+     * @return The entry, or <code>null</code> if there is none.
+     */
+    Entry findResumable(long ordinal)
+        throws IOException
+    {
+        for(long i=Math.min(ordinal, size - 1); i>=0; --i)
+        {
+            final Entry entry = get(i);
+
+            if(entry.isResumable())
+                return entry;
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds the last resumable statement that begins before the
+     * specified line. Statements beginning on the line itself are
+     * excluded, because an earlier statement on the same line might
+     * still end there.
+     *
+     * @param line The line number.
+     *
+     * @return The entry, or <code>null</code> if there is none.
+     */
+    Entry findResumableByLine(long line)
+        throws IOException
+    {
+        // Binary-search for the last statement starting before line
+        long low = 0;
+        long high = size - 1;
+        long found = -1;
+
+        while(low <= high)
+        {
+            final long mid = (low + high) >>> 1;
+
+            if(get(mid).line < line)
+            {
+                found = mid;
+                low = mid + 1;
+            }
+            else
+                high = mid - 1;
+        }
+
+        return -1 == found ? null : findResumable(found);
+    }
+
+    /**
+     * Writes any pending entries to the index file.
+     */
+    void flush()
+        throws IOException
+    {
+        if(0 == pending.position())
+            return;
+
+        pending.flip();
+        final long position = HEADER_SIZE + (size - pending.remaining() / ENTRY_SIZE) * ENTRY_SIZE;
+        while(pending.hasRemaining())
+            channel.write(pending, position + pending.position());
+        pending.clear();
+    }
+
+    void close()
+        throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}
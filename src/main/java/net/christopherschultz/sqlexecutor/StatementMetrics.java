@@ -0,0 +1,111 @@
+package net.christopherschultz.sqlexecutor;
+
+/**
+ * Times the phases of executing a single statement using
+ * {@link System#nanoTime()}.
+ *
+ * The clock starts when the object is created, and each call to
+ * {@link #lap(int)} charges the time since the previous lap to a phase.
+ */
+class StatementMetrics
+{
+    static final int PREPARE = 0;
+    static final int EXECUTE = 1;
+    static final int FIRST_ROW = 2;
+    static final int FETCH = 3;
+    static final int RENDER = 4;
+
+    static final String[] PHASES = {
+        "prepare", "execute", "first-row", "fetch", "render"
+    };
+
+    private final long[] elapsed = new long[PHASES.length];
+    private long mark = System.nanoTime();
+
+    private long rows;
+    private long updateCount = -1;
+
+    /**
+     * Charges the time since the last lap to a phase.
+     *
+     * @param phase The phase, e.g. {@link #EXECUTE}.
+     */
+    void lap(int phase)
+    {
+        final long now = System.nanoTime();
+
+        elapsed[phase] += now - mark;
+        mark = now;
+    }
+
+    /**
+     * Discards the time since the last lap, e.g. after waiting for the
+     * user.
+     */
+    void reset()
+    {
+        mark = System.nanoTime();
+    }
+
+    /**
+     * Adds the time spent and rows fetched and affected by another
+     * statement to this one, e.g. to total the chunks of a chunked
+     * statement.
+     */
+    void add(StatementMetrics other)
+    {
+        for(int phase=0; phase<elapsed.length; ++phase)
+            elapsed[phase] += other.elapsed[phase];
+
+        rows += other.rows;
+        if(0 <= other.updateCount)
+            updateCount = Math.max(updateCount, 0) + other.updateCount;
+    }
+
+    /**
+     * Gets the time spent in a phase, in nanoseconds.
+     */
+    long getElapsed(int phase)
+    {
+        return elapsed[phase];
+    }
+
+    /**
+     * Gets the time spent in all phases, in nanoseconds.
+     */
+    long getTotal()
+    {
+        long total = 0;
+        for(long phase : elapsed)
+            total += phase;
+
+        return total;
+    }
+
+    /**
+     * Gets the number of rows fetched from the result set, if any.
+     */
+    long getRows()
+    {
+        return rows;
+    }
+
+    void setRows(long rows)
+    {
+        this.rows = rows;
+    }
+
+    /**
+     * Gets the number of rows affected by the statement, or -1 if it
+     * returned a result set.
+     */
+    long getUpdateCount()
+    {
+        return updateCount;
+    }
+
+    void setUpdateCount(long updateCount)
+    {
+        this.updateCount = updateCount;
+    }
+}
@@ -0,0 +1,123 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Keeps track of a statement while it is being executed on another
+ * thread, so that its progress can be shown and it can be cancelled.
+ *
+ * The elapsed-time ticker is only shown while the server is executing the
+ * statement; it is erased before any results are written. A statement
+ * executed as several smaller ones (see {@link ChunkedStatement}) is
+ * monitored as a whole, including the pauses between its parts.
+ */
+class StatementMonitor
+{
+    private final PrintStream console;
+
+    private volatile Statement statement;
+    private volatile Thread thread;
+
+    private final long started = System.nanoTime();
+    private boolean executing;
+    private boolean tickerShown;
+
+    /**
+     * Creates a new StatementMonitor.
+     *
+     * @param console Where to show the elapsed-time ticker.
+     */
+    StatementMonitor(PrintStream console)
+    {
+        this.console = console;
+    }
+
+    /**
+     * Called just before a statement is executed.
+     */
+    synchronized void executing(Statement statement)
+    {
+        this.statement = statement;
+        this.thread = Thread.currentThread();
+        this.executing = true;
+    }
+
+    /**
+     * Called just before pausing between the parts of a statement, so
+     * that cancelling it interrupts the pause instead.
+     */
+    synchronized void pausing()
+    {
+        this.statement = null;
+        this.thread = Thread.currentThread();
+        this.executing = true;
+    }
+
+    /**
+     * Called as soon as the server has finished executing the statement,
+     * before any results are written.
+     */
+    synchronized void executed()
+    {
+        executing = false;
+
+        if(tickerShown)
+        {
+            // Erase the ticker
+            console.print('\r');
+            for(int i=0; i<79; ++i)
+                console.print(' ');
+            console.print('\r');
+            console.flush();
+
+            tickerShown = false;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> while the server is executing the
+     * statement.
+     */
+    synchronized boolean isExecuting()
+    {
+        return executing;
+    }
+
+    /**
+     * Shows how long the statement has been executing, if it still is.
+     */
+    synchronized void tick()
+    {
+        if(!executing)
+            return;
+
+        final long seconds = (System.nanoTime() - started) / 1000000000L;
+
+        console.print("\r-- Executing for " + seconds + "s (enter 'cancel' to cancel) --");
+        console.flush();
+
+        tickerShown = true;
+    }
+
+    /**
+     * Asks the server to stop executing the statement, or interrupts the
+     * pause between its parts.
+     */
+    void cancel()
+        throws SQLException
+    {
+        final Statement s = statement;
+
+        if(null != s)
+            s.cancel();
+        else
+        {
+            final Thread t = thread;
+
+            if(null != t)
+                t.interrupt();
+        }
+    }
+}
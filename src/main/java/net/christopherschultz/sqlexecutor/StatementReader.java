@@ -0,0 +1,460 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads statements from a script, one at a time. See {@link ScriptLexer}
+ * for the rules used to split the script into statements.
+ *
+ * Statements that have already been read may be pushed back onto the
+ * reader using {@link #unread(List)}; they will be returned again, in
+ * order, before anything else is read from the script. This allows
+ * callers to back up after reading ahead, e.g. when a batch of
+ * statements fails part-way through.
+ *
+ * If a {@link StatementIndex} is provided, every statement read is added
+ * to it, and the index is used to jump directly to a statement or line
+ * without reading the script up to that point.
+ *
+ * Once positioned, the reader can be told to {@link #readAhead(int)}: the
+ * script is then read, decoded and split on a background thread, so that
+ * the next statements are usually waiting by the time they're needed.
+ * Statements are still added to the index as they are returned by
+ * {@link #next()}, on the caller's thread.
+ */
+class StatementReader
+{
+    /**
+     * A statement read by the background thread, and the state of the
+     * lexer just after reading it.
+     */
+    private static class Ahead
+    {
+        final ScriptStatement statement;
+        final int flags;
+        final boolean atEnd;
+        final long lineNumber;
+        final IOException failure;
+
+        Ahead(ScriptStatement statement, int flags, boolean atEnd, long lineNumber, IOException failure)
+        {
+            this.statement = statement;
+            this.flags = flags;
+            this.atEnd = atEnd;
+            this.lineNumber = lineNumber;
+            this.failure = failure;
+        }
+    }
+
+    private final File script;
+    private final Charset charset;
+    private final StatementIndex index;
+    private final boolean mysql;
+
+    private ScriptLexer lexer;
+
+    private final LinkedList<ScriptStatement> pushback = new LinkedList<ScriptStatement>();
+
+    // Statements read ahead, or null when not reading ahead. They are
+    // taken from the queue in bulk to keep the threads from waking each
+    // other up for every statement.
+    private BlockingQueue<Ahead> ahead;
+    private final LinkedList<Ahead> taken = new LinkedList<Ahead>();
+    private ExecutorService aheadReader;
+
+    // The lexer's state after the last statement taken from "ahead", and
+    // what it said when there was nothing left
+    private boolean atEnd;
+    private long lineNumber;
+    private Ahead last;
+
+    /**
+     * Creates a new StatementReader positioned at the beginning of a
+     * script.
+     *
+     * @param script The script file.
+     * @param charset The character encoding of the script.
+     * @param index The index for the script, or <code>null</code> to
+     *              read without an index.
+     */
+    StatementReader(File script, Charset charset, StatementIndex index)
+        throws IOException
+    {
+        this(script, charset, index, false);
+    }
+
+    /**
+     * Creates a new StatementReader positioned at the beginning of a
+     * script.
+     *
+     * @param script The script file.
+     * @param charset The character encoding of the script.
+     * @param index The index for the script, or <code>null</code> to
+     *              read without an index.
+     * @param mysql Whether to use MySQL's syntax for strings and comments
+     *              from the beginning, instead of only once the script
+     *              shows that it's written for MySQL.
+     */
+    StatementReader(File script, Charset charset, StatementIndex index, boolean mysql)
+        throws IOException
+    {
+        this.script = script;
+        this.charset = charset;
+        this.index = index;
+        this.mysql = mysql;
+
+        open(0, 1, 1, 0, mysql);
+    }
+
+    /**
+     * Skips lines at the beginning of the script.
+     *
+     * @param count The number of lines to skip.
+     */
+    void skipLines(int count)
+        throws IOException
+    {
+        checkNotReadingAhead();
+
+        lexer.skipLines(count);
+    }
+
+    /**
+     * Positions this reader at a statement, using the index to avoid
+     * reading as much of the script as possible.
+     *
+     * @param ordinal The zero-based position of the statement in the
+     *                script.
+     */
+    void resumeAtStatement(long ordinal)
+        throws IOException
+    {
+        final StatementIndex.Entry entry = null == index ? null : index.findResumable(ordinal);
+
+        long remaining = ordinal;
+        if(null == entry)
+            open(0, 1, 1, 0, mysql);
+        else
+        {
+            open(entry.offset, entry.line, entry.column, entry.ordinal, mysql || entry.isMySQL());
+            remaining -= entry.ordinal;
+        }
+
+        while(remaining-- > 0 && null != record(lexer.skip()))
+            ; // Just keep skipping
+    }
+
+    /**
+     * Positions this reader at the first statement which ends on or after
+     * a line, using the index to avoid reading as much of the script as
+     * possible.
+     *
+     * @param line The line number.
+     */
+    void resumeAtLine(long line)
+        throws IOException
+    {
+        final StatementIndex.Entry entry = null == index ? null : index.findResumableByLine(line);
+
+        if(null == entry)
+            open(0, 1, 1, 0, mysql);
+        else
+            open(entry.offset, entry.line, entry.column, entry.ordinal, mysql || entry.isMySQL());
+
+        ScriptStatement statement;
+        while(null != (statement = record(lexer.next())))
+        {
+            if(statement.getEndLine() >= line)
+            {
+                pushback.add(statement);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Positions this reader at a statement whose location is already
+     * known, e.g. from an {@link ExecutionJournal}. The byte offset is
+     * used if it is known, otherwise the ordinal, otherwise the line.
+     *
+     * @param location The location of the statement; its text is ignored.
+     *
+     * @return The statement found at that location, which will also be
+     *         the next statement returned by {@link #next()}, or
+     *         <code>null</code> if the script ends before that location.
+     */
+    ScriptStatement seek(ScriptStatement location)
+        throws IOException
+    {
+        if(0 <= location.getStartOffset())
+        {
+            // The index knows whether the script had turned out to be
+            // written for MySQL by then
+            final long ordinal = location.getOrdinal();
+            final boolean indexed = null != index && 0 <= ordinal && ordinal < index.size();
+
+            open(location.getStartOffset(),
+                 location.getStartLine(),
+                 location.getStartColumn(),
+                 ordinal,
+                 mysql || (indexed && index.get(ordinal).isMySQL()));
+        }
+        else if(0 <= location.getOrdinal())
+            resumeAtStatement(location.getOrdinal());
+        else
+            resumeAtLine(location.getStartLine());
+
+        final ScriptStatement statement = next();
+
+        if(null != statement)
+            pushback.addFirst(statement);
+
+        return statement;
+    }
+
+    /**
+     * Reads the next statement from the script.
+     *
+     * @return The next statement, or <code>null</code> if there are no
+     *         more statements in the script.
+     */
+    ScriptStatement next()
+        throws IOException
+    {
+        if(!pushback.isEmpty())
+            return pushback.removeFirst();
+
+        if(null == ahead)
+            return record(lexer.next());
+
+        // The end of the script, or a failure, is sticky
+        if(null != last)
+        {
+            if(null != last.failure)
+                throw last.failure;
+
+            return null;
+        }
+
+        if(taken.isEmpty())
+        {
+            try
+            {
+                taken.add(ahead.take());
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+
+                throw new IOException("Interrupted while reading script", ie);
+            }
+
+            ahead.drainTo(taken);
+        }
+
+        final Ahead next = taken.removeFirst();
+
+        atEnd = next.atEnd;
+        lineNumber = next.lineNumber;
+
+        if(null == next.statement)
+        {
+            last = next;
+
+            if(null != next.failure)
+                throw next.failure;
+        }
+
+        return record(next.statement, next.flags);
+    }
+
+    /**
+     * Starts reading statements on a background thread, keeping up to
+     * <code>depth</code> of them ready. The reader can't be repositioned
+     * after this.
+     *
+     * @param depth The number of statements to read ahead, or 0 to keep
+     *              reading on the caller's thread.
+     */
+    void readAhead(int depth)
+    {
+        if(0 >= depth || null != ahead)
+            return;
+
+        atEnd = lexer.isAtEnd();
+        lineNumber = lexer.getLineNumber();
+
+        final BlockingQueue<Ahead> queue = new ArrayBlockingQueue<Ahead>(depth);
+        ahead = queue;
+        aheadReader = Executors.newSingleThreadExecutor(WorkerThreads.factory("read-ahead"));
+        aheadReader.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Ahead next;
+                    do
+                    {
+                        try
+                        {
+                            final ScriptStatement statement = lexer.next();
+                            next = new Ahead(statement, getFlags(), lexer.isAtEnd(), lexer.getLineNumber(), null);
+                        }
+                        catch (IOException ioe)
+                        {
+                            next = new Ahead(null, 0, true, lexer.getLineNumber(), ioe);
+                        }
+
+                        queue.put(next);
+                    } while(null != next.statement);
+                }
+                catch (InterruptedException ie)
+                {
+                    // Closing
+                }
+            }
+        });
+    }
+
+    /**
+     * Pushes statements back onto this reader. They will be returned by
+     * {@link #next()} in the order given, before any statements that
+     * were previously pushed back.
+     *
+     * @param statements The statements to push back.
+     */
+    void unread(List<ScriptStatement> statements)
+    {
+        pushback.addAll(0, statements);
+    }
+
+    /**
+     * Returns <code>true</code> if the end of the script has been
+     * reached and no pushed-back statements remain.
+     */
+    boolean isAtEnd()
+    {
+        return (null == ahead ? lexer.isAtEnd() : atEnd) && pushback.isEmpty();
+    }
+
+    /**
+     * Returns <code>true</code> if the script is being split using
+     * MySQL's syntax, either because it was asked to or because the
+     * script has turned out to be written for MySQL.
+     */
+    boolean isMySQL()
+    {
+        checkNotReadingAhead();
+
+        return lexer.isMySQL();
+    }
+
+    /**
+     * Gets the number of the next line that will be read from the script.
+     */
+    long getLineNumber()
+    {
+        return null == ahead ? lexer.getLineNumber() : lineNumber;
+    }
+
+    void close()
+        throws IOException
+    {
+        if(null != aheadReader)
+        {
+            aheadReader.shutdownNow();
+
+            // The background thread may still be using the lexer
+            try
+            {
+                while(!aheadReader.awaitTermination(1, TimeUnit.SECONDS))
+                    ; // Keep waiting
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        lexer.close();
+    }
+
+    /**
+     * Opens the script at a specific location, discarding any pushed-back
+     * statements.
+     */
+    private void open(long offset, long line, long column, long ordinal, boolean mysql)
+        throws IOException
+    {
+        checkNotReadingAhead();
+
+        if(null != lexer)
+            lexer.close();
+
+        lexer = new ScriptLexer(ScriptInput.open(script, charset, offset),
+                                charset, offset, line, column, ordinal);
+        lexer.setMySQL(mysql);
+        pushback.clear();
+    }
+
+    private void checkNotReadingAhead()
+    {
+        if(null != ahead)
+            throw new IllegalStateException("Can't reposition a reader which is reading ahead");
+    }
+
+    /**
+     * Adds a statement just read by the lexer to the index, if it's the
+     * next one the index needs.
+     *
+     * @return The statement.
+     */
+    private ScriptStatement record(ScriptStatement statement)
+        throws IOException
+    {
+        return record(statement, getFlags());
+    }
+
+    /**
+     * Adds a statement to the index, if it's the next one the index needs.
+     * Must not be called on the background thread: the index isn't
+     * thread-safe.
+     *
+     * @param flags The index flags for the lexer's state just after
+     *              reading the statement.
+     *
+     * @return The statement.
+     */
+    private ScriptStatement record(ScriptStatement statement, int flags)
+        throws IOException
+    {
+        if(null != index
+           && null != statement
+           && statement.getOrdinal() == index.size()
+           && 0 <= statement.getStartOffset())
+        {
+            index.append(statement, flags);
+        }
+
+        return statement;
+    }
+
+    /**
+     * Gets the index flags for the lexer's current state.
+     */
+    private int getFlags()
+    {
+        return (";".equals(lexer.getDelimiter()) ? 0 : StatementIndex.CUSTOM_DELIMITER)
+            | (lexer.isMySQL() ? StatementIndex.MYSQL : 0);
+    }
+}
@@ -0,0 +1,135 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Executes statements on a worker thread so that the console stays
+ * responsive: while the server is working, the elapsed time is shown and
+ * the user can enter <code>cancel</code> to cancel the statement.
+ */
+class StatementRunner
+{
+    // How often to check for input and update the ticker
+    private static final long POLL_INTERVAL = 250;
+
+    private final ExecutorService executor;
+    private final BufferedReader input;
+    private final PrintStream console;
+
+    /**
+     * Creates a new StatementRunner.
+     *
+     * @param input Where to read the cancel command from.
+     * @param console Where to show the elapsed time.
+     */
+    StatementRunner(BufferedReader input, PrintStream console)
+    {
+        this.executor = Executors.newSingleThreadExecutor(WorkerThreads.factory("statement"));
+        this.input = input;
+        this.console = console;
+    }
+
+    /**
+     * Executes a statement on the worker thread and waits for it to
+     * finish. See
+     * {@link SQLExecutor#executeSQL(String, Connection, PrintStream, ExecutionOptions)}.
+     */
+    StatementMetrics execute(final String statement, final Connection conn, final PrintStream out, final ExecutionOptions options)
+        throws SQLException
+    {
+        final StatementMonitor monitor = new StatementMonitor(console);
+        options.monitor = monitor;
+
+        final Future<StatementMetrics> future = executor.submit(new Callable<StatementMetrics>() {
+            @Override
+            public StatementMetrics call()
+                throws SQLException
+            {
+                return SQLExecutor.executeSQL(statement, conn, out, options);
+            }
+        });
+
+        try
+        {
+            long polls = 0;
+            while(true)
+            {
+                try
+                {
+                    return future.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException te)
+                {
+                    // Don't bother showing the ticker for quick statements
+                    if(0 == ++polls % (1000 / POLL_INTERVAL))
+                        monitor.tick();
+
+                    // Only look for input while nothing else could want it,
+                    // e.g. the prompt between pages of results.
+                    if(monitor.isExecuting() && input.ready())
+                    {
+                        final String command = input.readLine();
+
+                        if(null != command && "cancel".equals(command.trim()))
+                        {
+                            console.println("Cancelling statement...");
+                            console.flush();
+                            monitor.cancel();
+                        }
+                        else if(null != command)
+                        {
+                            console.println("Ignoring '" + command.trim()
+                                            + "' while the statement is executing; enter 'cancel' to cancel it");
+                            console.flush();
+                        }
+                    }
+                }
+            }
+        }
+        catch (ExecutionException ee)
+        {
+            final Throwable cause = ee.getCause();
+
+            if(cause instanceof SQLException)
+                throw (SQLException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if(cause instanceof Error)
+                throw (Error)cause;
+
+            throw new SQLException("Failed to execute statement", cause);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+
+            monitor.cancel();
+
+            throw new SQLException("Interrupted while waiting for statement", ie);
+        }
+        catch (IOException ioe)
+        {
+            throw new SQLException("Failed to read command", ioe);
+        }
+        finally
+        {
+            options.monitor = null;
+        }
+    }
+
+    void close()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,381 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The tables a statement reads and writes, worked out from its text so
+ * that statements which touch different tables can be run at the same
+ * time.
+ *
+ * The analysis is purely syntactic and deliberately conservative: tables
+ * are compared by name alone, ignoring any schema, and anything which
+ * isn't recognized is treated as a barrier which must run on its own.
+ * Recognized statements are:
+ *
+ * <ul>
+ * <li><code>SELECT</code> and <code>WITH</code> (reads)</li>
+ * <li><code>INSERT</code>, <code>UPDATE</code>, <code>DELETE</code>,
+ *     <code>MERGE</code>, <code>REPLACE</code> and <code>UPSERT</code>
+ *     (writes the target, reads everything else)</li>
+ * <li><code>CREATE TABLE</code>, <code>CREATE INDEX</code>,
+ *     <code>ALTER TABLE</code>, <code>DROP TABLE</code> and
+ *     <code>TRUNCATE</code> (writes the table, reads any table it
+ *     references)</li>
+ * </ul>
+ *
+ * Side-effects the text doesn't show, such as triggers, views and
+ * functions, can't be seen, so a statement can be forced to run on its own
+ * by preceding it with a <code>-- @barrier</code> comment.
+ */
+class TableAccess
+{
+    /**
+     * The comment which marks a statement as a barrier.
+     */
+    static final String BARRIER = "@barrier";
+
+    // Keywords followed by the names of tables which are read
+    private static final String[] READ_KEYWORDS = {
+        "FROM", "JOIN", "USING", "REFERENCES"
+    };
+
+    // Keywords which might appear between a statement's first keyword and
+    // the table it modifies
+    private static final String[] NOISE_WORDS = {
+        "INTO", "FROM", "ONLY", "IF", "NOT", "EXISTS", "TABLE", "IGNORE", "LOW_PRIORITY", "DELAYED", "QUICK"
+    };
+
+    // Words which may appear between CREATE and TABLE
+    private static final String[] TABLE_MODIFIERS = {
+        "GLOBAL", "LOCAL", "TEMPORARY", "TEMP", "UNLOGGED", "OR", "REPLACE"
+    };
+
+    // Words which may appear between CREATE and INDEX
+    private static final String[] INDEX_MODIFIERS = {
+        "UNIQUE", "CLUSTERED", "NONCLUSTERED", "BITMAP", "FULLTEXT", "SPATIAL"
+    };
+
+    private final Set<String> reads;
+    private final Set<String> writes;
+
+    private TableAccess(Set<String> reads, Set<String> writes)
+    {
+        this.reads = reads;
+        this.writes = writes;
+    }
+
+    /**
+     * Gets the names of the tables read by the statement, upper-cased and
+     * without any schema.
+     */
+    Set<String> getReads()
+    {
+        return reads;
+    }
+
+    /**
+     * Gets the names of the tables modified by the statement, upper-cased
+     * and without any schema.
+     */
+    Set<String> getWrites()
+    {
+        return writes;
+    }
+
+    /**
+     * Works out which tables a statement reads and writes.
+     *
+     * @param sql The statement, including any comments preceding it.
+     *
+     * @return The tables used by the statement, or <code>null</code> if
+     *         the statement isn't understood or is marked as a barrier,
+     *         in which case it must not run alongside any other
+     *         statement.
+     */
+    static TableAccess analyze(String sql)
+    {
+        final List<String> tokens = tokenize(sql);
+
+        if(null == tokens || tokens.isEmpty())
+            return null;
+
+        final HashSet<String> reads = new HashSet<String>();
+        final HashSet<String> writes = new HashSet<String>();
+
+        final String first = tokens.get(0);
+        int i = 1;
+
+        if("SELECT".equals(first) || "WITH".equals(first))
+        {
+            // SELECT ... INTO creates a table, and WITH can hide an
+            // INSERT, UPDATE or DELETE
+            for(String token : tokens)
+                if("INTO".equals(token) || "INSERT".equals(token) || "UPDATE".equals(token)
+                   || "DELETE".equals(token) || "MERGE".equals(token))
+                    return null;
+        }
+        else if("INSERT".equals(first) || "UPDATE".equals(first) || "DELETE".equals(first)
+                || "MERGE".equals(first) || "REPLACE".equals(first) || "UPSERT".equals(first))
+        {
+            i = skip(tokens, i, NOISE_WORDS);
+            if(!addName(tokens, i, writes))
+                return null;
+        }
+        else if("CREATE".equals(first))
+        {
+            i = skip(tokens, i, TABLE_MODIFIERS);
+            if(i < tokens.size() && "TABLE".equals(tokens.get(i)))
+            {
+                if(!addName(tokens, skip(tokens, i, NOISE_WORDS), writes))
+                    return null;
+            }
+            else
+            {
+                i = skip(tokens, 1, INDEX_MODIFIERS);
+                if(i >= tokens.size() || !"INDEX".equals(tokens.get(i)))
+                    return null;
+
+                // The indexed table follows ON
+                while(i < tokens.size() && !"ON".equals(tokens.get(i)))
+                    ++i;
+                if(!addName(tokens, skip(tokens, i + 1, NOISE_WORDS), writes))
+                    return null;
+            }
+        }
+        else if("ALTER".equals(first))
+        {
+            if(i >= tokens.size() || !"TABLE".equals(tokens.get(i)))
+                return null;
+            if(!addName(tokens, skip(tokens, i, NOISE_WORDS), writes))
+                return null;
+
+            // RENAME TO creates a "new" table
+            for(int j=i; j<tokens.size() - 1; ++j)
+                if("TO".equals(tokens.get(j)))
+                    addName(tokens, j + 1, writes);
+        }
+        else if("DROP".equals(first) || "TRUNCATE".equals(first))
+        {
+            if("DROP".equals(first) && (i >= tokens.size() || !"TABLE".equals(tokens.get(i))))
+                return null;
+
+            // CASCADE reaches into other tables
+            if(tokens.contains("CASCADE"))
+                return null;
+
+            i = skip(tokens, i, NOISE_WORDS);
+            while(addName(tokens, i, writes))
+            {
+                i = endOfName(tokens, i);
+                if(i >= tokens.size() || !",".equals(tokens.get(i)))
+                    break;
+                ++i;
+            }
+        }
+        else
+            return null;
+
+        // Everything else the statement mentions is read
+        for(int j=0; j<tokens.size(); ++j)
+        {
+            final String token = tokens.get(j);
+
+            if(isOneOf(token, READ_KEYWORDS) || ("LIKE".equals(token) && "CREATE".equals(first)))
+            {
+                // FROM a, b, c
+                int k = j + 1;
+                while(addName(tokens, skip(tokens, k, NOISE_WORDS), reads))
+                {
+                    k = endOfName(tokens, skip(tokens, k, NOISE_WORDS));
+
+                    // Skip an alias
+                    if(k < tokens.size() && "AS".equals(tokens.get(k)))
+                        ++k;
+                    if(k < tokens.size() && isWord(tokens.get(k)) && !isKeyword(tokens.get(k)))
+                        ++k;
+
+                    if(k >= tokens.size() || !",".equals(tokens.get(k)))
+                        break;
+                    ++k;
+                }
+            }
+        }
+
+        reads.removeAll(writes);
+
+        return new TableAccess(reads, writes);
+    }
+
+    /**
+     * Splits a statement into upper-cased words, quoted identifiers
+     * (which keep their leading quote so they're never mistaken for
+     * keywords) and punctuation. Literals are replaced by a single
+     * <code>'</code>.
+     *
+     * @return The tokens, or <code>null</code> if the statement is marked
+     *         as a barrier or uses dollar-quoting.
+     */
+    private static List<String> tokenize(String sql)
+    {
+        final int length = sql.length();
+        final ArrayList<String> tokens = new ArrayList<String>();
+
+        int i = 0;
+        while(i < length)
+        {
+            final char c = sql.charAt(i);
+
+            if(Character.isWhitespace(c))
+                ++i;
+            else if('-' == c && i + 1 < length && '-' == sql.charAt(i + 1))
+            {
+                int end = sql.indexOf('\n', i);
+                if(-1 == end)
+                    end = length;
+
+                if(BARRIER.equalsIgnoreCase(sql.substring(i + 2, end).trim()))
+                    return null;
+
+                i = end;
+            }
+            else if('/' == c && i + 1 < length && '*' == sql.charAt(i + 1))
+            {
+                final int end = sql.indexOf("*/", i + 2);
+                i = -1 == end ? length : end + 2;
+            }
+            else if('\'' == c)
+            {
+                i = endOfQuoted(sql, i, '\'');
+                tokens.add("'");
+            }
+            else if('"' == c || '`' == c || '[' == c)
+            {
+                final int end = endOfQuoted(sql, i, '[' == c ? ']' : c);
+                tokens.add('"' + sql.substring(i + 1, Math.max(i + 1, end - 1)).toUpperCase());
+                i = end;
+            }
+            else if('$' == c)
+                return null;
+            else if(Character.isLetter(c) || '_' == c)
+            {
+                int end = i + 1;
+                while(end < length && (Character.isLetterOrDigit(sql.charAt(end)) || '_' == sql.charAt(end)
+                                       || '$' == sql.charAt(end) || '#' == sql.charAt(end)))
+                    ++end;
+
+                tokens.add(sql.substring(i, end).toUpperCase());
+                i = end;
+            }
+            else if(Character.isDigit(c))
+            {
+                int end = i + 1;
+                while(end < length && (Character.isLetterOrDigit(sql.charAt(end)) || '.' == sql.charAt(end)))
+                    ++end;
+
+                tokens.add("'");
+                i = end;
+            }
+            else
+            {
+                if(';' != c)
+                    tokens.add(String.valueOf(c));
+                ++i;
+            }
+        }
+
+        return tokens;
+    }
+
+    private static int endOfQuoted(String s, int start, char quote)
+    {
+        int i = start + 1;
+        while(i < s.length())
+        {
+            if(quote == s.charAt(i))
+            {
+                // Doubled quotes are an escaped quote
+                if(i + 1 < s.length() && quote == s.charAt(i + 1))
+                    i += 2;
+                else
+                    return i + 1;
+            }
+            else
+                ++i;
+        }
+
+        return s.length();
+    }
+
+    /**
+     * Adds the table named at a position, e.g. <code>schema.table</code>,
+     * without its schema.
+     *
+     * @return <code>true</code> if there was a name there.
+     */
+    private static boolean addName(List<String> tokens, int i, Set<String> names)
+    {
+        if(i >= tokens.size() || !isName(tokens.get(i)))
+            return false;
+
+        final int end = endOfName(tokens, i);
+        String name = tokens.get(end - 1);
+        if('"' == name.charAt(0))
+            name = name.substring(1);
+
+        names.add(name);
+
+        return true;
+    }
+
+    private static int endOfName(List<String> tokens, int i)
+    {
+        ++i;
+        while(i + 1 < tokens.size() && ".".equals(tokens.get(i)) && isName(tokens.get(i + 1)))
+            i += 2;
+
+        return i;
+    }
+
+    private static int skip(List<String> tokens, int i, String[] words)
+    {
+        while(i < tokens.size() && isOneOf(tokens.get(i), words))
+            ++i;
+
+        return i;
+    }
+
+    private static boolean isName(String token)
+    {
+        return isWord(token) && !isKeyword(token) || '"' == token.charAt(0);
+    }
+
+    private static boolean isWord(String token)
+    {
+        return Character.isLetter(token.charAt(0)) || '_' == token.charAt(0);
+    }
+
+    // Keywords which can follow a table name or stand in for one
+    private static final String[] KEYWORDS = {
+        "SELECT", "WHERE", "SET", "VALUES", "ON", "USING", "JOIN", "INNER", "LEFT", "RIGHT",
+        "FULL", "OUTER", "CROSS", "NATURAL", "GROUP", "ORDER", "HAVING", "LIMIT", "UNION",
+        "EXCEPT", "INTERSECT", "WHEN", "LATERAL", "AS", "DEFAULT", "WITH", "RETURNING", "FOR"
+    };
+
+    private static boolean isKeyword(String token)
+    {
+        return isOneOf(token, KEYWORDS);
+    }
+
+    private static boolean isOneOf(String word, String[] words)
+    {
+        if(null != word)
+            for(String w : words)
+                if(w.equals(word))
+                    return true;
+
+        return false;
+    }
+}
@@ -0,0 +1,295 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Renders result-set rows as a padded ASCII table:
+ *
+ * <pre>
+ * +----+-------+
+ * | id | name  |
+ * +----+-------+
+ * |  1 |  Fred |
+ * +----+-------+
+ * </pre>
+ *
+ * Each row is assembled in a single, reusable character buffer and then
+ * written to the underlying stream in one operation. No Formatter,
+ * format-string parsing or per-cell objects are involved, which matters
+ * when dumping hundreds of thousands of rows.
+ *
+ * Cells are padded to their column's width. Values wider than the column
+ * are written in full, just like <code>%<i>n</i>s</code> would do, unless
+ * the table is told to {@link #TRUNCATE} or {@link #WRAP} them.
+ *
+ * This class is not thread-safe.
+ */
+class TableRenderer
+{
+    /**
+     * Values wider than their column are written in full, pushing the
+     * rest of the row to the right.
+     */
+    static final int EXPAND = 0;
+
+    /**
+     * Values wider than their column are cut off and end with "...".
+     */
+    static final int TRUNCATE = 1;
+
+    /**
+     * Values wider than their column continue on the following lines.
+     */
+    static final int WRAP = 2;
+
+    private static final char[] NEWLINE = SQLExecutor.NEWLINE.toCharArray();
+
+    private final Writer out;
+    private final int[] columnWidths;
+    private final int overflow;
+
+    // The rest of any values that didn't fit on the current line
+    private final String[] wrapped;
+    private final int[] wrapOffsets;
+    private final boolean[] wrapLeftJustified;
+    private boolean anyWrapped;
+
+    // The +----+----+ line used for the header, separator and footer
+    private final char[] separator;
+
+    // The row currently being built
+    private char[] row;
+    private int rowLength;
+    private int column;
+
+    /**
+     * Creates a new TableRenderer.
+     *
+     * @param out The stream to which the table will be written. The caller
+     *            must call {@link #flush()} before writing anything else
+     *            to this stream.
+     * @param columnWidths The width of each column, not including padding.
+     */
+    TableRenderer(OutputStream out, int[] columnWidths)
+    {
+        this(out, columnWidths, EXPAND);
+    }
+
+    /**
+     * Creates a new TableRenderer.
+     *
+     * @param out The stream to which the table will be written. The caller
+     *            must call {@link #flush()} before writing anything else
+     *            to this stream.
+     * @param columnWidths The width of each column, not including padding.
+     * @param overflow What to do with values wider than their column:
+     *                 {@link #EXPAND}, {@link #TRUNCATE} or {@link #WRAP}.
+     */
+    TableRenderer(OutputStream out, int[] columnWidths, int overflow)
+    {
+        this.out = new OutputStreamWriter(out);
+        this.columnWidths = columnWidths.clone();
+        this.overflow = overflow;
+
+        wrapped = new String[columnWidths.length];
+        wrapOffsets = new int[columnWidths.length];
+        wrapLeftJustified = new boolean[columnWidths.length];
+
+        int width = 1;
+        for(int i=0; i<columnWidths.length; ++i)
+            width += columnWidths[i] + 3;
+
+        separator = new char[width + NEWLINE.length];
+        int pos = 0;
+        separator[pos++] = '+';
+        for(int i=0; i<columnWidths.length; ++i)
+        {
+            final int end = pos + columnWidths[i] + 2;
+            while(pos < end)
+                separator[pos++] = '-';
+            separator[pos++] = '+';
+        }
+        System.arraycopy(NEWLINE, 0, separator, pos, NEWLINE.length);
+
+        row = new char[separator.length];
+        resetRow();
+    }
+
+    /**
+     * Writes a separator line, e.g. <code>+----+-------+</code>.
+     */
+    void separator()
+        throws IOException
+    {
+        out.write(separator);
+    }
+
+    /**
+     * Appends a left-justified cell to the current row. This is used for
+     * column labels.
+     *
+     * @param value The value for the cell.
+     */
+    void labelCell(String value)
+    {
+        appendCell(value, true);
+    }
+
+    /**
+     * Appends a right-justified cell to the current row. This is used for
+     * column values.
+     *
+     * @param value The value for the cell.
+     */
+    void cell(String value)
+    {
+        appendCell(value, false);
+    }
+
+    /**
+     * Writes the current row, including any lines needed for wrapped
+     * values, and starts a new one.
+     */
+    void endRow()
+        throws IOException
+    {
+        writeLine();
+
+        while(anyWrapped)
+        {
+            anyWrapped = false;
+
+            for(int i=0; i<columnWidths.length; ++i)
+            {
+                final String value = wrapped[i];
+                final int width = columnWidths[i];
+
+                if(null == value)
+                {
+                    appendChars("", 0, 0, false, width, true);
+                    continue;
+                }
+
+                final int start = wrapOffsets[i];
+                final int end = Math.min(value.length(), start + width);
+
+                appendChars(value, start, end, false, width, wrapLeftJustified[i]);
+
+                if(end < value.length())
+                {
+                    wrapOffsets[i] = end;
+                    anyWrapped = true;
+                }
+                else
+                    wrapped[i] = null;
+            }
+
+            writeLine();
+        }
+    }
+
+    /**
+     * Flushes any buffered output to the underlying stream.
+     */
+    void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    private void appendCell(String value, boolean leftJustify)
+    {
+        if(null == value)
+            value = "null";
+
+        final int index = column++;
+        final int width = columnWidths[index];
+        int end = value.length();
+        boolean ellipsis = false;
+
+        if(end > width && 0 < width)
+        {
+            if(WRAP == overflow)
+            {
+                wrapped[index] = value;
+                wrapOffsets[index] = width;
+                wrapLeftJustified[index] = leftJustify;
+                anyWrapped = true;
+                end = width;
+            }
+            else if(TRUNCATE == overflow)
+            {
+                // Don't bother with "..." if it won't fit
+                ellipsis = 3 <= width;
+                end = ellipsis ? width - 3 : width;
+            }
+        }
+
+        appendChars(value, 0, end, ellipsis, width, leftJustify);
+    }
+
+    private void appendChars(String value, int start, int end, boolean ellipsis, int width, boolean leftJustify)
+    {
+        final int length = end - start + (ellipsis ? 3 : 0);
+        final int padding = length < width ? width - length : 0;
+
+        // " " + value + padding + " |"
+        ensureCapacity(length + padding + 3);
+
+        row[rowLength++] = ' ';
+        if(!leftJustify)
+            pad(padding);
+        value.getChars(start, end, row, rowLength);
+        rowLength += end - start;
+        if(ellipsis)
+        {
+            row[rowLength++] = '.';
+            row[rowLength++] = '.';
+            row[rowLength++] = '.';
+        }
+        if(leftJustify)
+            pad(padding);
+        row[rowLength++] = ' ';
+        row[rowLength++] = '|';
+    }
+
+    private void writeLine()
+        throws IOException
+    {
+        ensureCapacity(NEWLINE.length);
+        System.arraycopy(NEWLINE, 0, row, rowLength, NEWLINE.length);
+        rowLength += NEWLINE.length;
+
+        out.write(row, 0, rowLength);
+
+        resetRow();
+    }
+
+    private void pad(int count)
+    {
+        final int end = rowLength + count;
+        while(rowLength < end)
+            row[rowLength++] = ' ';
+    }
+
+    private void ensureCapacity(int additional)
+    {
+        final int required = rowLength + additional;
+        if(required > row.length)
+        {
+            char[] grown = new char[Math.max(required, row.length * 2)];
+            System.arraycopy(row, 0, grown, 0, rowLength);
+            row = grown;
+        }
+    }
+
+    private void resetRow()
+    {
+        row[0] = '|';
+        rowLength = 1;
+        column = 0;
+    }
+}
@@ -0,0 +1,205 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups statements into transactions so that the server only has to make
+ * each group durable, instead of every single statement.
+ *
+ * The connection must have auto-commit disabled. Statements are added to
+ * the group as they are executed, and the group is committed once it is
+ * large or old enough. Journal records and timings for the group's
+ * statements are only written once the group has been committed, so
+ * neither the journal nor the statistics claim a statement was executed
+ * when it was actually rolled back.
+ */
+class TransactionGroup
+{
+    /**
+     * A statement which has been executed but not yet committed.
+     */
+    private static class Entry
+    {
+        final ScriptStatement statement;
+        final long updateCount;
+        final long elapsed;
+        // The time spent in each phase, or null for a statement in a batch
+        final StatementMetrics metrics;
+
+        Entry(ScriptStatement statement, long updateCount, long elapsed, StatementMetrics metrics)
+        {
+            this.statement = statement;
+            this.updateCount = updateCount;
+            this.elapsed = elapsed;
+            this.metrics = metrics;
+        }
+    }
+
+    private final Connection conn;
+    private final int maxStatements;
+    private final long maxNanos;
+    private final ExecutionJournal journal;
+    private final RunMetrics metrics;
+
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private long started;
+
+    /**
+     * Creates a new TransactionGroup.
+     *
+     * @param conn The connection, which must not be in auto-commit mode.
+     * @param maxStatements The number of statements after which the group
+     *                      is due to be committed, or 0 for no limit.
+     * @param maxMillis The age in milliseconds after which the group is
+     *                  due to be committed, or 0 for no limit.
+     * @param journal The journal, or <code>null</code>.
+     * @param metrics Where to record timings, or <code>null</code>.
+     */
+    TransactionGroup(Connection conn, int maxStatements, long maxMillis, ExecutionJournal journal, RunMetrics metrics)
+    {
+        this.conn = conn;
+        this.maxStatements = maxStatements;
+        this.maxNanos = maxMillis * 1000000;
+        this.journal = journal;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds a statement which has been executed successfully to the group.
+     *
+     * @param statement The statement.
+     * @param metrics The statement's timings and update count.
+     */
+    void executed(ScriptStatement statement, StatementMetrics metrics)
+    {
+        add(new Entry(statement, metrics.getUpdateCount(), metrics.getTotal(), metrics));
+    }
+
+    /**
+     * Adds a statement which has been executed successfully as part of a
+     * batch to the group.
+     *
+     * @param statement The statement.
+     * @param updateCount The number of rows affected, or -1 if unknown.
+     * @param elapsed The statement's share of the time taken to execute
+     *                the batch, in nanoseconds.
+     */
+    void executed(ScriptStatement statement, long updateCount, long elapsed)
+    {
+        add(new Entry(statement, updateCount, elapsed, null));
+    }
+
+    private void add(Entry entry)
+    {
+        if(entries.isEmpty())
+            started = System.nanoTime();
+
+        entries.add(entry);
+    }
+
+    /**
+     * Returns <code>true</code> if the group has enough statements, or has
+     * been open long enough, that it should be committed.
+     */
+    boolean isDue()
+    {
+        if(entries.isEmpty())
+            return false;
+
+        return (0 < maxStatements && entries.size() >= maxStatements)
+            || (0 < maxNanos && System.nanoTime() - started >= maxNanos);
+    }
+
+    boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Gets the total number of rows affected by the statements in the
+     * group, which will be undone if it is rolled back.
+     */
+    long getUpdateCount()
+    {
+        long count = 0;
+        for(Entry entry : entries)
+            if(0 < entry.updateCount)
+                count += entry.updateCount;
+
+        return count;
+    }
+
+    /**
+     * Gets the first statement in the group, which is where execution must
+     * resume if the group is rolled back.
+     */
+    ScriptStatement getFirst()
+    {
+        return entries.isEmpty() ? null : entries.get(0).statement;
+    }
+
+    /**
+     * Commits the group and records its statements in the journal and
+     * statistics.
+     *
+     * @return The number of statements committed.
+     *
+     * @throws SQLException If the commit fails, in which case the group is
+     *         left as it is so that it can be rolled back.
+     */
+    int commit()
+        throws SQLException, IOException
+    {
+        conn.commit();
+
+        final int count = entries.size();
+
+        if(null != journal)
+            for(Entry entry : entries)
+                journal.executed(entry.statement, entry.updateCount, entry.elapsed);
+
+        if(null != metrics)
+        {
+            for(Entry entry : entries)
+            {
+                if(null == entry.metrics)
+                    metrics.recordBatched(entry.statement, entry.updateCount, entry.elapsed);
+                else
+                    metrics.record(entry.statement, entry.metrics);
+            }
+        }
+
+        entries.clear();
+
+        return count;
+    }
+
+    /**
+     * Rolls back the group.
+     *
+     * @return The statements which were rolled back, in the order they
+     *         were executed.
+     */
+    List<ScriptStatement> rollback()
+        throws SQLException
+    {
+        final ArrayList<ScriptStatement> statements = new ArrayList<ScriptStatement>(entries.size());
+        for(Entry entry : entries)
+            statements.add(entry.statement);
+
+        entries.clear();
+
+        conn.rollback();
+
+        return statements;
+    }
+}
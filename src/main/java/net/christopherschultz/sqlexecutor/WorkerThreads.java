@@ -0,0 +1,67 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates threads for running work in the background. Virtual threads are
+ * used when the JVM supports them (Java 21 and later); otherwise, daemon
+ * platform threads are used so they never keep the JVM running.
+ */
+class WorkerThreads
+{
+    private WorkerThreads()
+    {
+    }
+
+    /**
+     * Gets a ThreadFactory for worker threads.
+     *
+     * @param name The prefix for the names of the threads.
+     */
+    static ThreadFactory factory(final String name)
+    {
+        final ThreadFactory virtual = virtualThreadFactory(name);
+        if(null != virtual)
+            return virtual;
+
+        final AtomicInteger count = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Gets a factory for virtual threads using reflection, since this code
+     * must still compile and run on older JVMs.
+     *
+     * @return The factory, or <code>null</code> if virtual threads are not
+     *         available.
+     */
+    private static ThreadFactory virtualThreadFactory(String name)
+    {
+        try
+        {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            final Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, name + "-", Long.valueOf(1));
+
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,888 @@
+package net.christopherschultz.sqlexecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.sql.rowset.serial.SerialBlob;
+import javax.sql.rowset.serial.SerialClob;
+
+/**
+ * A JDBC driver which doesn't talk to a database at all, for repeatable
+ * tests and benchmarks of SQLExecutor itself.
+ *
+ * Queries (statements beginning with SELECT, WITH, VALUES, SHOW or
+ * EXPLAIN) return synthetic result sets, and everything else reports a
+ * fixed update count. The behavior is configured by the URL, e.g.
+ *
+ * <pre>
+ * jdbc:fake:rows=10000;types=integer,varchar,clob;latency=2;failEvery=100;sqlState=40001
+ * </pre>
+ *
+ * <ul>
+ * <li><code>rows</code>: rows returned by each query (default 10)</li>
+ * <li><code>columns</code>: columns in each result set (default: the
+ *     number of types)</li>
+ * <li><code>types</code>: comma-separated column types, repeated as
+ *     necessary: integer, bigint, decimal, varchar, timestamp,
+ *     longvarchar, clob, varbinary or blob (default
+ *     integer,varchar,decimal,timestamp)</li>
+ * <li><code>width</code>: characters in each text value, or bytes in each
+ *     binary value (default 32)</li>
+ * <li><code>nullEvery</code>: every nth row contains only NULLs (default
+ *     0, never)</li>
+ * <li><code>updates</code>: update count of each other statement (default
+ *     1)</li>
+ * <li><code>latency</code>: milliseconds added to every round trip:
+ *     connecting, executing, executing a batch, committing and rolling
+ *     back (default 0)</li>
+ * <li><code>rowLatency</code>: microseconds added to fetching each row
+ *     (default 0)</li>
+ * <li><code>failEvery</code>: every nth statement executed on a
+ *     connection fails (default 0, never)</li>
+ * <li><code>failOn</code>: statements matching this regular expression
+ *     fail</li>
+ * <li><code>sqlState</code> and <code>errorCode</code>: the SQLState
+ *     (default 40001) and vendor code of injected failures</li>
+ * <li><code>record</code>: if <code>true</code>, every call to the driver
+ *     is recorded, see {@link #getCalls()}</li>
+ * </ul>
+ *
+ * The same settings may also be given as connection properties, which the
+ * URL overrides. Calls to each JDBC method are always counted, see
+ * {@link #getCount(String)}.
+ */
+public class FakeDriver
+    implements Driver
+{
+    public static final String PREFIX = "jdbc:fake:";
+
+    private static final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private static final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+    private static final Pattern QUERY = Pattern.compile("^(?:\\s+|--[^\\n]*\\n|/\\*.*?\\*/)*(?:SELECT|WITH|VALUES|SHOW|EXPLAIN)\\b",
+                                                         Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    static
+    {
+        try
+        {
+            DriverManager.registerDriver(new FakeDriver());
+        }
+        catch (SQLException sqle)
+        {
+            throw new ExceptionInInitializerError(sqle);
+        }
+    }
+
+    /**
+     * Gets every call recorded so far by connections with
+     * <code>record=true</code>, in order, e.g.
+     * <code>PreparedStatement.execute</code> or
+     * <code>Connection.prepareStatement SELECT 1</code>.
+     */
+    public static List<String> getCalls()
+    {
+        synchronized(calls)
+        {
+            return new ArrayList<String>(calls);
+        }
+    }
+
+    /**
+     * Gets the number of calls to a method so far, e.g.
+     * <code>Statement.executeBatch</code>.
+     */
+    public static long getCount(String method)
+    {
+        final AtomicLong count = counts.get(method);
+
+        return null == count ? 0 : count.get();
+    }
+
+    /**
+     * Forgets all recorded and counted calls.
+     */
+    public static void reset()
+    {
+        calls.clear();
+        counts.clear();
+    }
+
+    @Override
+    public Connection connect(String url, Properties info)
+        throws SQLException
+    {
+        if(!acceptsURL(url))
+            return null;
+
+        final Settings settings = new Settings(url.substring(PREFIX.length()), info);
+        settings.call("Driver.connect", url);
+        settings.roundTrip();
+
+        final ConnectionHandler handler = new ConnectionHandler(settings);
+        handler.connection = proxy(Connection.class, handler);
+
+        return handler.connection;
+    }
+
+    @Override
+    public boolean acceptsURL(String url)
+    {
+        return null != url && url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+    {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant()
+    {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger()
+        throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    static boolean isQuery(String sql)
+    {
+        return null != sql && QUERY.matcher(sql).find();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler)
+    {
+        handler.type = type;
+
+        return (T)Proxy.newProxyInstance(FakeDriver.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * The settings for a single connection, and the statements it has
+     * executed.
+     */
+    static class Settings
+    {
+        final int rows;
+        final int[] types;
+        final int width;
+        final int nullEvery;
+        final int updates;
+        final long latency;
+        final long rowLatency;
+        final long failEvery;
+        final Pattern failOn;
+        final String sqlState;
+        final int errorCode;
+        final boolean record;
+
+        final AtomicLong executed = new AtomicLong();
+
+        Settings(String url, Properties info)
+        {
+            final Properties props = new Properties();
+            if(null != info)
+                props.putAll(info);
+            for(String setting : url.split("[;&]"))
+            {
+                final int equals = setting.indexOf('=');
+                if(0 < equals)
+                    props.setProperty(setting.substring(0, equals).trim(), setting.substring(equals + 1).trim());
+            }
+
+            final String[] typeNames = props.getProperty("types", "integer,varchar,decimal,timestamp").split(",");
+            final int columns = Integer.parseInt(props.getProperty("columns", String.valueOf(typeNames.length)));
+            types = new int[columns];
+            for(int i=0; i<columns; ++i)
+                types[i] = getType(typeNames[i % typeNames.length].trim());
+
+            rows = Integer.parseInt(props.getProperty("rows", "10"));
+            width = Integer.parseInt(props.getProperty("width", "32"));
+            nullEvery = Integer.parseInt(props.getProperty("nullEvery", "0"));
+            updates = Integer.parseInt(props.getProperty("updates", "1"));
+            latency = Long.parseLong(props.getProperty("latency", "0"));
+            rowLatency = Long.parseLong(props.getProperty("rowLatency", "0"));
+            failEvery = Long.parseLong(props.getProperty("failEvery", "0"));
+            failOn = props.containsKey("failOn") ? Pattern.compile(props.getProperty("failOn"), Pattern.DOTALL) : null;
+            sqlState = props.getProperty("sqlState", "40001");
+            errorCode = Integer.parseInt(props.getProperty("errorCode", "0"));
+            record = Boolean.parseBoolean(props.getProperty("record", "false"));
+        }
+
+        private static int getType(String name)
+        {
+            if("integer".equalsIgnoreCase(name))
+                return Types.INTEGER;
+            if("bigint".equalsIgnoreCase(name))
+                return Types.BIGINT;
+            if("decimal".equalsIgnoreCase(name))
+                return Types.DECIMAL;
+            if("varchar".equalsIgnoreCase(name))
+                return Types.VARCHAR;
+            if("timestamp".equalsIgnoreCase(name))
+                return Types.TIMESTAMP;
+            if("longvarchar".equalsIgnoreCase(name))
+                return Types.LONGVARCHAR;
+            if("clob".equalsIgnoreCase(name))
+                return Types.CLOB;
+            if("varbinary".equalsIgnoreCase(name))
+                return Types.VARBINARY;
+            if("blob".equalsIgnoreCase(name))
+                return Types.BLOB;
+
+            throw new IllegalArgumentException("Unknown column type: " + name);
+        }
+
+        void call(String method, Object[] args)
+        {
+            String argument = null;
+            if(null != args)
+                for(Object arg : args)
+                    if(arg instanceof String)
+                    {
+                        argument = (String)arg;
+                        break;
+                    }
+
+            call(method, argument);
+        }
+
+        void call(String method, String argument)
+        {
+            AtomicLong count = counts.get(method);
+            if(null == count)
+            {
+                final AtomicLong existing = counts.putIfAbsent(method, count = new AtomicLong());
+                if(null != existing)
+                    count = existing;
+            }
+            count.incrementAndGet();
+
+            if(record)
+                calls.add(null == argument ? method : method + " " + argument);
+        }
+
+        void roundTrip()
+            throws SQLException
+        {
+            if(0 < latency)
+            {
+                try
+                {
+                    Thread.sleep(latency);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+
+                    throw new SQLException("Interrupted", "HY008", ie);
+                }
+            }
+        }
+
+        /**
+         * Counts a statement being executed, and fails if it should.
+         */
+        void execute(String sql)
+            throws SQLException
+        {
+            final long count = executed.incrementAndGet();
+
+            if((0 < failEvery && 0 == count % failEvery)
+               || (null != failOn && failOn.matcher(sql).find()))
+                throw new SQLException("Injected failure executing statement " + count + ": " + sql, sqlState, errorCode);
+        }
+    }
+
+    /**
+     * Handles the methods common to all JDBC objects, and supplies default
+     * return values for everything which isn't handled.
+     */
+    private abstract static class Handler
+        implements InvocationHandler
+    {
+        final Settings settings;
+        Class<?> type;
+
+        Handler(Settings settings)
+        {
+            this.settings = settings;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            final String name = method.getName();
+
+            if("equals".equals(name))
+                return proxy == args[0];
+            if("hashCode".equals(name))
+                return System.identityHashCode(proxy);
+            if("toString".equals(name))
+                return "Fake" + type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            if("isWrapperFor".equals(name))
+                return ((Class<?>)args[0]).isInstance(proxy);
+            if("unwrap".equals(name))
+            {
+                if(((Class<?>)args[0]).isInstance(proxy))
+                    return proxy;
+                throw new SQLException("Not a wrapper for " + args[0]);
+            }
+
+            settings.call(type.getSimpleName() + "." + name, args);
+
+            return handle(proxy, name, args, method.getReturnType());
+        }
+
+        /**
+         * Handles a call.
+         *
+         * @return The result, or the default for the return type if the
+         *         method isn't handled.
+         */
+        Object handle(Object proxy, String name, Object[] args, Class<?> returnType)
+            throws Exception
+        {
+            return getDefault(returnType);
+        }
+
+        Object getDefault(Class<?> returnType)
+        {
+            if(boolean.class == returnType)
+                return Boolean.FALSE;
+            if(int.class == returnType)
+                return Integer.valueOf(0);
+            if(long.class == returnType)
+                return Long.valueOf(0);
+            if(short.class == returnType)
+                return Short.valueOf((short)0);
+            if(byte.class == returnType)
+                return Byte.valueOf((byte)0);
+            if(double.class == returnType)
+                return Double.valueOf(0);
+            if(float.class == returnType)
+                return Float.valueOf(0);
+            if(ResultSet.class == returnType)
+                return proxy(ResultSet.class, new ResultSetHandler(settings, null, 0, new int[0]));
+
+            return null;
+        }
+    }
+
+    private static class ConnectionHandler
+        extends Handler
+    {
+        private boolean autoCommit = true;
+        private boolean closed;
+        Connection connection;
+
+        ConnectionHandler(Settings settings)
+        {
+            super(settings);
+        }
+
+        @Override
+        Object handle(Object proxy, String name, Object[] args, Class<?> returnType)
+            throws Exception
+        {
+            if("createStatement".equals(name))
+                return proxy(Statement.class, new StatementHandler(settings, connection, null));
+            if("prepareStatement".equals(name))
+                return proxy(PreparedStatement.class, new StatementHandler(settings, connection, (String)args[0]));
+            if("prepareCall".equals(name))
+                return proxy(CallableStatement.class, new StatementHandler(settings, connection, (String)args[0]));
+            if("getAutoCommit".equals(name))
+                return autoCommit;
+            if("setAutoCommit".equals(name))
+                autoCommit = (Boolean)args[0];
+            else if("commit".equals(name) || "rollback".equals(name))
+                settings.roundTrip();
+            else if("close".equals(name))
+                closed = true;
+            else if("isClosed".equals(name))
+                return closed;
+            else if("isValid".equals(name))
+                return !closed;
+            else if("nativeSQL".equals(name))
+                return args[0];
+            else if("getTransactionIsolation".equals(name))
+                return Connection.TRANSACTION_READ_COMMITTED;
+            else if("getMetaData".equals(name))
+                return proxy(DatabaseMetaData.class, new MetaDataHandler(settings, connection));
+
+            return getDefault(returnType);
+        }
+    }
+
+    private static class MetaDataHandler
+        extends Handler
+    {
+        private final Connection connection;
+
+        MetaDataHandler(Settings settings, Connection connection)
+        {
+            super(settings);
+            this.connection = connection;
+        }
+
+        @Override
+        Object handle(Object proxy, String name, Object[] args, Class<?> returnType)
+        {
+            if("getConnection".equals(name))
+                return connection;
+            if("getDatabaseProductName".equals(name) || "getDriverName".equals(name))
+                return "Fake";
+            if("getDatabaseProductVersion".equals(name) || "getDriverVersion".equals(name))
+                return "1.0";
+            if("getIdentifierQuoteString".equals(name))
+                return "\"";
+            if("supportsBatchUpdates".equals(name))
+                return true;
+
+            return getDefault(returnType);
+        }
+    }
+
+    private static class StatementHandler
+        extends Handler
+    {
+        private final Connection connection;
+        private final String sql;
+        private final ArrayList<String> batch = new ArrayList<String>();
+
+        private ResultSet resultSet;
+        private int updateCount = -1;
+        private int maxRows;
+        private int fetchSize;
+        private boolean closed;
+
+        StatementHandler(Settings settings, Connection connection, String sql)
+        {
+            super(settings);
+            this.connection = connection;
+            this.sql = sql;
+        }
+
+        @Override
+        Object handle(Object proxy, String name, Object[] args, Class<?> returnType)
+            throws Exception
+        {
+            final String statement = null != args && 0 < args.length && args[0] instanceof String ? (String)args[0] : sql;
+
+            if("execute".equals(name))
+                return execute((Statement)proxy, statement);
+            if("executeQuery".equals(name))
+            {
+                execute((Statement)proxy, statement);
+                return null == resultSet ? getDefault(ResultSet.class) : resultSet;
+            }
+            if("executeUpdate".equals(name))
+            {
+                execute((Statement)proxy, statement);
+                return Math.max(updateCount, 0);
+            }
+            if("executeLargeUpdate".equals(name))
+            {
+                execute((Statement)proxy, statement);
+                return (long)Math.max(updateCount, 0);
+            }
+            if("addBatch".equals(name))
+                batch.add(statement);
+            else if("clearBatch".equals(name))
+                batch.clear();
+            else if("executeBatch".equals(name))
+                return executeBatch();
+            else if("executeLargeBatch".equals(name))
+            {
+                final int[] counts = executeBatch();
+                final long[] large = new long[counts.length];
+                for(int i=0; i<counts.length; ++i)
+                    large[i] = counts[i];
+                return large;
+            }
+            else if("getResultSet".equals(name))
+                return resultSet;
+            else if("getUpdateCount".equals(name))
+                return updateCount;
+            else if("getLargeUpdateCount".equals(name))
+                return (long)updateCount;
+            else if("getMoreResults".equals(name))
+            {
+                resultSet = null;
+                updateCount = -1;
+            }
+            else if("setMaxRows".equals(name))
+                maxRows = (Integer)args[0];
+            else if("getMaxRows".equals(name))
+                return maxRows;
+            else if("setFetchSize".equals(name))
+                fetchSize = (Integer)args[0];
+            else if("getFetchSize".equals(name))
+                return fetchSize;
+            else if("getConnection".equals(name))
+                return connection;
+            else if("close".equals(name))
+                closed = true;
+            else if("isClosed".equals(name))
+                return closed;
+
+            return getDefault(returnType);
+        }
+
+        private boolean execute(Statement statement, String sql)
+            throws SQLException
+        {
+            resultSet = null;
+            updateCount = -1;
+
+            settings.roundTrip();
+            settings.execute(sql);
+
+            if(isQuery(sql))
+            {
+                final int rows = 0 < maxRows ? Math.min(maxRows, settings.rows) : settings.rows;
+                resultSet = proxy(ResultSet.class, new ResultSetHandler(settings, statement, rows, settings.types));
+
+                return true;
+            }
+
+            updateCount = settings.updates;
+
+            return false;
+        }
+
+        private int[] executeBatch()
+            throws SQLException
+        {
+            settings.roundTrip();
+
+            final int[] counts = new int[batch.size()];
+            try
+            {
+                for(int i=0; i<counts.length; ++i)
+                {
+                    try
+                    {
+                        settings.execute(batch.get(i));
+                    }
+                    catch (SQLException sqle)
+                    {
+                        throw new BatchUpdateException(sqle.getMessage(), sqle.getSQLState(), sqle.getErrorCode(),
+                                                       Arrays.copyOf(counts, i), sqle);
+                    }
+
+                    counts[i] = settings.updates;
+                }
+            }
+            finally
+            {
+                batch.clear();
+            }
+
+            return counts;
+        }
+    }
+
+    private static class ResultSetHandler
+        extends Handler
+    {
+        private static final long EPOCH = Timestamp.valueOf("2020-01-01 00:00:00").getTime();
+
+        private final Statement statement;
+        private final int rows;
+        private final int[] types;
+        private final String text;
+        private final byte[] bytes;
+
+        private int row;
+        private boolean wasNull;
+        private boolean closed;
+
+        ResultSetHandler(Settings settings, Statement statement, int rows, int[] types)
+        {
+            super(settings);
+            this.statement = statement;
+            this.rows = rows;
+            this.types = types;
+
+            final char[] chars = new char[settings.width];
+            for(int i=0; i<chars.length; ++i)
+                chars[i] = (char)('a' + i % 26);
+            text = new String(chars);
+
+            bytes = new byte[settings.width];
+            for(int i=0; i<bytes.length; ++i)
+                bytes[i] = (byte)i;
+        }
+
+        @Override
+        Object handle(Object proxy, String name, Object[] args, Class<?> returnType)
+            throws Exception
+        {
+            if("next".equals(name))
+            {
+                if(0 < settings.rowLatency)
+                    LockSupport.parkNanos(settings.rowLatency * 1000);
+
+                return ++row <= rows;
+            }
+            if("getMetaData".equals(name))
+                return proxy(ResultSetMetaData.class, new ResultSetMetaDataHandler(settings, types));
+            if("wasNull".equals(name))
+                return wasNull;
+            if("findColumn".equals(name))
+                return findColumn((String)args[0]);
+            if("getRow".equals(name))
+                return row <= rows ? row : 0;
+            if("getStatement".equals(name))
+                return statement;
+            if("getType".equals(name))
+                return ResultSet.TYPE_FORWARD_ONLY;
+            if("getConcurrency".equals(name))
+                return ResultSet.CONCUR_READ_ONLY;
+            if("close".equals(name))
+                closed = true;
+            else if("isClosed".equals(name))
+                return closed;
+            else if(name.startsWith("get") && null != args && 0 < args.length)
+                return get(name, args[0] instanceof String ? findColumn((String)args[0]) : (Integer)args[0], returnType);
+
+            return getDefault(returnType);
+        }
+
+        private int findColumn(String label)
+            throws SQLException
+        {
+            for(int i=1; i<=types.length; ++i)
+                if(ResultSetMetaDataHandler.getLabel(i).equalsIgnoreCase(label))
+                    return i;
+
+            throw new SQLException("Unknown column: " + label, "42S22");
+        }
+
+        private Object get(String name, int column, Class<?> returnType)
+            throws SQLException
+        {
+            if(1 > row || row > rows)
+                throw new SQLException("Not on a row", "24000");
+            if(1 > column || column > types.length)
+                throw new SQLException("Invalid column index: " + column, "07009");
+
+            final Object value = 0 < settings.nullEvery && 0 == row % settings.nullEvery
+                ? null
+                : getValue(types[column - 1]);
+
+            wasNull = null == value;
+            if(wasNull)
+                return getDefault(returnType);
+
+            if(String.class == returnType)
+                return value instanceof byte[] ? toHex((byte[])value) : value.toString();
+            if(returnType.isInstance(value))
+                return value;
+            if("getCharacterStream".equals(name) || "getNCharacterStream".equals(name))
+                return new StringReader(value.toString());
+            if("getBinaryStream".equals(name))
+                return new ByteArrayInputStream(value instanceof byte[] ? (byte[])value : value.toString().getBytes());
+            if("getClob".equals(name) || "getNClob".equals(name))
+                return new SerialClob(value.toString().toCharArray());
+            if("getBlob".equals(name))
+                return new SerialBlob(value instanceof byte[] ? (byte[])value : value.toString().getBytes());
+            if("getBytes".equals(name))
+                return value instanceof byte[] ? value : value.toString().getBytes();
+            if(value instanceof Number)
+            {
+                final Number number = (Number)value;
+                if(int.class == returnType)
+                    return number.intValue();
+                if(long.class == returnType)
+                    return number.longValue();
+                if(double.class == returnType)
+                    return number.doubleValue();
+                if(float.class == returnType)
+                    return number.floatValue();
+                if(short.class == returnType)
+                    return number.shortValue();
+                if(byte.class == returnType)
+                    return number.byteValue();
+                if(BigDecimal.class == returnType)
+                    return new BigDecimal(number.toString());
+            }
+
+            throw new SQLException("Cannot convert " + value.getClass().getSimpleName() + " using " + name, "22018");
+        }
+
+        private Object getValue(int type)
+        {
+            switch(type)
+            {
+                case Types.INTEGER:
+                    return Integer.valueOf(row);
+                case Types.BIGINT:
+                    return Long.valueOf(row * 1000003L);
+                case Types.DECIMAL:
+                    return BigDecimal.valueOf(row * 100L + 99, 2);
+                case Types.TIMESTAMP:
+                    return new Timestamp(EPOCH + row * 1000L);
+                case Types.VARBINARY:
+                case Types.BLOB:
+                    return bytes;
+                default:
+                    // Varying the beginning keeps values distinct
+                    final String prefix = row + ":";
+                    return prefix.length() >= text.length()
+                        ? prefix.substring(0, text.length())
+                        : prefix + text.substring(prefix.length());
+            }
+        }
+
+        private static String toHex(byte[] bytes)
+        {
+            final StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for(byte b : bytes)
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+
+            return sb.toString();
+        }
+    }
+
+    private static class ResultSetMetaDataHandler
+        extends Handler
+    {
+        private final int[] types;
+
+        ResultSetMetaDataHandler(Settings settings, int[] types)
+        {
+            super(settings);
+            this.types = types;
+        }
+
+        static String getLabel(int column)
+        {
+            return "C" + column;
+        }
+
+        @Override
+        Object handle(Object proxy, String name, Object[] args, Class<?> returnType)
+        {
+            if("getColumnCount".equals(name))
+                return types.length;
+
+            final int column = (Integer)args[0];
+            final int type = types[column - 1];
+
+            if("getColumnLabel".equals(name) || "getColumnName".equals(name))
+                return getLabel(column);
+            if("getColumnType".equals(name))
+                return type;
+            if("getColumnTypeName".equals(name))
+                return getTypeName(type);
+            if("getColumnClassName".equals(name))
+                return getClassName(type);
+            if("getColumnDisplaySize".equals(name) || "getPrecision".equals(name))
+                return getDisplaySize(type);
+            if("getScale".equals(name))
+                return Types.DECIMAL == type ? 2 : 0;
+            if("isNullable".equals(name))
+                return 0 < settings.nullEvery ? ResultSetMetaData.columnNullable : ResultSetMetaData.columnNoNulls;
+            if("getTableName".equals(name))
+                return "FAKE";
+            if("isReadOnly".equals(name))
+                return true;
+
+            return getDefault(returnType);
+        }
+
+        private static String getTypeName(int type)
+        {
+            switch(type)
+            {
+                case Types.INTEGER: return "INTEGER";
+                case Types.BIGINT: return "BIGINT";
+                case Types.DECIMAL: return "DECIMAL";
+                case Types.TIMESTAMP: return "TIMESTAMP";
+                case Types.LONGVARCHAR: return "LONGVARCHAR";
+                case Types.CLOB: return "CLOB";
+                case Types.VARBINARY: return "VARBINARY";
+                case Types.BLOB: return "BLOB";
+                default: return "VARCHAR";
+            }
+        }
+
+        private static String getClassName(int type)
+        {
+            switch(type)
+            {
+                case Types.INTEGER: return Integer.class.getName();
+                case Types.BIGINT: return Long.class.getName();
+                case Types.DECIMAL: return BigDecimal.class.getName();
+                case Types.TIMESTAMP: return Timestamp.class.getName();
+                case Types.VARBINARY:
+                case Types.BLOB: return byte[].class.getName();
+                default: return String.class.getName();
+            }
+        }
+
+        private int getDisplaySize(int type)
+        {
+            switch(type)
+            {
+                case Types.INTEGER: return 11;
+                case Types.BIGINT: return 20;
+                case Types.DECIMAL: return 12;
+                case Types.TIMESTAMP: return 23;
+                case Types.VARBINARY:
+                case Types.BLOB: return settings.width * 2;
+                default: return settings.width;
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package net.christopherschultz.sqlexecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs scripts unattended against {@link FakeDriver} targets, exercising
+ * the same batching, error handling, journaling and retry code as
+ * <code>--batch</code>.
+ */
+public class FanOutTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void reset()
+    {
+        FakeDriver.reset();
+    }
+
+    @Test
+    public void stopsAtFirstFailure()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES (1);",
+                                   "INSERT INTO bogus VALUES (2);",
+                                   "INSERT INTO t VALUES (3);");
+
+        assertEquals(3, fanOut(script, "stop").run(targets("failOn=bogus"), 1));
+        assertEquals(Arrays.asList("INSERT INTO t VALUES (1)", "INSERT INTO bogus VALUES (2)"), executed());
+    }
+
+    @Test
+    public void skipsFailures()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES (1);",
+                                   "INSERT INTO bogus VALUES (2);",
+                                   "INSERT INTO t VALUES (3);");
+
+        assertEquals(4, fanOut(script, "skip").run(targets("failOn=bogus"), 1));
+        assertEquals(3, executed().size());
+
+        FakeDriver.reset();
+
+        assertEquals(0, fanOut(script, "continue").run(targets("failOn=bogus"), 1));
+        assertEquals(3, executed().size());
+    }
+
+    @Test
+    public void resumesAtFailedStatement()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES (1);",
+                                   "INSERT INTO bogus VALUES (2);",
+                                   "INSERT INTO t VALUES (3);");
+        final File journal = new File(folder.getRoot(), "journal");
+
+        FanOut fanOut = fanOut(script, "stop");
+        fanOut.journal = journal;
+        assertEquals(3, fanOut.run(targets("failOn=bogus"), 1));
+
+        final ExecutionJournal.Record last = ExecutionJournal.readLast(new File(journal.getPath() + ".a"));
+        assertEquals(ExecutionJournal.FAILED, last.status);
+        assertEquals(2, last.statement.getStartLine());
+
+        FakeDriver.reset();
+
+        fanOut = fanOut(script, "stop");
+        fanOut.journal = journal;
+        fanOut.resume = true;
+        assertEquals(0, fanOut.run(targets(""), 1));
+        assertEquals(Arrays.asList("INSERT INTO bogus VALUES (2)", "INSERT INTO t VALUES (3)"), executed());
+    }
+
+    @Test
+    public void resumesAfterSkippedLines()
+        throws IOException
+    {
+        final File script = script("-- Already applied",
+                                   "INSERT INTO t VALUES (1);",
+                                   "INSERT INTO t VALUES (2);",
+                                   "INSERT INTO bogus VALUES (3);",
+                                   "INSERT INTO t VALUES (4);");
+        final File journal = new File(folder.getRoot(), "journal");
+
+        FanOut fanOut = fanOut(script, "stop", 1);
+        fanOut.journal = journal;
+        assertEquals(3, fanOut.run(targets("failOn=bogus"), 1));
+        assertEquals(Arrays.asList("INSERT INTO t VALUES (1)", "INSERT INTO t VALUES (2)", "INSERT INTO bogus VALUES (3)"),
+                     executed());
+
+        FakeDriver.reset();
+
+        fanOut = fanOut(script, "stop", 1);
+        fanOut.journal = journal;
+        fanOut.resume = true;
+        assertEquals(0, fanOut.run(targets(""), 1));
+        assertEquals(Arrays.asList("INSERT INTO bogus VALUES (3)", "INSERT INTO t VALUES (4)"), executed());
+    }
+
+    @Test
+    public void batchesDataModification()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES (1);",
+                                   "UPDATE t SET id = 2;",
+                                   "DELETE FROM t WHERE id = 3;",
+                                   "INSERT INTO t VALUES (4) RETURNING id;",
+                                   "INSERT INTO t VALUES (5);");
+
+        final FanOut fanOut = fanOut(script, "stop");
+        fanOut.batchSize = 10;
+        assertEquals(0, fanOut.run(targets(""), 1));
+
+        assertEquals(4, FakeDriver.getCount("Statement.addBatch"));
+        assertEquals(2, FakeDriver.getCount("Statement.executeBatch"));
+        assertEquals(Collections.singletonList("INSERT INTO t VALUES (4) RETURNING id"), executed());
+    }
+
+    @Test
+    public void resumesAtStatementWhichFailedInBatch()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES (1);",
+                                   "INSERT INTO bogus VALUES (2);",
+                                   "INSERT INTO t VALUES (3);");
+        final File journal = new File(folder.getRoot(), "journal");
+
+        FanOut fanOut = fanOut(script, "stop");
+        fanOut.batchSize = 10;
+        fanOut.journal = journal;
+        assertEquals(3, fanOut.run(targets("failOn=bogus"), 1));
+
+        final ExecutionJournal.Record last = ExecutionJournal.readLast(new File(journal.getPath() + ".a"));
+        assertEquals(ExecutionJournal.FAILED, last.status);
+        assertEquals(2, last.statement.getStartLine());
+
+        FakeDriver.reset();
+
+        fanOut = fanOut(script, "stop");
+        fanOut.journal = journal;
+        fanOut.resume = true;
+        assertEquals(0, fanOut.run(targets(""), 1));
+        assertEquals(Arrays.asList("INSERT INTO bogus VALUES (2)", "INSERT INTO t VALUES (3)"), executed());
+    }
+
+    @Test
+    public void retriesTransientFailures()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES (1);",
+                                   "INSERT INTO t VALUES (2);");
+
+        final RetryPolicy retry = new RetryPolicy("40001", 3, 1);
+        final FanOut fanOut = fanOut(script, "stop", retry);
+
+        // Every other attempt fails with a serialization failure
+        assertEquals(0, fanOut.run(targets("failEvery=2;sqlState=40001"), 1));
+        assertEquals(1, retry.getRetries());
+    }
+
+    @Test
+    public void doesNotRetryOtherFailures()
+        throws IOException
+    {
+        final File script = script("INSERT INTO bogus VALUES (1);");
+
+        final RetryPolicy retry = new RetryPolicy("40001", 3, 1);
+        final FanOut fanOut = fanOut(script, "stop", retry);
+
+        assertEquals(3, fanOut.run(targets("failOn=bogus;sqlState=42P01"), 1));
+        assertEquals(0, retry.getRetries());
+        assertEquals(1, FakeDriver.getCount("PreparedStatement.execute"));
+    }
+
+    @Test
+    public void executesRejectedParametersAsWritten()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES ('2020-01-01');",
+                                   "INSERT INTO t VALUES ('2020-01-02');",
+                                   "INSERT INTO t VALUES ('2020-01-03');");
+
+        final FanOut fanOut = fanOut(script, "stop");
+        fanOut.statementCacheSize = 10;
+
+        // The server won't accept a varchar parameter, only a literal
+        assertEquals(0, fanOut.run(targets("failOn=\\?;sqlState=42804"), 1));
+        assertEquals(Arrays.asList("INSERT INTO t VALUES (?)",
+                                   "INSERT INTO t VALUES ('2020-01-01')",
+                                   "INSERT INTO t VALUES ('2020-01-02')",
+                                   "INSERT INTO t VALUES ('2020-01-03')"),
+                     executed());
+    }
+
+    @Test
+    public void runsEveryTarget()
+        throws IOException
+    {
+        final File script = script("INSERT INTO t VALUES (1);",
+                                   "INSERT INTO t VALUES (2);");
+
+        final List<FanOut.Target> targets = FanOut.expand(FakeDriver.PREFIX + "record=true;shard={shard}", "a,b,c");
+
+        assertEquals(0, fanOut(script, "stop").run(targets, 2));
+        assertEquals(6, FakeDriver.getCount("PreparedStatement.execute"));
+    }
+
+    private File script(String... lines)
+        throws IOException
+    {
+        final File script = folder.newFile("script.sql");
+
+        final Writer out = new OutputStreamWriter(new FileOutputStream(script), UTF8);
+        try
+        {
+            for(String line : lines)
+                out.write(line + "\n");
+        }
+        finally
+        {
+            out.close();
+        }
+
+        return script;
+    }
+
+    private static List<FanOut.Target> targets(String settings)
+    {
+        return Collections.singletonList(new FanOut.Target("a", FakeDriver.PREFIX + "record=true;" + settings));
+    }
+
+    private static FanOut fanOut(File script, String onError)
+        throws IOException
+    {
+        return fanOut(script, onError, 0, null);
+    }
+
+    private static FanOut fanOut(File script, String onError, int skipLines)
+        throws IOException
+    {
+        return fanOut(script, onError, skipLines, null);
+    }
+
+    private static FanOut fanOut(File script, String onError, RetryPolicy retry)
+        throws IOException
+    {
+        return fanOut(script, onError, 0, retry);
+    }
+
+    /**
+     * Creates a FanOut for a script the way main does, starting at the
+     * first statement after any skipped lines.
+     */
+    private static FanOut fanOut(File script, String onError, int skipLines, RetryPolicy retry)
+        throws IOException
+    {
+        final StatementReader in = new StatementReader(script, UTF8, null);
+        final ScriptStatement start;
+        final boolean mysql;
+        try
+        {
+            in.skipLines(skipLines);
+
+            ScriptStatement next;
+            do
+                next = in.next();
+            while(null != next && SQLExecutor.queryIsBlank(next.getText()));
+
+            start = next;
+            mysql = in.isMySQL();
+        }
+        finally
+        {
+            in.close();
+        }
+
+        final ExecutionOptions options = new ExecutionOptions();
+        options.retry = retry;
+
+        final FanOut fanOut = new FanOut(new FakeDriver(), new Properties(), script.getPath(), UTF8, mysql,
+                                         start, options, new PrintStream(new NullOutputStream()));
+        fanOut.onError = onError;
+
+        return fanOut;
+    }
+
+    /**
+     * Gets the statements executed on their own, in order, without their
+     * terminating semicolons.
+     */
+    private static List<String> executed()
+    {
+        final String prefix = "Connection.prepareStatement ";
+
+        final ArrayList<String> executed = new ArrayList<String>();
+        for(String call : FakeDriver.getCalls())
+        {
+            if(call.startsWith(prefix))
+            {
+                String sql = call.substring(prefix.length()).trim();
+                if(sql.endsWith(";"))
+                    sql = sql.substring(0, sql.length() - 1);
+                executed.add(sql);
+            }
+        }
+
+        assertTrue(executed.size() <= FakeDriver.getCount("PreparedStatement.execute"));
+
+        return executed;
+    }
+}
@@ -0,0 +1,132 @@
+package net.christopherschultz.sqlexecutor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StatementBatchTest
+{
+    private static final PrintStream NOWHERE = new PrintStream(new NullOutputStream());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void reset()
+    {
+        FakeDriver.reset();
+    }
+
+    @Test
+    public void batchesOnlyDataModification()
+    {
+        assertTrue(StatementBatch.isBatchable("INSERT INTO t VALUES (1)"));
+        assertTrue(StatementBatch.isBatchable("-- comment\nupdate t set id = 2"));
+        assertTrue(StatementBatch.isBatchable("DELETE FROM t"));
+
+        assertFalse(StatementBatch.isBatchable("SELECT * FROM t"));
+        assertFalse(StatementBatch.isBatchable("CREATE TABLE t (id INT)"));
+        assertFalse(StatementBatch.isBatchable("INSERT INTO t VALUES (1) RETURNING id"));
+        assertFalse(StatementBatch.isBatchable("DELETE FROM t\nreturning *"));
+
+        // Only the keyword counts
+        assertTrue(StatementBatch.isBatchable("INSERT INTO t VALUES ('returning')"));
+        assertTrue(StatementBatch.isBatchable("UPDATE t SET returning_id = 1"));
+    }
+
+    @Test
+    public void executesAsOneBatch()
+        throws SQLException
+    {
+        final StatementBatch batch = batch("INSERT INTO t VALUES (1)", "INSERT INTO t VALUES (2)", "INSERT INTO t VALUES (3)");
+
+        final Connection conn = connect("updates=2");
+        try
+        {
+            assertArrayEquals(new int[] { 2, 2, 2 }, batch.execute(conn, NOWHERE));
+        }
+        finally
+        {
+            conn.close();
+        }
+
+        assertEquals(3, FakeDriver.getCount("Statement.addBatch"));
+        assertEquals(1, FakeDriver.getCount("Statement.executeBatch"));
+    }
+
+    @Test
+    public void findsUnexecutedStatements()
+        throws SQLException, IOException
+    {
+        final StatementBatch batch = batch("INSERT INTO t VALUES (1)", "INSERT INTO bogus VALUES (2)", "INSERT INTO t VALUES (3)");
+
+        final Connection conn = connect("failOn=bogus");
+        try
+        {
+            batch.execute(conn, NOWHERE);
+            fail("The batch should have failed");
+        }
+        catch (SQLException sqle)
+        {
+            assertEquals(Arrays.asList(batch.get(1), batch.get(2)), batch.getUnexecuted(sqle));
+
+            // Resuming from the journal should start with the failure
+            final File file = new File(folder.getRoot(), "journal");
+            final ExecutionJournal journal = ExecutionJournal.open(file);
+            try
+            {
+                batch.record(journal, null, sqle, 3000);
+            }
+            finally
+            {
+                journal.close();
+            }
+
+            final ExecutionJournal.Record last = ExecutionJournal.readLast(file);
+            assertEquals(ExecutionJournal.FAILED, last.status);
+            assertEquals(batch.get(1).getOrdinal(), last.statement.getOrdinal());
+        }
+        finally
+        {
+            conn.close();
+        }
+    }
+
+    private static StatementBatch batch(String... statements)
+    {
+        final StatementBatch batch = new StatementBatch(statements.length, 0);
+
+        long offset = 0;
+        for(int i=0; i<statements.length; ++i)
+        {
+            final String text = statements[i] + ";";
+
+            batch.add(new ScriptStatement(text, i + 1, 1, i + 1, text.length(), offset, offset + text.length(), i));
+
+            offset += text.length() + 1;
+        }
+
+        return batch;
+    }
+
+    private static Connection connect(String settings)
+        throws SQLException
+    {
+        return new FakeDriver().connect(FakeDriver.PREFIX + settings, new Properties());
+    }
+}